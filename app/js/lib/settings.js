@@ -59,6 +59,7 @@ module.exports = {
             'settingLocatorWidth',
             'settingRageSet',
             'settingPenSet',
+            'settingDominanceFilter',
             'settingDefaultUseReforgedStats',
             'settingDefaultUseHeroPriority',
             'settingDefaultUseSubstatMods',
@@ -119,6 +120,7 @@ module.exports = {
             settingUnlockOnUnequip: true,
             settingRageSet: true,
             settingPenSet: true,
+            settingDominanceFilter: false,
             settingMaxResults: 5_000_000,
             settingMaxRamGb: 6,
             settingPenDefense: 1_500,
@@ -181,6 +183,7 @@ module.exports = {
         document.getElementById('settingUnlockOnUnequip').checked = isNullUndefined(settings.settingUnlockOnUnequip) ? true : settings.settingUnlockOnUnequip;
         document.getElementById('settingRageSet').checked = isNullUndefined(settings.settingRageSet) ? true : settings.settingRageSet;
         document.getElementById('settingPenSet').checked = isNullUndefined(settings.settingPenSet) ? true : settings.settingPenSet;
+        document.getElementById('settingDominanceFilter').checked = isNullUndefined(settings.settingDominanceFilter) ? false : settings.settingDominanceFilter;
         document.getElementById('settingDefaultUseReforgedStats').checked = isNullUndefined(settings.settingDefaultUseReforgedStats) ? true : settings.settingDefaultUseReforgedStats;
         document.getElementById('settingDefaultUseHeroPriority').checked = settings.settingDefaultUseHeroPriority;
         document.getElementById('settingDefaultUseSubstatMods').checked = settings.settingDefaultUseSubstatMods;
@@ -203,6 +206,10 @@ module.exports = {
             settings.settingPenSet = true;
         }
 
+        if (isNullUndefined(settings.settingDominanceFilter)) {
+            settings.settingDominanceFilter = false;
+        }
+
         if (isNullUndefined(settings.settingGpu)) {
             settings.settingGpu = true;
         }
@@ -299,6 +306,7 @@ module.exports = {
             settingUnlockOnUnequip: document.getElementById('settingUnlockOnUnequip').checked,
             settingRageSet: document.getElementById('settingRageSet').checked,
             settingPenSet: document.getElementById('settingPenSet').checked,
+            settingDominanceFilter: document.getElementById('settingDominanceFilter').checked,
             settingDefaultUseReforgedStats: document.getElementById('settingDefaultUseReforgedStats').checked,
             settingDefaultUseHeroPriority: document.getElementById('settingDefaultUseHeroPriority').checked,
             settingDefaultUseSubstatMods: document.getElementById('settingDefaultUseSubstatMods').checked,
@@ -0,0 +1,272 @@
+package com.fribbels.core;
+
+import com.fribbels.model.Hero;
+import com.fribbels.request.OptimizationRequest;
+
+/**
+ * Block pre-filter for the innermost boots loop. For a fixed weapon to ring prefix it computes atk, hp, def, spd, cr,
+ * cd, eff, res, ehp, dmg and cp of every boot at once from structure of arrays boot columns, and masks out the boots
+ * that cannot pass those stats' limits. Only the remaining boots go through the full StatCalculator evaluation.
+ *
+ * Boots are sorted by set, so each run of boots with the same set shares its set bonuses and the per boot loops are
+ * plain branch free float arithmetic over arrays, which HotSpot can auto-vectorize. The mask is computed with a slack
+ * and is only a pre-filter, the exact filter still runs on every unmasked boot.
+ */
+public class BootsBlockFilter {
+
+    private static final float SLACK = 1;
+
+    private static final int ATK = 0;
+    private static final int HP = 1;
+    private static final int DEF = 2;
+    private static final int SPD = 3;
+    private static final int CR = 4;
+    private static final int CD = 5;
+    private static final int EFF = 6;
+    private static final int RES = 7;
+    private static final int EHP = 8;
+    private static final int DMG = 9;
+    private static final int CP = 10;
+    private static final int STAT_COUNT = 11;
+
+    // Boot accumulator columns
+    private final int size;
+    private final float[] bootAtk;
+    private final float[] bootHp;
+    private final float[] bootDef;
+    private final float[] bootCr;
+    private final float[] bootCd;
+    private final float[] bootEff;
+    private final float[] bootRes;
+    private final float[] bootSpd;
+
+    // [from, to) boot ranges sharing the same set
+    private final int[] runStarts;
+    private final int[] runSets;
+
+    private final float[] minLimits = new float[STAT_COUNT];
+    private final float[] maxLimits = new float[STAT_COUNT];
+
+    private final Hero hero;
+    private final float bonusMaxAtk;
+    private final float bonusMaxHp;
+    private final float bonusMaxDef;
+    private final float atkSetBonus;
+    private final float hpSetBonus;
+    private final float defSetBonus;
+    private final float speedSetBonus;
+    private final float revengeSetBonus;
+    private final float penSetDmgBonus;
+
+    private BootsBlockFilter(final OptimizationRequest request,
+                             final float[] flattenedBootAccs,
+                             final int argCount,
+                             final Hero hero,
+                             final float bonusMaxAtk,
+                             final float bonusMaxHp,
+                             final float bonusMaxDef,
+                             final float atkSetBonus,
+                             final float hpSetBonus,
+                             final float defSetBonus,
+                             final float speedSetBonus,
+                             final float revengeSetBonus,
+                             final float penSetDmgBonus) {
+        this.hero = hero;
+        this.bonusMaxAtk = bonusMaxAtk;
+        this.bonusMaxHp = bonusMaxHp;
+        this.bonusMaxDef = bonusMaxDef;
+        this.atkSetBonus = atkSetBonus;
+        this.hpSetBonus = hpSetBonus;
+        this.defSetBonus = defSetBonus;
+        this.speedSetBonus = speedSetBonus;
+        this.revengeSetBonus = revengeSetBonus;
+        this.penSetDmgBonus = penSetDmgBonus;
+
+        size = flattenedBootAccs.length / argCount;
+        bootAtk = column(flattenedBootAccs, argCount, 0);
+        bootHp = column(flattenedBootAccs, argCount, 1);
+        bootDef = column(flattenedBootAccs, argCount, 2);
+        bootCr = column(flattenedBootAccs, argCount, 6);
+        bootCd = column(flattenedBootAccs, argCount, 7);
+        bootEff = column(flattenedBootAccs, argCount, 8);
+        bootRes = column(flattenedBootAccs, argCount, 9);
+        bootSpd = column(flattenedBootAccs, argCount, 10);
+
+        int runs = 0;
+        final int[] starts = new int[size];
+        final int[] sets = new int[size];
+        for (int b = 0; b < size; b++) {
+            final int set = (int) flattenedBootAccs[b * argCount + 12];
+            if (runs == 0 || sets[runs - 1] != set) {
+                starts[runs] = b;
+                sets[runs] = set;
+                runs++;
+            }
+        }
+        runStarts = new int[runs + 1];
+        runSets = new int[runs];
+        System.arraycopy(starts, 0, runStarts, 0, runs);
+        System.arraycopy(sets, 0, runSets, 0, runs);
+        runStarts[runs] = size;
+
+        setLimit(ATK, request.inputAtkMinLimit, request.inputAtkMaxLimit);
+        setLimit(HP, request.inputHpMinLimit, request.inputHpMaxLimit);
+        setLimit(DEF, request.inputDefMinLimit, request.inputDefMaxLimit);
+        setLimit(SPD, request.inputSpdMinLimit, request.inputSpdMaxLimit);
+        setLimit(CR, request.inputCrMinLimit, request.inputCrMaxLimit);
+        setLimit(CD, request.inputCdMinLimit, request.inputCdMaxLimit);
+        setLimit(EFF, request.inputEffMinLimit, request.inputEffMaxLimit);
+        setLimit(RES, request.inputResMinLimit, request.inputResMaxLimit);
+        setLimit(EHP, request.inputMinEhpLimit, request.inputMaxEhpLimit);
+        setLimit(DMG, request.inputMinDmgLimit, request.inputMaxDmgLimit);
+        setLimit(CP, request.inputMinCpLimit, request.inputMaxCpLimit);
+    }
+
+    /**
+     * Returns null when none of the block evaluated stats is limited, in which case the scalar loop is used as is.
+     */
+    public static BootsBlockFilter create(final OptimizationRequest request,
+                                          final float[] flattenedBootAccs,
+                                          final int argCount,
+                                          final Hero hero,
+                                          final float bonusMaxAtk,
+                                          final float bonusMaxHp,
+                                          final float bonusMaxDef,
+                                          final float atkSetBonus,
+                                          final float hpSetBonus,
+                                          final float defSetBonus,
+                                          final float speedSetBonus,
+                                          final float revengeSetBonus,
+                                          final float penSetDmgBonus) {
+        final BootsBlockFilter filter = new BootsBlockFilter(request, flattenedBootAccs, argCount, hero,
+                bonusMaxAtk, bonusMaxHp, bonusMaxDef, atkSetBonus, hpSetBonus, defSetBonus,
+                speedSetBonus, revengeSetBonus, penSetDmgBonus);
+
+        for (int i = 0; i < STAT_COUNT; i++) {
+            if (filter.minLimits[i] != Float.NEGATIVE_INFINITY || filter.maxLimits[i] != Float.POSITIVE_INFINITY) {
+                return filter;
+            }
+        }
+        return null;
+    }
+
+    private static float[] column(final float[] flattenedAccs, final int argCount, final int index) {
+        final float[] output = new float[flattenedAccs.length / argCount];
+        for (int i = 0; i < output.length; i++) {
+            output[i] = flattenedAccs[i * argCount + index];
+        }
+        return output;
+    }
+
+    private void setLimit(final int stat, final int min, final int max) {
+        minLimits[stat] = min > 0 ? min - SLACK : Float.NEGATIVE_INFINITY;
+        maxLimits[stat] = max != Integer.MAX_VALUE ? max + SLACK : Float.POSITIVE_INFINITY;
+    }
+
+    public Worker newWorker() {
+        return new Worker();
+    }
+
+    /**
+     * Per thread scratch columns
+     */
+    public class Worker {
+
+        private final float[][] values = new float[STAT_COUNT][size];
+        private final boolean[] mask = new boolean[size];
+
+        /**
+         * Marks in the returned mask which boots may pass, given the sums and set counters of the other five items.
+         */
+        public boolean[] evaluate(final float[] ringSums, final int[] sets) {
+            final float[] atk = values[ATK];
+            final float[] hp = values[HP];
+            final float[] def = values[DEF];
+            final float[] spd = values[SPD];
+            final float[] cr = values[CR];
+            final float[] cd = values[CD];
+            final float[] eff = values[EFF];
+            final float[] res = values[RES];
+            final float[] ehp = values[EHP];
+            final float[] dmg = values[DMG];
+            final float[] cp = values[CP];
+
+            final float bonusCr = hero.bonusCr;
+            final float aeiCr = hero.aeiCr;
+            final float bonusCd = hero.bonusCd;
+            final float aeiCd = hero.aeiCd;
+            final float bonusEff = hero.bonusEff;
+            final float aeiEff = hero.aeiEff;
+            final float bonusRes = hero.bonusRes;
+            final float aeiRes = hero.aeiRes;
+            final float bonusSpeed = hero.bonusSpeed;
+            final float aeiSpeed = hero.aeiSpeed;
+
+            for (int run = 0; run < runSets.length; run++) {
+                final int set = runSets[run];
+                sets[set]++;
+
+                final float atkBonus = sets[2] > 3 ? atkSetBonus : 0;
+                final float hpBonus = sets[0] > 1 ? sets[0] / 2 * hpSetBonus : 0;
+                final float torrentHpBonus = sets[17] > 1 ? sets[17] / 2 * hpSetBonus/-2 : 0;
+                final float defBonus = sets[1] > 1 ? sets[1] / 2 * defSetBonus : 0;
+                final float crBonus = sets[4] > 1 ? sets[4] / 2 * 12 : 0;
+                final float cdBonus = sets[6] > 3 ? 60 : 0;
+                final float effBonus = sets[5] > 1 ? sets[5] / 2 * 20 : 0;
+                final float resBonus = sets[9] > 1 ? sets[9] / 2 * 20 : 0;
+                final float speedBonus = sets[3] > 3 ? speedSetBonus : 0;
+                final float revengeBonus = sets[14] > 3 ? revengeSetBonus : 0;
+                final float penMultiplier = StatCalculator.SETTING_PEN_SET && sets[13] > 1 ? penSetDmgBonus : 1;
+                final float pctDmgMultiplier = 1 + (StatCalculator.SETTING_RAGE_SET && sets[11] > 3 ? 0.3f : 0) + (sets[17] > 1 ? sets[17] / 2 * 0.1f : 0);
+
+                sets[set]--;
+
+                final float ringAtk = ringSums[0];
+                final float ringHp = ringSums[1];
+                final float ringDef = ringSums[2];
+                final float ringCr = ringSums[6];
+                final float ringCd = ringSums[7];
+                final float ringEff = ringSums[8];
+                final float ringRes = ringSums[9];
+                final float ringSpd = ringSums[10];
+
+                for (int b = runStarts[run]; b < runStarts[run + 1]; b++) {
+                    atk[b] = ((ringAtk + bootAtk[b]) + atkBonus) * bonusMaxAtk;
+                    hp[b] = ((ringHp + bootHp[b]) + hpBonus + torrentHpBonus) * bonusMaxHp;
+                    def[b] = ((ringDef + bootDef[b]) + defBonus) * bonusMaxDef;
+                    cr[b] = (ringCr + bootCr[b]) + crBonus + bonusCr + aeiCr;
+                    cd[b] = (int) ((ringCd + bootCd[b]) + cdBonus + bonusCd + aeiCd);
+                    eff[b] = (int) ((ringEff + bootEff[b]) + effBonus + bonusEff + aeiEff);
+                    res[b] = (int) ((ringRes + bootRes[b]) + resBonus + bonusRes + aeiRes);
+                    spd[b] = (int) ((ringSpd + bootSpd[b]) + speedBonus + revengeBonus + bonusSpeed + aeiSpeed);
+                }
+
+                for (int b = runStarts[run]; b < runStarts[run + 1]; b++) {
+                    final float critRate = Math.min(cr[b] / 100f, 1);
+                    final float critDamage = Math.min(cd[b] / 100f, 3.5f);
+                    ehp[b] = hp[b] * (def[b]/300 + 1);
+                    dmg[b] = ((critRate * atk[b] * critDamage) + (1-critRate) * atk[b]) * penMultiplier * pctDmgMultiplier;
+                    cp[b] = (float) (((atk[b] * 1.6f + atk[b] * 1.6f * critRate * critDamage) * (1.0 + (spd[b] - 45f) * 0.02f) + hp[b] + def[b] * 9.3f) * (1f + (res[b]/100f + eff[b]/100f) / 4f));
+                }
+            }
+
+            for (int b = 0; b < size; b++) {
+                mask[b] = true;
+            }
+            for (int stat = 0; stat < STAT_COUNT; stat++) {
+                final float min = minLimits[stat];
+                final float max = maxLimits[stat];
+                if (min == Float.NEGATIVE_INFINITY && max == Float.POSITIVE_INFINITY) {
+                    continue;
+                }
+
+                final float[] column = values[stat];
+                for (int b = 0; b < size; b++) {
+                    mask[b] &= column[b] >= min & column[b] <= max;
+                }
+            }
+
+            return mask;
+        }
+    }
+}
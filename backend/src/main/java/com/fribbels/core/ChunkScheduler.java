@@ -0,0 +1,103 @@
+package com.fribbels.core;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out chunks of [0, total) to heterogeneous workers, like the GPU pipeline and CPU enumeration threads, from a
+ * shared cursor. Whichever worker is free claims the next chunk, so fast workers simply end up claiming more of them.
+ *
+ * Each worker's chunk size follows its measured throughput, aiming for TARGET_CHUNK_NANOS of work per chunk within
+ * the worker's bounds. Near the end of the space chunks are also capped to a share of what remains, so one slow
+ * worker does not hold a large last chunk while the others sit idle.
+ */
+public class ChunkScheduler {
+
+    private static final long TARGET_CHUNK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final long total;
+    private final AtomicLong next = new AtomicLong();
+    private final List<Worker> workers = new CopyOnWriteArrayList<>();
+
+    public ChunkScheduler(final long total) {
+        this.total = total;
+    }
+
+    public Worker newWorker(final String name, final long minChunk, final long maxChunk) {
+        final Worker worker = new Worker(name, Math.max(1, minChunk), Math.max(1, Math.max(minChunk, maxChunk)));
+        workers.add(worker);
+        return worker;
+    }
+
+    public void printThroughput(final long unitSize) {
+        for (final Worker worker : workers) {
+            final double seconds = Math.max(1, worker.busyNanos) / 1e9;
+            System.out.printf("Scheduler worker %s: %d chunks, %d evaluated, %.1f M/s, last chunk size %d%n",
+                    worker.name, worker.chunks, worker.processed * unitSize, worker.processed * unitSize / seconds / 1_000_000, worker.chunkSize);
+        }
+    }
+
+    /**
+     * Claims chunks for one thread at a time
+     */
+    public class Worker {
+
+        private final String name;
+        private final long minChunk;
+        private final long maxChunk;
+        private long chunkSize;
+        private long chunks;
+        private long processed;
+        private long busyNanos;
+
+        private Worker(final String name, final long minChunk, final long maxChunk) {
+            this.name = name;
+            this.minChunk = minChunk;
+            this.maxChunk = maxChunk;
+            this.chunkSize = minChunk;
+        }
+
+        public long getProcessed() {
+            return processed;
+        }
+
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        /**
+         * Claims the next chunk into range as [start, end), returns false once the space is exhausted
+         */
+        public boolean claim(final long[] range) {
+            while (true) {
+                final long start = next.get();
+                if (start >= total) {
+                    return false;
+                }
+
+                final long tailShare = (total - start) / (2L * workers.size());
+                final long size = Math.max(minChunk, Math.min(chunkSize, tailShare));
+                final long end = Math.min(total, start + size);
+                if (next.compareAndSet(start, end)) {
+                    range[0] = start;
+                    range[1] = end;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Records a finished chunk and resizes the next ones to its throughput
+         */
+        public void completed(final long size, final long nanos) {
+            chunks++;
+            processed += size;
+            busyNanos += nanos;
+
+            final double perNano = (double) processed / Math.max(1, busyNanos);
+            chunkSize = Math.max(minChunk, Math.min(maxChunk, (long) (perNano * TARGET_CHUNK_NANOS)));
+        }
+    }
+}
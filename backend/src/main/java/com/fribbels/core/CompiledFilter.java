@@ -0,0 +1,196 @@
+package com.fribbels.core;
+
+import com.fribbels.enums.OptimizationColumn;
+import com.fribbels.request.OptimizationRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The min/max limits of an OptimizationRequest compiled into a compact array of the active (column, min, max)
+ * triples, checked against stat columns indexed by OptimizationColumn ordinal.
+ *
+ * Columns left at the default 0..Integer.MAX_VALUE limits only reject negative values, so they are folded into a
+ * single sign check instead of a pair of comparisons each. The active triples are reordered by how often they
+ * rejected, so the most selective limit is checked first. Instances keep mutable counters and are not thread safe,
+ * each worker uses its own copy.
+ */
+public class CompiledFilter {
+
+    private static final int REORDER_INTERVAL = 1 << 16;
+
+    private final int[] columns;
+    private final int[] mins;
+    private final int[] maxes;
+    private final long[] rejections;
+    private final int[] defaultColumns;
+    private int evaluations;
+
+    private CompiledFilter(final int[] columns, final int[] mins, final int[] maxes, final int[] defaultColumns) {
+        this.columns = columns;
+        this.mins = mins;
+        this.maxes = maxes;
+        this.rejections = new long[columns.length];
+        this.defaultColumns = defaultColumns;
+        this.evaluations = 0;
+    }
+
+    public static CompiledFilter compile(final OptimizationRequest request) {
+        final List<int[]> limits = new ArrayList<>();
+        addLimit(limits, OptimizationColumn.ATK, request.inputAtkMinLimit, request.inputAtkMaxLimit);
+        addLimit(limits, OptimizationColumn.HP, request.inputHpMinLimit, request.inputHpMaxLimit);
+        addLimit(limits, OptimizationColumn.DEF, request.inputDefMinLimit, request.inputDefMaxLimit);
+        addLimit(limits, OptimizationColumn.SPD, request.inputSpdMinLimit, request.inputSpdMaxLimit);
+        addLimit(limits, OptimizationColumn.CR, request.inputCrMinLimit, request.inputCrMaxLimit);
+        addLimit(limits, OptimizationColumn.CD, request.inputCdMinLimit, request.inputCdMaxLimit);
+        addLimit(limits, OptimizationColumn.EFF, request.inputEffMinLimit, request.inputEffMaxLimit);
+        addLimit(limits, OptimizationColumn.RES, request.inputResMinLimit, request.inputResMaxLimit);
+        addLimit(limits, OptimizationColumn.CP, request.inputMinCpLimit, request.inputMaxCpLimit);
+        addLimit(limits, OptimizationColumn.HPPS, request.inputMinHppsLimit, request.inputMaxHppsLimit);
+        addLimit(limits, OptimizationColumn.EHP, request.inputMinEhpLimit, request.inputMaxEhpLimit);
+        addLimit(limits, OptimizationColumn.EHPPS, request.inputMinEhppsLimit, request.inputMaxEhppsLimit);
+        addLimit(limits, OptimizationColumn.DMG, request.inputMinDmgLimit, request.inputMaxDmgLimit);
+        addLimit(limits, OptimizationColumn.DMGPS, request.inputMinDmgpsLimit, request.inputMaxDmgpsLimit);
+        addLimit(limits, OptimizationColumn.MCDMG, request.inputMinMcdmgLimit, request.inputMaxMcdmgLimit);
+        addLimit(limits, OptimizationColumn.MCDMGPS, request.inputMinMcdmgpsLimit, request.inputMaxMcdmgpsLimit);
+        addLimit(limits, OptimizationColumn.DMGH, request.inputMinDmgHLimit, request.inputMaxDmgHLimit);
+        addLimit(limits, OptimizationColumn.DMGD, request.inputMinDmgDLimit, request.inputMaxDmgDLimit);
+        addLimit(limits, OptimizationColumn.S1, request.inputMinS1Limit, request.inputMaxS1Limit);
+        addLimit(limits, OptimizationColumn.S2, request.inputMinS2Limit, request.inputMaxS2Limit);
+        addLimit(limits, OptimizationColumn.S3, request.inputMinS3Limit, request.inputMaxS3Limit);
+        addLimit(limits, OptimizationColumn.SCORE, request.inputMinScoreLimit, request.inputMaxScoreLimit);
+        addLimit(limits, OptimizationColumn.BS, request.inputMinBSLimit, request.inputMaxBSLimit);
+        addLimit(limits, OptimizationColumn.PRIORITY, request.inputMinPriorityLimit, request.inputMaxPriorityLimit);
+        addLimit(limits, OptimizationColumn.UPGRADES, request.inputMinUpgradesLimit, request.inputMaxUpgradesLimit);
+        addLimit(limits, OptimizationColumn.CONVERSIONS, request.inputMinConversionsLimit, request.inputMaxConversionsLimit);
+        addLimit(limits, OptimizationColumn.EQ, request.inputMinEquippedLimit, request.inputMaxEquippedLimit);
+
+        final List<int[]> active = new ArrayList<>();
+        final List<Integer> defaults = new ArrayList<>();
+        for (final int[] limit : limits) {
+            if (limit[1] == 0 && limit[2] == Integer.MAX_VALUE) {
+                defaults.add(limit[0]);
+            } else {
+                active.add(limit);
+            }
+        }
+
+        final int[] columns = new int[active.size()];
+        final int[] mins = new int[active.size()];
+        final int[] maxes = new int[active.size()];
+        for (int i = 0; i < active.size(); i++) {
+            columns[i] = active.get(i)[0];
+            mins[i] = active.get(i)[1];
+            maxes[i] = active.get(i)[2];
+        }
+
+        return new CompiledFilter(columns, mins, maxes, defaults.stream().mapToInt(x -> x).toArray());
+    }
+
+    private static void addLimit(final List<int[]> limits, final OptimizationColumn column, final int min, final int max) {
+        limits.add(new int[]{column.ordinal(), min, max});
+    }
+
+    /**
+     * Same limits, with fresh rejection counters
+     */
+    public CompiledFilter copy() {
+        return new CompiledFilter(columns.clone(), mins.clone(), maxes.clone(), defaultColumns);
+    }
+
+    public int size() {
+        return columns.length;
+    }
+
+    public boolean passes(final int[] values) {
+        if (++evaluations == REORDER_INTERVAL) {
+            reorder();
+        }
+
+        for (int i = 0; i < columns.length; i++) {
+            final int value = values[columns[i]];
+            if (value < mins[i] || value > maxes[i]) {
+                rejections[i]++;
+                return false;
+            }
+        }
+
+        int signs = 0;
+        for (final int column : defaultColumns) {
+            signs |= values[column];
+        }
+        return signs >= 0;
+    }
+
+    /**
+     * The passing rows among count rows of store from firstRow, as a bit mask, with values as scratch space. Checks
+     * one limit at a time across the rows, reading a contiguous run of each column, and stops once no row is left.
+     * Sign checks are skipped for columns the store has no negative values of.
+     */
+    public long passes(final ResultStore store, final int firstRow, final int count, final int[] values) {
+        evaluations += count;
+        if (evaluations >= REORDER_INTERVAL) {
+            reorder();
+        }
+
+        long pass = count == Long.SIZE ? -1L : (1L << count) - 1;
+        for (int i = 0; i < columns.length && pass != 0; i++) {
+            store.getColumn(columns[i], firstRow, count, values);
+            final int min = mins[i];
+            final int max = maxes[i];
+            long fail = 0;
+            for (int j = 0; j < count; j++) {
+                if (values[j] < min || values[j] > max) {
+                    fail |= 1L << j;
+                }
+            }
+            rejections[i] += Long.bitCount(pass & fail);
+            pass &= ~fail;
+        }
+
+        for (int i = 0; i < defaultColumns.length && pass != 0; i++) {
+            if (!store.mayBeNegative(firstRow, defaultColumns[i])) {
+                continue;
+            }
+
+            store.getColumn(defaultColumns[i], firstRow, count, values);
+            long negative = 0;
+            for (int j = 0; j < count; j++) {
+                negative |= (long) (values[j] >>> 31) << j;
+            }
+            pass &= ~negative;
+        }
+        return pass;
+    }
+
+    // Moves the limits that rejected the most to the front, then halves the counts so the order keeps adapting
+    private void reorder() {
+        evaluations = 0;
+        for (int i = 1; i < columns.length; i++) {
+            for (int j = i; j > 0 && rejections[j] > rejections[j - 1]; j--) {
+                swap(j, j - 1);
+            }
+        }
+        for (int i = 0; i < rejections.length; i++) {
+            rejections[i] >>= 1;
+        }
+    }
+
+    private void swap(final int a, final int b) {
+        final int column = columns[a];
+        columns[a] = columns[b];
+        columns[b] = column;
+
+        final int min = mins[a];
+        mins[a] = mins[b];
+        mins[b] = min;
+
+        final int max = maxes[a];
+        maxes[a] = maxes[b];
+        maxes[b] = max;
+
+        final long rejection = rejections[a];
+        rejections[a] = rejections[b];
+        rejections[b] = rejection;
+    }
+}
@@ -0,0 +1,243 @@
+package com.fribbels.core;
+
+import com.fribbels.model.Item;
+import com.fribbels.request.OptimizationRequest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Removes items that are Pareto dominated within their (gear, set, main stat type) group, since a dominated item can
+ * only produce builds that are no better than the same build with its dominating item.
+ *
+ * With stat priorities, only the stats that matter to the request are compared: the ones with a min/max limit,
+ * including the stats feeding a limited calculated stat (cp, ehp, dmg...), and the ones with a non zero priority.
+ * Without priorities every result column can still be sorted and filtered on in the grid, so every stat, score and
+ * priority is compared, and the upgrade, conversion and equipped counts have to be equal. Stats limited from both
+ * sides have to be equal.
+ */
+public class DominanceFilter {
+
+    private static final int HIGHER = 1;
+    private static final int LOWER = -1;
+    private static final int EQUAL = 0;
+
+    private static final int ATK = 0;
+    private static final int HP = 1;
+    private static final int DEF = 2;
+    private static final int CR = 6;
+    private static final int CD = 7;
+    private static final int EFF = 8;
+    private static final int RES = 9;
+    private static final int SPD = 10;
+    private static final int SCORE = 11;
+    private static final int PRIORITY = 13;
+    private static final int UPGRADES = 14;
+    private static final int CONVERSIONS = 15;
+    private static final int EQUIPPED = 16;
+
+    private static final int[] STATS = new int[]{ATK, HP, DEF, CR, CD, EFF, RES, SPD, SCORE, PRIORITY};
+    private static final int[] COUNTS = new int[]{UPGRADES, CONVERSIONS, EQUIPPED};
+    private static final int[] ALL_STATS = new int[]{ATK, HP, DEF, CR, CD, EFF, RES, SPD};
+    private static final int[] SKILL_STATS = new int[]{ATK, HP, DEF, CD, SPD};
+
+    // Accumulator index (flattened layout) of every compared stat, and whether higher/lower values are better
+    private final int[] indices;
+    private final int[] directions;
+
+    private DominanceFilter(final int[] indices, final int[] directions) {
+        this.indices = indices;
+        this.directions = directions;
+    }
+
+    public static DominanceFilter fromRequest(final OptimizationRequest request) {
+        final boolean[] higher = new boolean[EQUIPPED + 1];
+        final boolean[] lower = new boolean[EQUIPPED + 1];
+
+        addLimit(higher, lower, request.inputAtkMinLimit, request.inputAtkMaxLimit, ATK);
+        addLimit(higher, lower, request.inputHpMinLimit, request.inputHpMaxLimit, HP);
+        addLimit(higher, lower, request.inputDefMinLimit, request.inputDefMaxLimit, DEF);
+        addLimit(higher, lower, request.inputSpdMinLimit, request.inputSpdMaxLimit, SPD);
+        addLimit(higher, lower, request.inputCrMinLimit, request.inputCrMaxLimit, CR);
+        addLimit(higher, lower, request.inputCdMinLimit, request.inputCdMaxLimit, CD);
+        addLimit(higher, lower, request.inputEffMinLimit, request.inputEffMaxLimit, EFF);
+        addLimit(higher, lower, request.inputResMinLimit, request.inputResMaxLimit, RES);
+        addLimit(higher, lower, request.inputMinCpLimit, request.inputMaxCpLimit, ALL_STATS);
+        addLimit(higher, lower, request.inputMinHppsLimit, request.inputMaxHppsLimit, HP, SPD);
+        addLimit(higher, lower, request.inputMinEhpLimit, request.inputMaxEhpLimit, HP, DEF);
+        addLimit(higher, lower, request.inputMinEhppsLimit, request.inputMaxEhppsLimit, HP, DEF, SPD);
+        addLimit(higher, lower, request.inputMinDmgLimit, request.inputMaxDmgLimit, ATK, CR, CD);
+        addLimit(higher, lower, request.inputMinDmgpsLimit, request.inputMaxDmgpsLimit, ATK, CR, CD, SPD);
+        addLimit(higher, lower, request.inputMinMcdmgLimit, request.inputMaxMcdmgLimit, ATK, CD);
+        addLimit(higher, lower, request.inputMinMcdmgpsLimit, request.inputMaxMcdmgpsLimit, ATK, CD, SPD);
+        addLimit(higher, lower, request.inputMinDmgHLimit, request.inputMaxDmgHLimit, CD, HP);
+        addLimit(higher, lower, request.inputMinDmgDLimit, request.inputMaxDmgDLimit, CD, DEF);
+        addLimit(higher, lower, request.inputMinS1Limit, request.inputMaxS1Limit, SKILL_STATS);
+        addLimit(higher, lower, request.inputMinS2Limit, request.inputMaxS2Limit, SKILL_STATS);
+        addLimit(higher, lower, request.inputMinS3Limit, request.inputMaxS3Limit, SKILL_STATS);
+        addLimit(higher, lower, request.inputMinBSLimit, request.inputMaxBSLimit, ALL_STATS);
+        addLimit(higher, lower, request.inputMinScoreLimit, request.inputMaxScoreLimit, SCORE);
+        addLimit(higher, lower, request.inputMinPriorityLimit, request.inputMaxPriorityLimit, PRIORITY);
+        addLimit(higher, lower, request.inputMinUpgradesLimit, request.inputMaxUpgradesLimit, UPGRADES);
+        addLimit(higher, lower, request.inputMinConversionsLimit, request.inputMaxConversionsLimit, CONVERSIONS);
+        addLimit(higher, lower, request.inputMinEquippedLimit, request.inputMaxEquippedLimit, EQUIPPED);
+
+        addPriority(higher, lower, request.getInputAtkPriority(), ATK);
+        addPriority(higher, lower, request.getInputHpPriority(), HP);
+        addPriority(higher, lower, request.getInputDefPriority(), DEF);
+        addPriority(higher, lower, request.getInputSpdPriority(), SPD);
+        addPriority(higher, lower, request.getInputCrPriority(), CR);
+        addPriority(higher, lower, request.getInputCdPriority(), CD);
+        addPriority(higher, lower, request.getInputEffPriority(), EFF);
+        addPriority(higher, lower, request.getInputResPriority(), RES);
+
+        if (!hasPriority(request)) {
+            for (final int stat : STATS) {
+                higher[stat] = true;
+            }
+            for (final int count : COUNTS) {
+                higher[count] = true;
+                lower[count] = true;
+            }
+        }
+
+        final List<int[]> compared = new ArrayList<>();
+        for (int i = 0; i <= EQUIPPED; i++) {
+            if (higher[i] && lower[i]) {
+                compared.add(new int[]{i, EQUAL});
+            } else if (higher[i]) {
+                compared.add(new int[]{i, HIGHER});
+            } else if (lower[i]) {
+                compared.add(new int[]{i, LOWER});
+            }
+        }
+
+        final int[] indices = new int[compared.size()];
+        final int[] directions = new int[compared.size()];
+        for (int i = 0; i < compared.size(); i++) {
+            indices[i] = compared.get(i)[0];
+            directions[i] = compared.get(i)[1];
+        }
+
+        return new DominanceFilter(indices, directions);
+    }
+
+    private static boolean hasPriority(final OptimizationRequest request) {
+        final Integer[] priorities = new Integer[]{
+                request.getInputAtkPriority(),
+                request.getInputHpPriority(),
+                request.getInputDefPriority(),
+                request.getInputSpdPriority(),
+                request.getInputCrPriority(),
+                request.getInputCdPriority(),
+                request.getInputEffPriority(),
+                request.getInputResPriority()
+        };
+        for (final Integer priority : priorities) {
+            if (priority != null && priority != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addLimit(final boolean[] higher, final boolean[] lower, final int min, final int max, final int... stats) {
+        for (final int stat : stats) {
+            if (min > 0) {
+                higher[stat] = true;
+            }
+            if (max != Integer.MAX_VALUE) {
+                lower[stat] = true;
+            }
+        }
+    }
+
+    private static void addPriority(final boolean[] higher, final boolean[] lower, final Integer priority, final int stat) {
+        if (priority == null || priority == 0) {
+            return;
+        }
+        if (priority > 0) {
+            higher[stat] = true;
+        } else {
+            lower[stat] = true;
+        }
+    }
+
+    /**
+     * Returns the items that are not dominated, in their original order. Requires tempStatAccArr to be filled.
+     */
+    public List<Item> filter(final List<Item> items) {
+        final Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            final Item item = items.get(i);
+            final String key = item.getGear() + "|" + item.getSet() + "|" + item.getAugmentedStats().getMainType();
+            groups.computeIfAbsent(key, x -> new ArrayList<>()).add(i);
+        }
+
+        final boolean[] dominated = new boolean[items.size()];
+        for (final List<Integer> group : groups.values()) {
+            for (final int a : group) {
+                for (final int b : group) {
+                    if (a != b && dominates(items.get(b), b, items.get(a), a)) {
+                        dominated[a] = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        final List<Item> output = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            if (!dominated[i]) {
+                output.add(items.get(i));
+            }
+        }
+
+        return output;
+    }
+
+    // Whether b is at least as good as a in every compared stat, ties are broken by keeping the earlier item
+    private boolean dominates(final Item b, final int bIndex, final Item a, final int aIndex) {
+        boolean better = false;
+        for (int i = 0; i < indices.length; i++) {
+            final float aValue = getValue(a, indices[i]);
+            final float bValue = getValue(b, indices[i]);
+            final int direction = directions[i];
+
+            if (direction == EQUAL) {
+                if (aValue != bValue) {
+                    return false;
+                }
+            } else if (direction == HIGHER) {
+                if (bValue < aValue) {
+                    return false;
+                }
+                better |= bValue > aValue;
+            } else {
+                if (bValue > aValue) {
+                    return false;
+                }
+                better |= bValue < aValue;
+            }
+        }
+
+        return better || bIndex < aIndex;
+    }
+
+    private static float getValue(final Item item, final int index) {
+        switch (index) {
+            case PRIORITY:
+                return item.priority;
+            case UPGRADES:
+                return item.upgradeable;
+            case CONVERSIONS:
+                return item.convertable;
+            case EQUIPPED:
+                return item.alreadyEquipped;
+            default:
+                return item.tempStatAccArr[index];
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.fribbels.core;
+
+import com.fribbels.model.HeroStats;
+import com.fribbels.model.Item;
+import lombok.SneakyThrows;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ResultStore that keeps its rows in a memory mapped temp file instead of the heap, so the maximum results are limited
+ * by disk space rather than by -Xmx. Each chunk is a fixed size region of the file with the same layout as a heap
+ * chunk, the packed keys followed by each column's ints, and is mapped when its first row is written. The OS pages the
+ * file in and out as rows are read, the heap only holds the chunk mappings.
+ *
+ * Once closed and released by its readers, the chunks are unmapped explicitly and the file is deleted. Waiting for
+ * the garbage collector to unmap them would keep the file locked on Windows, where a mapped file can't be deleted.
+ *
+ * The sorted orders and filtered rows of the results are MappedRowIndex files next to the rows, see OptimizationDb.
+ * They are deleted with the rows, if they weren't closed before.
+ */
+public class MappedResultStore extends ResultStore {
+
+    private static final long CHUNK_BYTES = (long) CHUNK_SIZE * ROW_BYTES;
+
+    private static class MappedChunk {
+        private final MappedByteBuffer buffer;
+        private final LongBuffer keys;
+        private final IntBuffer columns;
+        // Bit per column that holds a negative value in this chunk, same as the heap chunks
+        private volatile long negativeColumns;
+
+        private MappedChunk(final MappedByteBuffer buffer) {
+            this.buffer = buffer;
+            buffer.order(ByteOrder.nativeOrder());
+            keys = buffer.asLongBuffer();
+            buffer.position(CHUNK_SIZE * Long.BYTES);
+            columns = buffer.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+    }
+
+    private final MappedChunk[] mappedChunks;
+    private final File file;
+    private final FileChannel channel;
+    private final List<MappedRowIndex> indices = new ArrayList<>();
+
+    @SneakyThrows
+    public MappedResultStore(final int capacity,
+                             final Item[][] itemsBySlot,
+                             final StatCalculator statCalculator,
+                             final HeroStats base) {
+        super(capacity, itemsBySlot, statCalculator, base);
+        this.mappedChunks = new MappedChunk[(capacity + CHUNK_SIZE - 1) >>> CHUNK_BITS];
+        this.file = File.createTempFile("results", ".bin");
+        this.file.deleteOnExit();
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+
+        System.out.println("Mapping up to " + capacity + " results to " + file);
+    }
+
+    @Override
+    public void set(final int row, final long key, final int[] columns) {
+        final MappedChunk chunk = getOrMapChunk(row >>> CHUNK_BITS);
+        final int offset = row & CHUNK_MASK;
+
+        chunk.keys.put(offset, key);
+        for (int column = 0; column < columns.length; column++) {
+            chunk.columns.put(column * CHUNK_SIZE + offset, columns[column]);
+            if (columns[column] < 0) {
+                markNegative(chunk, column);
+            }
+        }
+    }
+
+    private static void markNegative(final MappedChunk chunk, final int column) {
+        synchronized (chunk) {
+            chunk.negativeColumns |= 1L << column;
+        }
+    }
+
+    @SneakyThrows
+    private MappedChunk getOrMapChunk(final int index) {
+        final MappedChunk chunk = mappedChunks[index];
+        if (chunk != null) {
+            return chunk;
+        }
+
+        synchronized (mappedChunks) {
+            if (mappedChunks[index] == null) {
+                mappedChunks[index] = new MappedChunk(channel.map(FileChannel.MapMode.READ_WRITE, index * CHUNK_BYTES, CHUNK_BYTES));
+            }
+            return mappedChunks[index];
+        }
+    }
+
+    @Override
+    public long getKey(final int row) {
+        return mappedChunks[row >>> CHUNK_BITS].keys.get(row & CHUNK_MASK);
+    }
+
+    @Override
+    public int get(final int row, final int column) {
+        return mappedChunks[row >>> CHUNK_BITS].columns.get(column * CHUNK_SIZE + (row & CHUNK_MASK));
+    }
+
+    @Override
+    public void getColumns(final int row, final int[] output) {
+        final MappedChunk chunk = mappedChunks[row >>> CHUNK_BITS];
+        final int offset = row & CHUNK_MASK;
+        for (int column = 0; column < output.length; column++) {
+            output[column] = chunk.columns.get(column * CHUNK_SIZE + offset);
+        }
+    }
+
+    @Override
+    public boolean mayBeNegative(final int row, final int column) {
+        return (mappedChunks[row >>> CHUNK_BITS].negativeColumns & (1L << column)) != 0;
+    }
+
+    @Override
+    public void getColumn(final int column, final int firstRow, final int count, final int[] output) {
+        final IntBuffer columns = mappedChunks[firstRow >>> CHUNK_BITS].columns.duplicate();
+        columns.position(column * CHUNK_SIZE + (firstRow & CHUNK_MASK));
+        columns.get(output, 0, count);
+    }
+
+    @Override
+    public RowIndex newIndex(final int size) {
+        final MappedRowIndex index = new MappedRowIndex(size, file.getParentFile());
+        synchronized (indices) {
+            indices.removeIf(MappedRowIndex::isDisposed);
+            indices.add(index);
+        }
+        return index;
+    }
+
+    @Override
+    public boolean isMapped() {
+        return true;
+    }
+
+    @Override
+    @SneakyThrows
+    protected void dispose() {
+        synchronized (indices) {
+            indices.forEach(MappedRowIndex::dispose);
+            indices.clear();
+        }
+
+        synchronized (mappedChunks) {
+            for (int i = 0; i < mappedChunks.length; i++) {
+                if (mappedChunks[i] != null) {
+                    unmap(mappedChunks[i].buffer);
+                    mappedChunks[i] = null;
+                }
+            }
+        }
+
+        channel.close();
+        if (file.delete()) {
+            System.out.println("Deleted " + file);
+        } else {
+            System.out.println("Unable to delete " + file + ", deleting on exit");
+        }
+    }
+
+    /**
+     * Frees a mapping now instead of when it is garbage collected. There is no public API for this, so it goes through
+     * Unsafe.invokeCleaner on Java 9+ and the buffer's cleaner on Java 8.
+     */
+    static void unmap(final MappedByteBuffer buffer) {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (final NoSuchMethodException e) {
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                final Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (final Exception e) {
+            System.out.println("Unable to unmap results: " + e);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.fribbels.core;
+
+import lombok.SneakyThrows;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * RowIndex in a memory mapped temp file, mapped in segments of SEGMENT_SIZE rows so indices past 2GB still fit. Like
+ * the MappedResultStore it belongs to, the segments are unmapped and the file deleted once it is closed and released.
+ */
+public class MappedRowIndex extends RowIndex {
+
+    private static final int SEGMENT_BITS = 26;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] buffers;
+    private final IntBuffer[] segments;
+    private boolean disposed = false;
+
+    @SneakyThrows
+    public MappedRowIndex(final int size, final File directory) {
+        super(size, null);
+        this.file = File.createTempFile("results", ".idx", directory);
+        this.file.deleteOnExit();
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+
+        final int count = (size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS;
+        this.buffers = new MappedByteBuffer[count];
+        this.segments = new IntBuffer[count];
+        for (int i = 0; i < count; i++) {
+            final long rows = Math.min(SEGMENT_SIZE, size - (long) i * SEGMENT_SIZE);
+            buffers[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * SEGMENT_SIZE * Integer.BYTES, rows * Integer.BYTES);
+            segments[i] = buffers[i].order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+    }
+
+    @Override
+    public int get(final int position) {
+        return segments[position >>> SEGMENT_BITS].get(position & SEGMENT_MASK);
+    }
+
+    @Override
+    public void set(final int position, final int row) {
+        segments[position >>> SEGMENT_BITS].put(position & SEGMENT_MASK, row);
+    }
+
+    /**
+     * Also called by the MappedResultStore when it is disposed, for indices that were never closed
+     */
+    @Override
+    @SneakyThrows
+    protected synchronized void dispose() {
+        if (disposed) {
+            return;
+        }
+        disposed = true;
+
+        for (int i = 0; i < buffers.length; i++) {
+            MappedResultStore.unmap(buffers[i]);
+            buffers[i] = null;
+            segments[i] = null;
+        }
+        channel.close();
+        if (!file.delete()) {
+            System.out.println("Unable to delete " + file + ", deleting on exit");
+        }
+    }
+
+    synchronized boolean isDisposed() {
+        return disposed;
+    }
+}
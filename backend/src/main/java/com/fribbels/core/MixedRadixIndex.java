@@ -0,0 +1,72 @@
+package com.fribbels.core;
+
+/**
+ * Maps a flat permutation index to its (w, h, a, n, r, b) digits, boots varying fastest. The strides of each digit
+ * are computed once per search, so a decode is one division per digit instead of the chained divisions of the
+ * partial products, and the Odometer walks increasing indices with only int adds until a digit carries.
+ */
+public class MixedRadixIndex {
+
+    private final long[] sizes;
+    private final long[] strides;
+
+    public MixedRadixIndex(final long... sizes) {
+        this.sizes = sizes.clone();
+        this.strides = new long[sizes.length];
+
+        long stride = 1;
+        for (int d = sizes.length - 1; d >= 0; d--) {
+            strides[d] = stride;
+            stride *= sizes[d];
+        }
+    }
+
+    public void decode(final long index, final int[] digits) {
+        long remainder = index;
+        for (int d = 0; d < strides.length - 1; d++) {
+            final long digit = remainder / strides[d];
+            digits[d] = (int) digit;
+            remainder -= digit * strides[d];
+        }
+        digits[strides.length - 1] = (int) remainder;
+    }
+
+    public Odometer odometer() {
+        return new Odometer();
+    }
+
+    /**
+     * Decoded position that moves to a later index by carrying the difference through the digits, and only decodes
+     * from scratch when asked to move backwards. Not thread safe.
+     */
+    public class Odometer {
+
+        private final int[] digits = new int[sizes.length];
+        private long index = 0;
+
+        public int[] moveTo(final long target) {
+            final long delta = target - index;
+            if (delta < 0) {
+                decode(target, digits);
+            } else if (delta > 0) {
+                advance(delta);
+            }
+            index = target;
+            return digits;
+        }
+
+        private void advance(final long delta) {
+            long carry = delta;
+            for (int d = sizes.length - 1; d >= 0 && carry > 0; d--) {
+                final long sum = digits[d] + carry;
+                if (sum < sizes[d]) {
+                    digits[d] = (int) sum;
+                    return;
+                }
+
+                carry = sum / sizes[d];
+                digits[d] = (int) (sum - carry * sizes[d]);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.fribbels.core;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Recursively halves [start, end) until it is at most leafSize wide, so idle fork/join workers can steal the other
+ * half. Used to spread the permutation space across all cores.
+ */
+public class OptimizationRangeTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    public interface RangeConsumer {
+        void accept(long start, long end);
+    }
+
+    private final long start;
+    private final long end;
+    private final long leafSize;
+    private final RangeConsumer consumer;
+
+    public OptimizationRangeTask(final long start, final long end, final long leafSize, final RangeConsumer consumer) {
+        this.start = start;
+        this.end = end;
+        this.leafSize = Math.max(1, leafSize);
+        this.consumer = consumer;
+    }
+
+    @Override
+    protected void compute() {
+        if (end - start <= leafSize) {
+            consumer.accept(start, end);
+            return;
+        }
+
+        final long mid = start + (end - start) / 2;
+        invokeAll(
+                new OptimizationRangeTask(start, mid, leafSize, consumer),
+                new OptimizationRangeTask(mid, end, leafSize, consumer));
+    }
+}
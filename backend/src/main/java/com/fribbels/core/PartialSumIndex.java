@@ -0,0 +1,168 @@
+package com.fribbels.core;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Meet in the middle index over the necklace x ring x boots half of the search. Holds the half's partial sums of one
+ * stat in sorted order, so for a given weapon + helmet + armor prefix only the range of the other half that can still
+ * satisfy that stat's limits has to be evaluated.
+ */
+public class PartialSumIndex {
+
+    private static final int SAMPLE_SIZE = 1024;
+
+    private final int statIndex;
+    // Sorted partial sums, and the flat (n * rSize + r) * bSize + b index of each one
+    private final float[] keys;
+    private final int[] indices;
+
+    private PartialSumIndex(final int statIndex, final float[] keys, final int[] indices) {
+        this.statIndex = statIndex;
+        this.keys = keys;
+        this.indices = indices;
+    }
+
+    public static PartialSumIndex build(final int statIndex,
+                                        final float[] necklaceAccs,
+                                        final float[] ringAccs,
+                                        final float[] bootAccs,
+                                        final int argCount) {
+        final int nSize = necklaceAccs.length / argCount;
+        final int rSize = ringAccs.length / argCount;
+        final int bSize = bootAccs.length / argCount;
+
+        // Sort (key, index) pairs packed into longs, with the float bits mapped to an order preserving int
+        final long[] packed = new long[nSize * rSize * bSize];
+        int count = 0;
+        for (int n = 0; n < nSize; n++) {
+            for (int r = 0; r < rSize; r++) {
+                final float nr = necklaceAccs[n * argCount + statIndex] + ringAccs[r * argCount + statIndex];
+                for (int b = 0; b < bSize; b++) {
+                    final float sum = nr + bootAccs[b * argCount + statIndex];
+                    packed[count] = ((long) sortableBits(sum) << 32) | (count & 0xFFFFFFFFL);
+                    count++;
+                }
+            }
+        }
+
+        Arrays.parallelSort(packed);
+
+        final float[] keys = new float[count];
+        final int[] indices = new int[count];
+        for (int i = 0; i < count; i++) {
+            final int index = (int) packed[i];
+            final int b = index % bSize;
+            final int r = index / bSize % rSize;
+            final int n = index / bSize / rSize;
+            keys[i] = necklaceAccs[n * argCount + statIndex] + ringAccs[r * argCount + statIndex] + bootAccs[b * argCount + statIndex];
+            indices[i] = index;
+        }
+
+        return new PartialSumIndex(statIndex, keys, indices);
+    }
+
+    /**
+     * Picks the bounded stat that rejects the largest share of the necklace x ring x boots half, estimated on samples
+     * of both halves. Returns -1 when no bounded stat is expected to reject more than maxPassRate of it.
+     */
+    public static int selectStat(final StatBounds statBounds,
+                                 final float[][] prefixSums,
+                                 final float[] necklaceAccs,
+                                 final float[] ringAccs,
+                                 final float[] bootAccs,
+                                 final int argCount,
+                                 final float maxPassRate) {
+        final int nSize = necklaceAccs.length / argCount;
+        final int rSize = ringAccs.length / argCount;
+        final int bSize = bootAccs.length / argCount;
+        if (statBounds.isEmpty() || prefixSums.length == 0 || nSize * rSize * bSize == 0) {
+            return -1;
+        }
+
+        final Random random = new Random(0);
+        final int[][] samples = new int[SAMPLE_SIZE][];
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            samples[i] = new int[]{random.nextInt(nSize), random.nextInt(rSize), random.nextInt(bSize)};
+        }
+
+        int bestStat = -1;
+        float bestPassRate = maxPassRate;
+        for (int i = 0; i < statBounds.size(); i++) {
+            final int statIndex = statBounds.getIndex(i);
+            long passed = 0;
+
+            for (final float[] sums : prefixSums) {
+                final float min = statBounds.minRemaining(i, sums);
+                final float max = statBounds.maxRemaining(i, sums);
+                for (final int[] sample : samples) {
+                    final float sum = necklaceAccs[sample[0] * argCount + statIndex]
+                            + ringAccs[sample[1] * argCount + statIndex]
+                            + bootAccs[sample[2] * argCount + statIndex];
+                    if (sum >= min && sum <= max) {
+                        passed++;
+                    }
+                }
+            }
+
+            final float passRate = (float) passed / (prefixSums.length * SAMPLE_SIZE);
+            if (passRate < bestPassRate) {
+                bestPassRate = passRate;
+                bestStat = i;
+            }
+        }
+
+        return bestStat;
+    }
+
+    private static int sortableBits(final float value) {
+        final int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+    }
+
+    public int getStatIndex() {
+        return statIndex;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public int getIndex(final int position) {
+        return indices[position];
+    }
+
+    /**
+     * First position whose key is >= value
+     */
+    public int lowerBound(final float value) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (keys[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * First position whose key is > value
+     */
+    public int upperBound(final float value) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (keys[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
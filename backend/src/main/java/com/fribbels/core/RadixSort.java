@@ -0,0 +1,110 @@
+package com.fribbels.core;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Stable least significant digit radix sort of int keys with int payloads, 8 bits per pass. Each pass histograms and
+ * scatters contiguous blocks of the input in parallel, every block writing its keys to offsets computed from the
+ * histograms of the blocks before it. Passes where every key has the same digit are skipped, so columns with small
+ * non negative values usually take one or two passes instead of four.
+ */
+public class RadixSort {
+
+    private static final int BITS = 8;
+    private static final int RADIX = 1 << BITS;
+    private static final int MASK = RADIX - 1;
+    private static final int MIN_BLOCK_SIZE = 1 << 16;
+
+    /**
+     * Orders values by ascending signed key, keeping the input order of equal keys. Both input arrays are used as
+     * scratch space, the sorted values are returned.
+     */
+    public static int[] sort(final int[] keys, final int[] values) {
+        final int size = keys.length;
+        final int blocks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 4, size / MIN_BLOCK_SIZE));
+        final int blockSize = (size + blocks - 1) / blocks;
+
+        int[] keysIn = keys;
+        int[] valuesIn = values;
+        int[] keysOut = new int[size];
+        int[] valuesOut = new int[size];
+
+        // Flipping the sign bit makes the unsigned digit order match the signed key order
+        parallel(blocks, block -> {
+            final int end = Math.min(size, (block + 1) * blockSize);
+            for (int i = block * blockSize; i < end; i++) {
+                keys[i] ^= Integer.MIN_VALUE;
+            }
+        });
+
+        final int[][] offsets = new int[blocks][RADIX];
+        for (int shift = 0; shift < Integer.SIZE; shift += BITS) {
+            final int passShift = shift;
+            final int[] passKeys = keysIn;
+            parallel(blocks, block -> {
+                final int[] counts = offsets[block];
+                Arrays.fill(counts, 0);
+                final int end = Math.min(size, (block + 1) * blockSize);
+                for (int i = block * blockSize; i < end; i++) {
+                    counts[(passKeys[i] >>> passShift) & MASK]++;
+                }
+            });
+
+            if (isSingleDigit(offsets, size)) {
+                continue;
+            }
+
+            int offset = 0;
+            for (int digit = 0; digit < RADIX; digit++) {
+                for (int block = 0; block < blocks; block++) {
+                    final int count = offsets[block][digit];
+                    offsets[block][digit] = offset;
+                    offset += count;
+                }
+            }
+
+            final int[] passValues = valuesIn;
+            final int[] passKeysOut = keysOut;
+            final int[] passValuesOut = valuesOut;
+            parallel(blocks, block -> {
+                final int[] blockOffsets = offsets[block];
+                final int end = Math.min(size, (block + 1) * blockSize);
+                for (int i = block * blockSize; i < end; i++) {
+                    final int position = blockOffsets[(passKeys[i] >>> passShift) & MASK]++;
+                    passKeysOut[position] = passKeys[i];
+                    passValuesOut[position] = passValues[i];
+                }
+            });
+
+            keysOut = keysIn;
+            valuesOut = valuesIn;
+            keysIn = passKeysOut;
+            valuesIn = passValuesOut;
+        }
+
+        return valuesIn;
+    }
+
+    private static boolean isSingleDigit(final int[][] counts, final int size) {
+        for (int digit = 0; digit < RADIX; digit++) {
+            int total = 0;
+            for (final int[] blockCounts : counts) {
+                total += blockCounts[digit];
+            }
+            if (total != 0) {
+                return total == size;
+            }
+        }
+        return true;
+    }
+
+    private static void parallel(final int blocks, final IntConsumer task) {
+        if (blocks == 1) {
+            task.accept(0);
+        } else {
+            IntStream.range(0, blocks).parallel().forEach(task);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.fribbels.core;
+
+import com.fribbels.model.HeroStats;
+import com.fribbels.model.Item;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import static com.fribbels.handler.OptimizationRequestHandler.SET_COUNT;
+
+/**
+ * Compact storage for optimization results. Each row is a packed 64 bit key of its six item indices plus its
+ * OptimizationColumn values as primitive ints, instead of a HeroStats object. HeroStats are only built on demand for
+ * the rows that are actually requested.
+ *
+ * The key is the mixed radix permutation index over (weapon, helmet, armor, necklace, ring, boots) with boots as the
+ * lowest digit, the same index the search iterates over. Rows are kept in column major chunks that are allocated as
+ * they are first written, so memory grows with the number of results rather than with the capacity. Rows can be
+ * written concurrently as long as each index is only written once.
+ */
+public class ResultStore extends SharedStorage {
+
+    static final int CHUNK_BITS = 16;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    static final int ROW_BYTES = Long.BYTES + Integer.BYTES * StatCalculator.COLUMN_COUNT;
+
+    private static class Chunk {
+        private final long[] keys = new long[CHUNK_SIZE];
+        private final int[] columns = new int[StatCalculator.COLUMN_COUNT * CHUNK_SIZE];
+        // Bit per column that holds a negative value in this chunk, so sign checks can skip the others
+        private volatile long negativeColumns;
+    }
+
+    private final int capacity;
+    private final Chunk[] chunks;
+    private final Item[][] itemsBySlot;
+    private final StatCalculator statCalculator;
+    private final HeroStats base;
+
+    public ResultStore(final int capacity,
+                       final Item[][] itemsBySlot,
+                       final StatCalculator statCalculator,
+                       final HeroStats base) {
+        this.capacity = capacity;
+        this.chunks = new Chunk[(capacity + CHUNK_SIZE - 1) >>> CHUNK_BITS];
+        this.itemsBySlot = itemsBySlot;
+        this.statCalculator = statCalculator;
+        this.base = base;
+    }
+
+    public static ResultStore empty() {
+        return new ResultStore(0, new Item[0][], null, null);
+    }
+
+    /**
+     * A heap store, or a MappedResultStore when a full store of capacity rows would take more than half the heap
+     */
+    public static ResultStore create(final int capacity,
+                                     final Item[][] itemsBySlot,
+                                     final StatCalculator statCalculator,
+                                     final HeroStats base) {
+        if ((long) capacity * ROW_BYTES > Runtime.getRuntime().maxMemory() / 2) {
+            return new MappedResultStore(capacity, itemsBySlot, statCalculator, base);
+        }
+        return new ResultStore(capacity, itemsBySlot, statCalculator, base);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void set(final int row, final long key, final int[] columns) {
+        final Chunk chunk = getOrCreateChunk(row >>> CHUNK_BITS);
+        final int offset = row & CHUNK_MASK;
+
+        chunk.keys[offset] = key;
+        for (int column = 0; column < columns.length; column++) {
+            chunk.columns[column * CHUNK_SIZE + offset] = columns[column];
+            if (columns[column] < 0) {
+                markNegative(chunk, column);
+            }
+        }
+    }
+
+    private static void markNegative(final Chunk chunk, final int column) {
+        synchronized (chunk) {
+            chunk.negativeColumns |= 1L << column;
+        }
+    }
+
+    private Chunk getOrCreateChunk(final int index) {
+        final Chunk chunk = chunks[index];
+        if (chunk != null) {
+            return chunk;
+        }
+
+        synchronized (chunks) {
+            if (chunks[index] == null) {
+                chunks[index] = new Chunk();
+            }
+            return chunks[index];
+        }
+    }
+
+    public long getKey(final int row) {
+        return chunks[row >>> CHUNK_BITS].keys[row & CHUNK_MASK];
+    }
+
+    public int get(final int row, final int column) {
+        return chunks[row >>> CHUNK_BITS].columns[column * CHUNK_SIZE + (row & CHUNK_MASK)];
+    }
+
+    public void getColumns(final int row, final int[] output) {
+        final Chunk chunk = chunks[row >>> CHUNK_BITS];
+        final int offset = row & CHUNK_MASK;
+        for (int column = 0; column < output.length; column++) {
+            output[column] = chunk.columns[column * CHUNK_SIZE + offset];
+        }
+    }
+
+    /**
+     * Whether any row in the chunk of row has a negative value in column
+     */
+    public boolean mayBeNegative(final int row, final int column) {
+        return (chunks[row >>> CHUNK_BITS].negativeColumns & (1L << column)) != 0;
+    }
+
+    /**
+     * Copies one column of count rows from firstRow, which must not cross a chunk, so any aligned run of up to 64 rows
+     */
+    public void getColumn(final int column, final int firstRow, final int count, final int[] output) {
+        System.arraycopy(chunks[firstRow >>> CHUNK_BITS].columns, column * CHUNK_SIZE + (firstRow & CHUNK_MASK), output, 0, count);
+    }
+
+    /**
+     * An index of size rows kept alongside the results, on the heap here
+     */
+    public RowIndex newIndex(final int size) {
+        return new RowIndex(new int[size]);
+    }
+
+    /**
+     * Whether the rows are kept outside the heap, so anything sized by the row count should be too
+     */
+    public boolean isMapped() {
+        return false;
+    }
+
+    /**
+     * Decodes a permutation index into one item index per slot
+     */
+    public static void decodeKey(long key, final Item[][] itemsBySlot, final int[] output) {
+        for (int slot = itemsBySlot.length - 1; slot >= 0; slot--) {
+            output[slot] = (int) (key % itemsBySlot[slot].length);
+            key /= itemsBySlot[slot].length;
+        }
+    }
+
+    public Item[] getItems(final int row) {
+        final int[] indices = new int[itemsBySlot.length];
+        decodeKey(getKey(row), itemsBySlot, indices);
+
+        final Item[] items = new Item[itemsBySlot.length];
+        for (int slot = 0; slot < itemsBySlot.length; slot++) {
+            items[slot] = itemsBySlot[slot][indices[slot]];
+        }
+        return items;
+    }
+
+    public HeroStats materialize(final int row) {
+        final int[] columns = new int[StatCalculator.COLUMN_COUNT];
+        getColumns(row, columns);
+        final Item[] items = getItems(row);
+
+        final int[] sets = new int[SET_COUNT];
+        for (final Item item : items) {
+            sets[item.set.index]++;
+        }
+
+        final HeroStats result = statCalculator.buildHeroStats(base, columns);
+        result.setSets(sets);
+        result.setId("" + row);
+        result.setItems(ImmutableList.of(
+                items[0].getId(),
+                items[1].getId(),
+                items[2].getId(),
+                items[3].getId(),
+                items[4].getId(),
+                items[5].getId()
+        ));
+        result.setModIds(ImmutableList.of(
+                items[0].getModId(),
+                items[1].getModId(),
+                items[2].getModId(),
+                items[3].getModId(),
+                items[4].getModId(),
+                items[5].getModId()
+        ));
+        result.setMods(Lists.newArrayList(
+                items[0].getMod(),
+                items[1].getMod(),
+                items[2].getMod(),
+                items[3].getMod(),
+                items[4].getMod(),
+                items[5].getMod()
+        ));
+
+        return result;
+    }
+}
@@ -0,0 +1,33 @@
+package com.fribbels.core;
+
+/**
+ * A list of result rows, like a sorted order or the rows that pass a filter. Heap indices are an int[], a
+ * MappedRowIndex keeps them in a file next to a MappedResultStore's rows. Rows at distinct positions can be written
+ * concurrently.
+ */
+public class RowIndex extends SharedStorage {
+
+    private final int size;
+    private final int[] rows;
+
+    public RowIndex(final int[] rows) {
+        this(rows.length, rows);
+    }
+
+    protected RowIndex(final int size, final int[] rows) {
+        this.size = size;
+        this.rows = rows;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(final int position) {
+        return rows[position];
+    }
+
+    public void set(final int position, final int row) {
+        rows[position] = row;
+    }
+}
@@ -0,0 +1,260 @@
+package com.fribbels.core;
+
+import com.fribbels.enums.Set;
+import com.fribbels.request.OptimizationRequest;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.fribbels.handler.OptimizationRequestHandler.SET_COUNT;
+
+/**
+ * Which combinations of six item sets satisfy a request's set format. Validity only depends on how many items of each
+ * set a build has, so the table has one bit per multiset of six sets, C(23, 6) = 100947 bits, instead of one entry
+ * per ordered 18^6 set index.
+ *
+ * A multiset's bit is found by its rank in the combinatorial number system: with the six set indices sorted
+ * s0 <= .. <= s5, c_i = s_i + i is strictly increasing and the rank is the sum of C(c_i, i + 1). The most recently
+ * used MAX_CACHED tables are cached by set format and selected sets, so repeated requests reuse them.
+ */
+public class SetValidityTable {
+
+    private static final int PIECES = 6;
+
+    private static final int[][] BINOMIAL = new int[SET_COUNT + PIECES][PIECES + 1];
+    private static final int MULTISET_COUNT;
+
+    static {
+        for (int n = 0; n < BINOMIAL.length; n++) {
+            BINOMIAL[n][0] = 1;
+            for (int k = 1; k <= Math.min(n, PIECES); k++) {
+                BINOMIAL[n][k] = BINOMIAL[n - 1][k - 1] + (k <= n - 1 ? BINOMIAL[n - 1][k] : 0);
+            }
+        }
+        MULTISET_COUNT = BINOMIAL[SET_COUNT + PIECES - 1][PIECES];
+    }
+
+    // BINOMIAL flattened with PIECES + 1 columns, for kernels that rank their six sets themselves
+    private static final int[] FLATTENED_BINOMIAL = Arrays.stream(BINOMIAL)
+            .flatMapToInt(Arrays::stream)
+            .toArray();
+
+    private static final int MAX_CACHED = 16;
+
+    private static final Map<String, SetValidityTable> CACHE = new LinkedHashMap<String, SetValidityTable>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, SetValidityTable> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    private final boolean allValid;
+    private final long[] valid;
+    // The same bits in 32 bit words, for the GPU kernels
+    private int[] validWords;
+
+    private SetValidityTable(final boolean allValid) {
+        this.allValid = allValid;
+        this.valid = new long[(MULTISET_COUNT + 63) >>> 6];
+    }
+
+    public static SetValidityTable forRequest(final OptimizationRequest request) {
+        final int setFormat = request.getSetFormat();
+        final String key = setFormat
+                + "|" + key(request.getInputSetsOne())
+                + "|" + key(request.getInputSetsTwo())
+                + "|" + key(request.getInputSetsThree());
+
+        synchronized (CACHE) {
+            final SetValidityTable cached = CACHE.get(key);
+            if (cached != null) {
+                return cached;
+            }
+
+            final SetValidityTable table = build(setFormat,
+                    orEmpty(request.getInputSetsOne()),
+                    orEmpty(request.getInputSetsTwo()),
+                    orEmpty(request.getInputSetsThree()));
+            CACHE.put(key, table);
+            return table;
+        }
+    }
+
+    private static String key(final List<Set> sets) {
+        if (sets == null) {
+            return "";
+        }
+        return sets.stream()
+                .map(Set::name)
+                .collect(Collectors.joining(","));
+    }
+
+    private static List<Set> orEmpty(final List<Set> sets) {
+        return sets == null ? Arrays.asList() : sets;
+    }
+
+    private static SetValidityTable build(final int setFormat,
+                                          final List<Set> inputSets1,
+                                          final List<Set> inputSets2,
+                                          final List<Set> inputSets3) {
+        if (setFormat == 0) {
+            // [0][0][0] All valid
+            return new SetValidityTable(true);
+        }
+
+        final SetValidityTable table = new SetValidityTable(false);
+        if (setFormat == 1) {
+            // [4][2][0]
+            for (final Set set1 : inputSets1) {
+                for (final Set set2 : inputSets2) {
+                    table.addRequirement(0, set1, set2);
+                }
+            }
+        } else if (setFormat == 2) {
+            // [4][0][0]
+            for (final Set set1 : inputSets1) {
+                table.addRequirement(2, set1);
+            }
+        } else if (setFormat == 3) {
+            // [2][0][0]
+            for (final Set set1 : inputSets1) {
+                table.addRequirement(4, set1);
+            }
+        } else if (setFormat == 4) {
+            // [2][2][0]
+            for (final Set set1 : inputSets1) {
+                for (final Set set2 : inputSets2) {
+                    table.addRequirement(2, set1, set2);
+                }
+            }
+        } else if (setFormat == 5) {
+            // [2][2][2]
+            for (final Set set1 : inputSets1) {
+                for (final Set set2 : inputSets2) {
+                    for (final Set set3 : inputSets3) {
+                        table.addRequirement(0, set1, set2, set3);
+                    }
+                }
+            }
+        } else {
+            throw new RuntimeException("Invalid Set Format " + setFormat);
+        }
+
+        return table;
+    }
+
+    /**
+     * Marks the multisets matching the layout [set pieces..., free pieces...], where the free pieces are any set and
+     * take positions [6 - free, 6). When the sets do not fill 6 - free pieces, like a 4 piece set in a 2 piece slot,
+     * the layout is longer than a build and every six piece subset of it is accepted.
+     */
+    private void addRequirement(final int free, final Set... sets) {
+        final int[] indices = Arrays.stream(sets)
+                .flatMapToInt(set -> Arrays.stream(set.getIndices()))
+                .toArray();
+        final int length = indices.length + free;
+        final int[] counters = new int[SET_COUNT];
+
+        if (length < PIECES) {
+            for (final int index : indices) {
+                counters[index]++;
+            }
+            addFree(counters, PIECES - indices.length, 0, 0);
+            return;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (i < PIECES - free || i >= PIECES) {
+                counters[i < indices.length ? indices[i] : 0]++;
+            }
+        }
+        addFree(counters, free, 0, length - PIECES);
+    }
+
+    private void addFree(final int[] counters, final int free, final int fromSet, final int excess) {
+        if (free == 0) {
+            removeExcess(counters, excess, 0);
+            return;
+        }
+
+        for (int set = fromSet; set < SET_COUNT; set++) {
+            counters[set]++;
+            addFree(counters, free - 1, set, excess);
+            counters[set]--;
+        }
+    }
+
+    private void removeExcess(final int[] counters, final int excess, final int fromSet) {
+        if (excess == 0) {
+            final int rank = rank(counters);
+            valid[rank >>> 6] |= 1L << rank;
+            return;
+        }
+
+        for (int set = fromSet; set < SET_COUNT; set++) {
+            if (counters[set] > 0) {
+                counters[set]--;
+                removeExcess(counters, excess - 1, set);
+                counters[set]++;
+            }
+        }
+    }
+
+    /**
+     * The number of distinct multisets of six sets, and the exclusive upper bound of rank()
+     */
+    public static int multisetCount() {
+        return MULTISET_COUNT;
+    }
+
+    public static int[] flattenedBinomial() {
+        return FLATTENED_BINOMIAL;
+    }
+
+    /**
+     * The combinatorial number system rank of the multiset with these set counters, which sum to six
+     */
+    public static int rank(final int[] counters) {
+        int rank = 0;
+        int i = 0;
+        for (int set = 0; set < SET_COUNT; set++) {
+            for (int j = 0; j < counters[set]; j++) {
+                rank += BINOMIAL[set + i][i + 1];
+                i++;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * The validity bits as 32 bit words indexed by rank(), every bit set when all multisets are valid. Built on first
+     * use and kept with the cached table.
+     */
+    public synchronized int[] toIntBits() {
+        if (validWords == null) {
+            final int[] words = new int[(MULTISET_COUNT + 31) >>> 5];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = allValid ? -1 : (int) (valid[i >>> 1] >>> ((i & 1) << 5));
+            }
+            validWords = words;
+        }
+        return validWords;
+    }
+
+    /**
+     * Whether a build with these set counters, which sum to six, satisfies the set format
+     */
+    public boolean isValid(final int[] setCounters) {
+        if (allValid) {
+            return true;
+        }
+
+        final int rank = rank(setCounters);
+        return (valid[rank >>> 6] & (1L << rank)) != 0;
+    }
+}
@@ -0,0 +1,51 @@
+package com.fribbels.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Storage shared between readers that may race with it being closed, like page requests and background sorts. Readers
+ * hold it with acquire and release, and it is disposed once it is closed and the last reader has released it.
+ */
+public class SharedStorage {
+
+    private static final int CLOSED = 1 << 30;
+
+    // Readers currently holding the storage open, plus CLOSED once it is closed
+    private final AtomicInteger users = new AtomicInteger();
+
+    /**
+     * Keeps the storage readable until release, or returns false when it is already closed
+     */
+    public boolean acquire() {
+        while (true) {
+            final int state = users.get();
+            if (state >= CLOSED) {
+                return false;
+            }
+            if (users.compareAndSet(state, state + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (users.decrementAndGet() == CLOSED) {
+            dispose();
+        }
+    }
+
+    /**
+     * Refuses new readers and frees the storage once the current readers have released it. Closing again does nothing.
+     */
+    public void close() {
+        if (users.getAndUpdate(state -> state | CLOSED) == 0) {
+            dispose();
+        }
+    }
+
+    /**
+     * Releases any storage held outside the heap, called once after closing when no reader is left
+     */
+    protected void dispose() {
+    }
+}
@@ -0,0 +1,177 @@
+package com.fribbels.core;
+
+import com.fribbels.model.Hero;
+import com.fribbels.request.OptimizationRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per slot upper/lower bounds of the filtered stats, used to prune partial builds that can no longer pass the filter
+ * regardless of the remaining gear. Bounds are kept in the flattened accumulator layout (see flattenAccArrs).
+ */
+public class StatBounds {
+
+    // Absorbs float rounding and int truncation differences against StatCalculator
+    private static final float SLACK = 1;
+
+    private final int argCount;
+    private final int[] indices;
+    private final float[] multipliers;
+    private final float[] flats;
+    private final float[] minSetBonuses;
+    private final float[] maxSetBonuses;
+    private final float[] minLimits;
+    private final float[] maxLimits;
+
+    // [slot][stat] sum of the per slot minimum/maximum over the slots after `slot`
+    private final float[][] remainingMins;
+    private final float[][] remainingMaxes;
+
+    public StatBounds(final OptimizationRequest request,
+                      final float[][] flattenedAccs,
+                      final int argCount,
+                      final Hero hero,
+                      final float bonusMaxAtk,
+                      final float bonusMaxHp,
+                      final float bonusMaxDef,
+                      final float atkSetBonus,
+                      final float hpSetBonus,
+                      final float defSetBonus,
+                      final float speedSetBonus,
+                      final float revengeSetBonus) {
+        this.argCount = argCount;
+
+        final List<float[]> stats = new ArrayList<>();
+        // {index, multiplier, flat, min set bonus, max set bonus, min limit, max limit}
+        addStat(stats, 0, bonusMaxAtk, 0, 0, atkSetBonus, request.inputAtkMinLimit, request.inputAtkMaxLimit);
+        addStat(stats, 1, bonusMaxHp, 0, hpSetBonus * -3 / 2, hpSetBonus * 3, request.inputHpMinLimit, request.inputHpMaxLimit);
+        addStat(stats, 2, bonusMaxDef, 0, 0, defSetBonus * 3, request.inputDefMinLimit, request.inputDefMaxLimit);
+        addStat(stats, 6, 1, hero.bonusCr + hero.aeiCr, 0, 36, request.inputCrMinLimit, request.inputCrMaxLimit);
+        addStat(stats, 7, 1, hero.bonusCd + hero.aeiCd, 0, 60, request.inputCdMinLimit, request.inputCdMaxLimit);
+        addStat(stats, 8, 1, hero.bonusEff + hero.aeiEff, 0, 60, request.inputEffMinLimit, request.inputEffMaxLimit);
+        addStat(stats, 9, 1, hero.bonusRes + hero.aeiRes, 0, 60, request.inputResMinLimit, request.inputResMaxLimit);
+        addStat(stats, 10, 1, hero.bonusSpeed + hero.aeiSpeed, 0, Math.max(speedSetBonus, revengeSetBonus), request.inputSpdMinLimit, request.inputSpdMaxLimit);
+        addStat(stats, 11, 1, 0, 0, 0, request.inputMinScoreLimit, request.inputMaxScoreLimit);
+        addStat(stats, 13, 1, 0, 0, 0, request.inputMinPriorityLimit, request.inputMaxPriorityLimit);
+        addStat(stats, 14, 1, 0, 0, 0, request.inputMinUpgradesLimit, request.inputMaxUpgradesLimit);
+        addStat(stats, 15, 1, 0, 0, 0, request.inputMinConversionsLimit, request.inputMaxConversionsLimit);
+        addStat(stats, 16, 1, 0, 0, 0, request.inputMinEquippedLimit, request.inputMaxEquippedLimit);
+
+        final int size = stats.size();
+        indices = new int[size];
+        multipliers = new float[size];
+        flats = new float[size];
+        minSetBonuses = new float[size];
+        maxSetBonuses = new float[size];
+        minLimits = new float[size];
+        maxLimits = new float[size];
+
+        for (int i = 0; i < size; i++) {
+            final float[] stat = stats.get(i);
+            indices[i] = (int) stat[0];
+            multipliers[i] = stat[1];
+            flats[i] = stat[2];
+            minSetBonuses[i] = stat[3];
+            maxSetBonuses[i] = stat[4];
+            minLimits[i] = stat[5];
+            maxLimits[i] = stat[6];
+        }
+
+        final int slots = flattenedAccs.length;
+        remainingMins = new float[slots + 1][size];
+        remainingMaxes = new float[slots + 1][size];
+
+        for (int slot = slots - 1; slot >= 0; slot--) {
+            final float[] accs = flattenedAccs[slot];
+            final int count = accs.length / argCount;
+
+            for (int i = 0; i < size; i++) {
+                float min = Float.MAX_VALUE;
+                float max = -Float.MAX_VALUE;
+                for (int j = 0; j < count; j++) {
+                    final float value = accs[j * argCount + indices[i]];
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+                if (count == 0) {
+                    min = 0;
+                    max = 0;
+                }
+
+                remainingMins[slot][i] = remainingMins[slot + 1][i] + min;
+                remainingMaxes[slot][i] = remainingMaxes[slot + 1][i] + max;
+            }
+        }
+    }
+
+    private static void addStat(final List<float[]> stats,
+                                final int index,
+                                final float multiplier,
+                                final float flat,
+                                final float minSetBonus,
+                                final float maxSetBonus,
+                                final int minLimit,
+                                final int maxLimit) {
+        if (minLimit <= 0 && maxLimit == Integer.MAX_VALUE) {
+            return;
+        }
+        if (multiplier <= 0) {
+            return;
+        }
+
+        stats.add(new float[]{index, multiplier, flat, minSetBonus, maxSetBonus, minLimit, maxLimit});
+    }
+
+    public boolean isEmpty() {
+        return indices.length == 0;
+    }
+
+    public int size() {
+        return indices.length;
+    }
+
+    /**
+     * Accumulator index (flattened layout) of the i-th bounded stat
+     */
+    public int getIndex(final int i) {
+        return indices[i];
+    }
+
+    /**
+     * Smallest sum of the remaining slots for the i-th bounded stat that can still pass, given the sums so far
+     */
+    public float minRemaining(final int i, final float[] sums) {
+        return (minLimits[i] - SLACK - flats[i]) / multipliers[i] - maxSetBonuses[i] - sums[indices[i]];
+    }
+
+    /**
+     * Largest sum of the remaining slots for the i-th bounded stat that can still pass, given the sums so far
+     */
+    public float maxRemaining(final int i, final float[] sums) {
+        return (maxLimits[i] + SLACK - flats[i]) / multipliers[i] - minSetBonuses[i] - sums[indices[i]];
+    }
+
+    /**
+     * Whether any completion of a build whose first `nextSlot` slots sum to `sums` (see StatCalculator.newStatSums)
+     * can still pass the filter.
+     */
+    public boolean canPass(final float[] sums, final int nextSlot) {
+        final float[] mins = remainingMins[nextSlot];
+        final float[] maxes = remainingMaxes[nextSlot];
+
+        for (int i = 0; i < indices.length; i++) {
+            final float upper = (sums[indices[i]] + maxes[i] + maxSetBonuses[i]) * multipliers[i] + flats[i];
+            if (upper < minLimits[i] - SLACK) {
+                return false;
+            }
+
+            final float lower = (sums[indices[i]] + mins[i] + minSetBonuses[i]) * multipliers[i] + flats[i];
+            if (lower > maxLimits[i] + SLACK) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
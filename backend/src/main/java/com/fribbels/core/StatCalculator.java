@@ -1,10 +1,12 @@
 package com.fribbels.core;
 
+import com.fribbels.enums.OptimizationColumn;
 import com.fribbels.enums.StatType;
 import com.fribbels.model.*;
 
 import java.util.Map;
 
+import static com.fribbels.handler.OptimizationRequestHandler.ARG_COUNT;
 import static com.fribbels.handler.OptimizationRequestHandler.SET_COUNT;
 
 public class StatCalculator {
@@ -13,6 +15,8 @@ public class StatCalculator {
     public static boolean SETTING_PEN_SET = true;
     public static int SETTING_PEN_DEFENSE = 1500;
 
+    public static final int COLUMN_COUNT = OptimizationColumn.values().length;
+
     private float atkSetBonus;
     private float hpSetBonus;
     private float defSetBonus;
@@ -76,32 +80,55 @@ public class StatCalculator {
                                                      final int conversions,
                                                      final int alreadyEquipped,
                                                      final int priority) {
-        final float[] accs0 = accs[0];
-        final float[] accs1 = accs[1];
-        final float[] accs2 = accs[2];
-        final float[] accs3 = accs[3];
-        final float[] accs4 = accs[4];
-        final float[] accs5 = accs[5];
-
-        final float atk =  ((bonusBaseAtk  + accs0[0]+accs1[0]+accs2[0]+accs3[0]+accs4[0]+accs5[0] + (sets[2] > 3 ? atkSetBonus : 0)) * bonusMaxAtk);
-        final float hp =   ((bonusBaseHp   + accs0[1]+accs1[1]+accs2[1]+accs3[1]+accs4[1]+accs5[1] + (sets[0] > 1 ? sets[0] / 2 * hpSetBonus : 0) + (sets[17] > 1 ? sets[17] / 2 * hpSetBonus/-2 : 0)) * bonusMaxHp);
-        final float def =  ((bonusBaseDef  + accs0[2]+accs1[2]+accs2[2]+accs3[2]+accs4[2]+accs5[2] + (sets[1] > 1 ? sets[1] / 2 * defSetBonus : 0)) * bonusMaxDef);
-        final float cr =         (base.cr  + accs0[6]+accs1[6]+accs2[6]+accs3[6]+accs4[6]+accs5[6] + (sets[4] > 1 ? sets[4] / 2 * 12 : 0) + hero.bonusCr + hero.aeiCr);
-        final int cd =   (int) (base.cd    + accs0[7]+accs1[7]+accs2[7]+accs3[7]+accs4[7]+accs5[7] + (sets[6] > 3 ? 60 : 0) + hero.bonusCd + hero.aeiCd);
-        final int eff =  (int) (base.eff   + accs0[8]+accs1[8]+accs2[8]+accs3[8]+accs4[8]+accs5[8] + (sets[5] > 1 ? sets[5] / 2 * 20 : 0) + hero.bonusEff + hero.aeiEff);
-        final int res =  (int) (base.res   + accs0[9]+accs1[9]+accs2[9]+accs3[9]+accs4[9]+accs5[9] + (sets[9] > 1 ? sets[9] / 2 * 20 : 0) + hero.bonusRes + hero.aeiRes);
-        final int spd =  (int) (base.spd   + accs0[10]+accs1[10]+accs2[10]+accs3[10]+accs4[10]+accs5[10] + (sets[3] > 3 ? speedSetBonus : 0) + (sets[14] > 3 ? revengeSetBonus : 0) + hero.bonusSpeed + hero.aeiSpeed);
-
-//        final int atk = (int) (((base.atk + mapAccumulatorArrsToFloat(0, accs)  + (sets[2] > 1 ? sets[2] / 4 * 0.35f * base.atk : 0) + base.atk * hero.bonusAtkPercent / 100f) + hero.bonusAtk) * (1 + base.bonusMaxAtkPercent/100f));
-//        final int hp = (int) (((base.hp   + mapAccumulatorArrsToFloat(1, accs)  + (sets[0] > 1 ? sets[0] / 2 * 0.15f * base.hp : 0) + base.hp * hero.bonusHpPercent / 100f) + hero.bonusHp) * (1 + base.bonusMaxHpPercent/100f));
-//        final int def = (int) (((base.def + mapAccumulatorArrsToFloat(2, accs)  + (sets[1] > 1 ? sets[1] / 2 * 0.15f * base.def : 0) + base.def * hero.bonusDefPercent / 100f) + hero.bonusDef) * (1 + base.bonusMaxDefPercent/100f));
-//        final float cr = (base.cr + mapAccumulatorArrsToFloat(6, accs)  + (sets[4] > 1 ? sets[4] / 2 * 12 : 0)) + hero.bonusCr;
-//        final int cd = (int) (base.cd   + mapAccumulatorArrsToFloat(7, accs)  + (sets[6] > 1 ? sets[6] / 4 * 40 : 0)) + (int) hero.bonusCd;
-//        final int eff = (int) (base.eff + mapAccumulatorArrsToFloat(8, accs)  + (sets[5] > 1 ? sets[5] / 2 * 20 : 0)) + (int) hero.bonusEff;
-//        final int res = (int) (base.res + mapAccumulatorArrsToFloat(9, accs)  + (sets[9] > 1 ? sets[9] / 2 * 20 : 0)) + (int) hero.bonusRes;
-//        final int spd = (int) (base.spd + mapAccumulatorArrsToFloat(10, accs) + (sets[3] > 1 ? sets[3] / 4 * 0.25f * base.spd : 0) + (sets[14] > 1 ? sets[14] / 4 * 0.1f * base.spd : 0)) + hero.bonusSpeed;
-
-        //        int dac = base.getDac() + sets[10] / 2 * 4;
+        final float[] sums = newStatSums(base);
+        for (final float[] acc : accs) {
+            for (int i = 0; i < 12; i++) {
+                sums[i] += acc[i];
+            }
+        }
+        sums[13] = priority;
+        sums[14] = upgrades;
+        sums[15] = conversions;
+        sums[16] = alreadyEquipped;
+
+        final int[] columns = new int[COLUMN_COUNT];
+        fillColumns(base, sums, sets, hero, columns);
+        return buildHeroStats(base, columns);
+    }
+
+    /**
+     * Starting sums for the flattened accumulator layout, with the base stats already applied.
+     * Items are added on top of this in slot order so the float rounding matches the per hero calculation.
+     */
+    public float[] newStatSums(final HeroStats base) {
+        final float[] sums = new float[ARG_COUNT];
+        sums[0] = bonusBaseAtk;
+        sums[1] = bonusBaseHp;
+        sums[2] = bonusBaseDef;
+        sums[6] = base.cr;
+        sums[7] = base.cd;
+        sums[8] = base.eff;
+        sums[9] = base.res;
+        sums[10] = base.spd;
+        return sums;
+    }
+
+    /**
+     * Allocation free stat calculation, writes every stat into columns indexed by OptimizationColumn ordinal.
+     */
+    public void fillColumns(final HeroStats base,
+                            final float[] sums,
+                            final int[] sets,
+                            final Hero hero,
+                            final int[] columns) {
+        final float atk =  ((sums[0] + (sets[2] > 3 ? atkSetBonus : 0)) * bonusMaxAtk);
+        final float hp =   ((sums[1] + (sets[0] > 1 ? sets[0] / 2 * hpSetBonus : 0) + (sets[17] > 1 ? sets[17] / 2 * hpSetBonus/-2 : 0)) * bonusMaxHp);
+        final float def =  ((sums[2] + (sets[1] > 1 ? sets[1] / 2 * defSetBonus : 0)) * bonusMaxDef);
+        final float cr =         (sums[6] + (sets[4] > 1 ? sets[4] / 2 * 12 : 0) + hero.bonusCr + hero.aeiCr);
+        final int cd =   (int) (sums[7] + (sets[6] > 3 ? 60 : 0) + hero.bonusCd + hero.aeiCd);
+        final int eff =  (int) (sums[8] + (sets[5] > 1 ? sets[5] / 2 * 20 : 0) + hero.bonusEff + hero.aeiEff);
+        final int res =  (int) (sums[9] + (sets[9] > 1 ? sets[9] / 2 * 20 : 0) + hero.bonusRes + hero.aeiRes);
+        final int spd =  (int) (sums[10] + (sets[3] > 3 ? speedSetBonus : 0) + (sets[14] > 3 ? revengeSetBonus : 0) + hero.bonusSpeed + hero.aeiSpeed);
 
         final float critRate;
         if (cr > 100) {
@@ -160,7 +187,7 @@ flat2mod -> ddj
         final int s2 = getSkillValue(multis, 1, atk, def, hp, spd, critDamage, pctDmgMultiplier, penSetOn);
         final int s3 = getSkillValue(multis, 2, atk, def, hp, spd, critDamage, pctDmgMultiplier, penSetOn);
 //
-        final int score = (int) (accs0[11]+accs1[11]+accs2[11]+accs3[11]+accs4[11]+accs5[11]);
+        final int score = (int) sums[11];
 
 //        final ArtifactStats artifactStats = Main.artifactStatsDb.getArtifactStats(hero.artifactName, Integer.parseInt(hero.getArtifactLevel()));
 //        final float artifactHealth = artifactStats.getHealth();
@@ -186,8 +213,66 @@ flat2mod -> ddj
 
         final int bs = (int) (bsHp + bsAtk + bsDef + bsCr*1.6f + bsCd*1.14f + bsEff + bsRes + bsSpd*2);
 
-        return new HeroStats((int)atk, (int)hp, (int)def, (int) cr, cd, eff, res, 0, spd, cp, ehp, hpps, ehpps,
-                dmg, dmgps, mcdmg, mcdmgps, dmgh, dmgd, s1, s2, s3, upgrades, conversions, alreadyEquipped, score, bs, priority,
+        columns[OptimizationColumn.ATK.ordinal()] = (int) atk;
+        columns[OptimizationColumn.HP.ordinal()] = (int) hp;
+        columns[OptimizationColumn.DEF.ordinal()] = (int) def;
+        columns[OptimizationColumn.SPD.ordinal()] = spd;
+        columns[OptimizationColumn.CR.ordinal()] = (int) cr;
+        columns[OptimizationColumn.CD.ordinal()] = cd;
+        columns[OptimizationColumn.EFF.ordinal()] = eff;
+        columns[OptimizationColumn.RES.ordinal()] = res;
+        columns[OptimizationColumn.DAC.ordinal()] = 0;
+        columns[OptimizationColumn.CP.ordinal()] = cp;
+        columns[OptimizationColumn.HPPS.ordinal()] = hpps;
+        columns[OptimizationColumn.EHP.ordinal()] = ehp;
+        columns[OptimizationColumn.EHPPS.ordinal()] = ehpps;
+        columns[OptimizationColumn.DMG.ordinal()] = dmg;
+        columns[OptimizationColumn.DMGPS.ordinal()] = dmgps;
+        columns[OptimizationColumn.MCDMG.ordinal()] = mcdmg;
+        columns[OptimizationColumn.MCDMGPS.ordinal()] = mcdmgps;
+        columns[OptimizationColumn.DMGH.ordinal()] = dmgh;
+        columns[OptimizationColumn.DMGD.ordinal()] = dmgd;
+        columns[OptimizationColumn.S1.ordinal()] = s1;
+        columns[OptimizationColumn.S2.ordinal()] = s2;
+        columns[OptimizationColumn.S3.ordinal()] = s3;
+        columns[OptimizationColumn.UPGRADES.ordinal()] = (int) sums[14];
+        columns[OptimizationColumn.CONVERSIONS.ordinal()] = (int) sums[15];
+        columns[OptimizationColumn.EQ.ordinal()] = (int) sums[16];
+        columns[OptimizationColumn.SCORE.ordinal()] = score;
+        columns[OptimizationColumn.BS.ordinal()] = bs;
+        columns[OptimizationColumn.PRIORITY.ordinal()] = (int) sums[13];
+    }
+
+    public HeroStats buildHeroStats(final HeroStats base, final int[] columns) {
+        return new HeroStats(
+                columns[OptimizationColumn.ATK.ordinal()],
+                columns[OptimizationColumn.HP.ordinal()],
+                columns[OptimizationColumn.DEF.ordinal()],
+                columns[OptimizationColumn.CR.ordinal()],
+                columns[OptimizationColumn.CD.ordinal()],
+                columns[OptimizationColumn.EFF.ordinal()],
+                columns[OptimizationColumn.RES.ordinal()],
+                columns[OptimizationColumn.DAC.ordinal()],
+                columns[OptimizationColumn.SPD.ordinal()],
+                columns[OptimizationColumn.CP.ordinal()],
+                columns[OptimizationColumn.EHP.ordinal()],
+                columns[OptimizationColumn.HPPS.ordinal()],
+                columns[OptimizationColumn.EHPPS.ordinal()],
+                columns[OptimizationColumn.DMG.ordinal()],
+                columns[OptimizationColumn.DMGPS.ordinal()],
+                columns[OptimizationColumn.MCDMG.ordinal()],
+                columns[OptimizationColumn.MCDMGPS.ordinal()],
+                columns[OptimizationColumn.DMGH.ordinal()],
+                columns[OptimizationColumn.DMGD.ordinal()],
+                columns[OptimizationColumn.S1.ordinal()],
+                columns[OptimizationColumn.S2.ordinal()],
+                columns[OptimizationColumn.S3.ordinal()],
+                columns[OptimizationColumn.UPGRADES.ordinal()],
+                columns[OptimizationColumn.CONVERSIONS.ordinal()],
+                columns[OptimizationColumn.EQ.ordinal()],
+                columns[OptimizationColumn.SCORE.ordinal()],
+                columns[OptimizationColumn.BS.ordinal()],
+                columns[OptimizationColumn.PRIORITY.ordinal()],
                 base.bonusStats, null, null, null, null, null, null, null);
     }
 
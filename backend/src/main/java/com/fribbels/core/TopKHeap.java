@@ -0,0 +1,136 @@
+package com.fribbels.core;
+
+import java.util.Collection;
+
+/**
+ * Bounded min heap of (value, permutation index) pairs that keeps the K highest values seen. Not thread safe, each
+ * worker keeps its own heap and they are merged once the search is done. Ties are broken by the lower permutation
+ * index so the kept set does not depend on the order workers visit permutations in.
+ */
+public class TopKHeap {
+
+    private final int capacity;
+    private final int[] values;
+    private final long[] keys;
+    private int size;
+
+    public TopKHeap(final int capacity) {
+        this.capacity = capacity;
+        this.values = new int[capacity];
+        this.keys = new long[capacity];
+        this.size = 0;
+    }
+
+    public static TopKHeap merge(final Collection<TopKHeap> heaps, final int capacity) {
+        final TopKHeap output = new TopKHeap(capacity);
+        for (final TopKHeap heap : heaps) {
+            for (int i = 0; i < heap.size; i++) {
+                output.offer(heap.values[i], heap.keys[i]);
+            }
+        }
+        return output;
+    }
+
+    public void offer(final int value, final long key) {
+        if (capacity == 0) {
+            return;
+        }
+
+        if (size < capacity) {
+            values[size] = value;
+            keys[size] = key;
+            siftUp(size);
+            size++;
+            return;
+        }
+
+        if (isWorse(value, key, values[0], keys[0])) {
+            return;
+        }
+
+        values[0] = value;
+        keys[0] = key;
+        siftDown(0);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The lowest kept value once the heap is full, nothing below it can get in. Integer.MIN_VALUE until then.
+     */
+    public int threshold() {
+        return capacity == 0 || size < capacity ? Integer.MIN_VALUE : values[0];
+    }
+
+    /**
+     * Permutation indices ordered from the highest value to the lowest
+     */
+    public long[] getSortedKeys() {
+        final int[] heapValues = values.clone();
+        final long[] heapKeys = keys.clone();
+        final int heapSize = size;
+
+        final long[] output = new long[size];
+        for (int i = size - 1; i >= 0; i--) {
+            output[i] = keys[0];
+            size--;
+            values[0] = values[size];
+            keys[0] = keys[size];
+            siftDown(0);
+        }
+
+        System.arraycopy(heapValues, 0, values, 0, heapSize);
+        System.arraycopy(heapKeys, 0, keys, 0, heapSize);
+        size = heapSize;
+
+        return output;
+    }
+
+    private static boolean isWorse(final int value, final long key, final int otherValue, final long otherKey) {
+        return value < otherValue || (value == otherValue && key > otherKey);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            final int parent = (i - 1) / 2;
+            if (!isWorse(values[i], keys[i], values[parent], keys[parent])) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            final int left = 2 * i + 1;
+            final int right = left + 1;
+            int worst = i;
+
+            if (left < size && isWorse(values[left], keys[left], values[worst], keys[worst])) {
+                worst = left;
+            }
+            if (right < size && isWorse(values[right], keys[right], values[worst], keys[worst])) {
+                worst = right;
+            }
+            if (worst == i) {
+                return;
+            }
+
+            swap(i, worst);
+            i = worst;
+        }
+    }
+
+    private void swap(final int a, final int b) {
+        final int value = values[a];
+        values[a] = values[b];
+        values[b] = value;
+
+        final long key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+    }
+}
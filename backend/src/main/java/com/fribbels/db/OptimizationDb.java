@@ -1,21 +1,56 @@
 package com.fribbels.db;
 
-import com.fribbels.core.Sorter;
+import com.fribbels.core.RadixSort;
+import com.fribbels.core.ResultStore;
+import com.fribbels.core.RowIndex;
 import com.fribbels.enums.OptimizationColumn;
 import com.fribbels.enums.SortOrder;
 import com.fribbels.model.HeroStats;
-import org.apache.commons.lang3.ArrayUtils;
+import lombok.SneakyThrows;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 public class OptimizationDb {
 
-    private HeroStats[] resultHeroStats;
-    private int[] filteredIndices;
-    private Set<String> filteredIds;
+    // Sorted orders kept per execution, the least recently used one is dropped first
+    private static final int MAX_SORTED_COLUMNS = 8;
+    // Rows of all the sorted orders kept per execution, so very large result sets keep fewer orders
+    private static final long SORTED_ROWS_BUDGET = 64L << 20;
+    // Columns sorted in the background as soon as results are set, the ones sorted by most often so far
+    private static final int PRECOMPUTED_COLUMNS = 3;
+    // Rows a MappedResultStore sorts on the heap at a time before merging, 16MB of arrays while sorting
+    private static final int SORT_RUN_SIZE = 1 << 20;
+    // Sorted rows scanned per parallel task when collecting the filtered rows
+    private static final int FILTER_BLOCK_SIZE = 1 << 16;
+
+    private static final Map<OptimizationColumn, AtomicLong> COLUMN_USAGE = new ConcurrentHashMap<>();
+    private static final ExecutorService PRECOMPUTE_SERVICE = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "OptimizationDb sort");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ResultStore results;
+    // Ascending row order of each column sorted so far, built once per column and shared with the background sorts
+    private Map<OptimizationColumn, SortTask> sortedRowsByColumn;
+    // Rows in the current column's ascending order, held open while it is current. Null until sorted, a position is
+    // then its row. Descending orders read it back to front.
+    private RowIndex sortedRows;
+    // The sorted rows restricted to the filtered rows
+    private RowIndex filteredIndices;
+    // One bit per result row, set for the rows that pass the filter
+    private long[] filteredRows;
+    private Map<Integer, String> properties;
     private long maximum;
     private long filteredMaximum;
     private boolean filtered = false;
@@ -23,65 +58,409 @@ public class OptimizationDb {
     private OptimizationColumn column;
     private SortOrder order;
 
+    /**
+     * A column's sort that closes its rows once the order is dropped from the cache, whether it had finished by then
+     * or finishes later
+     */
+    private static class SortTask extends FutureTask<RowIndex> {
+
+        private volatile boolean retired = false;
+
+        private SortTask(final Callable<RowIndex> sort) {
+            super(sort);
+        }
+
+        private void retire() {
+            retired = true;
+            if (isDone()) {
+                closeRows();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (retired) {
+                closeRows();
+            }
+        }
+
+        private void closeRows() {
+            try {
+                get().close();
+            } catch (final Exception e) {
+                // Nothing to close for a sort that failed
+            }
+        }
+    }
+
     public OptimizationDb() {
-        resultHeroStats = new HeroStats[]{};
-        filteredIndices = new int[]{};
-        filteredIds = new HashSet<>();
+        results = ResultStore.empty();
+        sortedRowsByColumn = newSortedRowsCache(MAX_SORTED_COLUMNS);
+        sortedRows = null;
+        filteredIndices = new RowIndex(new int[]{});
+        filteredRows = new long[]{};
+        properties = new HashMap<>();
         maximum = 0;
         filteredMaximum = 0;
         filtered = false;
     }
 
-    public void setResultHeroes(final HeroStats[] newResultHeroStats, final long newMaximum) {
-        resultHeroStats = ArrayUtils.subarray(newResultHeroStats, 0, Integer.parseInt("" + newMaximum));
+    public void setResults(final ResultStore newResults, final long newMaximum) {
+        synchronized (sortedRowsByColumn) {
+            sortedRowsByColumn.values().forEach(SortTask::retire);
+            sortedRowsByColumn.clear();
+        }
+        if (sortedRows != null) {
+            sortedRows.release();
+        }
+        filteredIndices.close();
+        if (results != newResults) {
+            results.close();
+        }
+
+        results = newResults;
         maximum = newMaximum;
+        sortedRowsByColumn = newSortedRowsCache(maxSortedColumns());
+        sortedRows = null;
         filteredMaximum = 0;
-        filteredIds = new HashSet<>();
-        filteredIndices = new int[]{};
+        filteredRows = new long[]{};
+        filteredIndices = new RowIndex(new int[]{});
+        properties = new HashMap<>();
         filtered = false;
+        column = null;
+        order = null;
+
+        precompute();
+    }
+
+    /**
+     * Releases the results, for executions that are deleted
+     */
+    public void close() {
+        setResults(ResultStore.empty(), 0);
+    }
+
+    private int maxSortedColumns() {
+        return (int) Math.max(1, Math.min(MAX_SORTED_COLUMNS, SORTED_ROWS_BUDGET / Math.max(1, maximum)));
+    }
+
+    private static Map<OptimizationColumn, SortTask> newSortedRowsCache(final int maxColumns) {
+        return new LinkedHashMap<OptimizationColumn, SortTask>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<OptimizationColumn, SortTask> eldest) {
+                if (size() > maxColumns) {
+                    eldest.getValue().retire();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private void precompute() {
+        if (maximum == 0) {
+            return;
+        }
+
+        final Map<OptimizationColumn, SortTask> cache = sortedRowsByColumn;
+        final ResultStore store = results;
+        final int size = (int) maximum;
+        COLUMN_USAGE.entrySet()
+                .stream()
+                .sorted(Comparator.comparingLong((Map.Entry<OptimizationColumn, AtomicLong> entry) -> entry.getValue().get()).reversed())
+                .limit(Math.min(PRECOMPUTED_COLUMNS, maxSortedColumns() - 1))
+                .forEach(entry -> PRECOMPUTE_SERVICE.execute(() -> getSortedRows(cache, store, size, entry.getKey())));
+    }
+
+    /**
+     * The rows of store in ascending column order, ties by row. Sorted by the first caller, any concurrent callers for
+     * the same column wait for that sort instead of starting their own.
+     */
+    @SneakyThrows
+    private static RowIndex getSortedRows(final Map<OptimizationColumn, SortTask> cache,
+                                          final ResultStore store,
+                                          final int size,
+                                          final OptimizationColumn column) {
+        final SortTask task;
+        synchronized (cache) {
+            task = cache.computeIfAbsent(column, x -> new SortTask(() -> sortRows(store, size, column)));
+        }
+
+        task.run();
+        return task.get();
+    }
+
+    /**
+     * Sorts a heap store on the heap, which takes 16 bytes per row while sorting. A MappedResultStore is sorted in
+     * runs of SORT_RUN_SIZE rows that are merged into a MappedRowIndex, so only a run's arrays are on the heap.
+     */
+    private static RowIndex sortRows(final ResultStore store, final int size, final OptimizationColumn column) {
+        final long start = System.currentTimeMillis();
+        if (!store.acquire()) {
+            return new RowIndex(new int[]{});
+        }
+
+        try {
+            final RowIndex sorted = store.isMapped() && size > SORT_RUN_SIZE
+                    ? sortInRuns(store, size, column.ordinal())
+                    : new RowIndex(sortRun(store, 0, size, column.ordinal(), null));
+            System.out.println("Sorted " + size + " rows by " + column + " in " + (System.currentTimeMillis() - start) + "ms");
+            return sorted;
+        } finally {
+            store.release();
+        }
+    }
+
+    /**
+     * The count rows from first in ascending column order, ties by row. Their keys go to sortedKeys if it isn't null.
+     */
+    private static int[] sortRun(final ResultStore store, final int first, final int count, final int columnIndex, final int[] sortedKeys) {
+        final int[] keys = new int[count];
+        final int[] rows = new int[count];
+        IntStream.range(0, count).parallel().forEach(i -> {
+            keys[i] = store.get(first + i, columnIndex);
+            rows[i] = first + i;
+        });
+
+        if (sortedKeys == null) {
+            return RadixSort.sort(keys, rows);
+        }
+
+        // The radix sort scrambles the keys, so they are looked up again by row
+        final int[] unsortedKeys = keys.clone();
+        final int[] sorted = RadixSort.sort(keys, rows);
+        for (int i = 0; i < count; i++) {
+            sortedKeys[i] = unsortedKeys[sorted[i] - first];
+        }
+        return sorted;
+    }
+
+    private static RowIndex sortInRuns(final ResultStore store, final int size, final int columnIndex) {
+        final int runs = (size + SORT_RUN_SIZE - 1) / SORT_RUN_SIZE;
+        final RowIndex runRows = store.newIndex(size);
+        final RowIndex runKeys = store.newIndex(size);
+
+        try {
+            final int[] sortedKeys = new int[SORT_RUN_SIZE];
+            for (int run = 0; run < runs; run++) {
+                final int first = run * SORT_RUN_SIZE;
+                final int count = Math.min(SORT_RUN_SIZE, size - first);
+                final int[] rows = sortRun(store, first, count, columnIndex, sortedKeys);
+                for (int i = 0; i < count; i++) {
+                    runRows.set(first + i, rows[i]);
+                    runKeys.set(first + i, sortedKeys[i]);
+                }
+            }
+
+            final RowIndex sorted = store.newIndex(size);
+            merge(runKeys, runRows, size, runs, sorted);
+            return sorted;
+        } finally {
+            runRows.close();
+            runKeys.close();
+        }
+    }
+
+    /**
+     * Merges the sorted runs into output with a min heap of runs ordered by their next key. Equal keys are taken from
+     * the earlier run first, which holds the lower rows, so ties stay in row order.
+     */
+    private static void merge(final RowIndex runKeys, final RowIndex runRows, final int size, final int runs, final RowIndex output) {
+        final int[] positions = new int[runs];
+        final int[] ends = new int[runs];
+        final int[] nextKeys = new int[runs];
+        final int[] heap = new int[runs];
+        for (int run = 0; run < runs; run++) {
+            positions[run] = run * SORT_RUN_SIZE;
+            ends[run] = Math.min(size, positions[run] + SORT_RUN_SIZE);
+            nextKeys[run] = runKeys.get(positions[run]);
+            heap[run] = run;
+        }
+
+        int heapSize = runs;
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, heapSize, nextKeys, i);
+        }
+
+        for (int i = 0; i < size; i++) {
+            final int run = heap[0];
+            output.set(i, runRows.get(positions[run]));
+            positions[run]++;
+            if (positions[run] < ends[run]) {
+                nextKeys[run] = runKeys.get(positions[run]);
+            } else {
+                heapSize--;
+                heap[0] = heap[heapSize];
+            }
+            siftDown(heap, heapSize, nextKeys, 0);
+        }
     }
 
-    public void setFilteredIds(final Set<String> newFilteredIds, final int newFilteredMaximum) {
+    private static boolean isBefore(final int[] nextKeys, final int run, final int otherRun) {
+        return nextKeys[run] < nextKeys[otherRun] || (nextKeys[run] == nextKeys[otherRun] && run < otherRun);
+    }
+
+    private static void siftDown(final int[] heap, final int heapSize, final int[] nextKeys, int i) {
+        while (true) {
+            final int left = 2 * i + 1;
+            final int right = left + 1;
+            int first = i;
+
+            if (left < heapSize && isBefore(nextKeys, heap[left], heap[first])) {
+                first = left;
+            }
+            if (right < heapSize && isBefore(nextKeys, heap[right], heap[first])) {
+                first = right;
+            }
+            if (first == i) {
+                return;
+            }
+
+            final int run = heap[i];
+            heap[i] = heap[first];
+            heap[first] = run;
+            i = first;
+        }
+    }
+
+    public void setFilteredRows(final long[] newFilteredRows, final int newFilteredMaximum) {
+        final RowIndex previous = filteredIndices;
         filtered = true;
-        filteredIds = newFilteredIds;
+        filteredRows = newFilteredRows;
         filteredMaximum = newFilteredMaximum;
+        filteredIndices = buildFilteredIndices();
+        previous.close();
+    }
 
-        int count = 0;
-        final int[] sortedFilteredIndices = new int[newFilteredMaximum];
-        for (int i = 0; i < maximum; i++) {
-            if (filteredIds.contains(resultHeroStats[i].getId())) {
-                sortedFilteredIndices[count] = i;
-                count++;
+    /**
+     * The filtered rows in sorted order. Blocks of the sorted rows count their filtered rows in parallel, then copy
+     * them out in parallel starting at the total count of the blocks before them.
+     */
+    private RowIndex buildFilteredIndices() {
+        final ResultStore store = results;
+        final RowIndex rows = sortedRows;
+        final long[] bits = filteredRows;
+        final int size = (int) maximum;
+        final int blocks = (size + FILTER_BLOCK_SIZE - 1) / FILTER_BLOCK_SIZE;
+        if (!store.acquire()) {
+            return new RowIndex(new int[]{});
+        }
+
+        try {
+            final int[] offsets = new int[blocks + 1];
+            IntStream.range(0, blocks).parallel().forEach(block -> {
+                final int end = Math.min(size, (block + 1) * FILTER_BLOCK_SIZE);
+                int count = 0;
+                for (int i = block * FILTER_BLOCK_SIZE; i < end; i++) {
+                    final int row = rows == null ? i : rows.get(i);
+                    count += (int) (bits[row >>> 6] >>> row) & 1;
+                }
+                offsets[block + 1] = count;
+            });
+            for (int block = 0; block < blocks; block++) {
+                offsets[block + 1] += offsets[block];
             }
+
+            final RowIndex sortedFilteredIndices = store.newIndex(offsets[blocks]);
+            IntStream.range(0, blocks).parallel().forEach(block -> {
+                final int end = Math.min(size, (block + 1) * FILTER_BLOCK_SIZE);
+                int count = offsets[block];
+                for (int i = block * FILTER_BLOCK_SIZE; i < end; i++) {
+                    final int row = rows == null ? i : rows.get(i);
+                    if ((bits[row >>> 6] & (1L << row)) != 0) {
+                        sortedFilteredIndices.set(count++, row);
+                    }
+                }
+            });
+
+            return sortedFilteredIndices;
+        } finally {
+            store.release();
         }
+    }
 
-        filteredIndices = sortedFilteredIndices;
+    private int rowAt(final RowIndex rows, final int length, final int position) {
+        final int index = order == SortOrder.DESC ? length - 1 - position : position;
+        return rows == null ? index : rows.get(index);
     }
 
     public HeroStats[] getRows(final int startRow, final int endRow) {
-//        System.out.println("Filtered indices.length " + filteredIndices.length);
-//        System.out.println("FilteredIds size " + filteredIds.size());
+        final RowIndex rows = filtered ? filteredIndices : sortedRows;
+        final int length = filtered ? filteredIndices.size() : (int) maximum;
+        final int from = Math.max(0, startRow);
+        final int to = Math.min(length, endRow);
+        if (from >= to) {
+            return new HeroStats[]{};
+        }
 
-        if (filteredIds.size() == 0) {
-            return ArrayUtils.subarray(resultHeroStats, startRow, endRow);
+        final ResultStore store = results;
+        if (!acquire(store, rows)) {
+            return new HeroStats[]{};
         }
 
-        final List<HeroStats> results = new ArrayList<>();
-        for (int i = startRow; i < endRow; i++) {
-            if (i >= filteredIndices.length) {
-                break;
+        try {
+            final HeroStats[] output = new HeroStats[to - from];
+            for (int i = from; i < to; i++) {
+                final int row = rowAt(rows, length, i);
+                final HeroStats heroStats = store.materialize(row);
+                heroStats.setProperty(properties.get(row));
+                output[i - from] = heroStats;
             }
-            final int index = filteredIndices[i];
-            final HeroStats heroStats = resultHeroStats[index];
-            results.add(heroStats);
+
+            return output;
+        } finally {
+            release(store, rows);
+        }
+    }
+
+    public void setProperty(final int index, final String property) {
+        final RowIndex rows = filtered ? filteredIndices : sortedRows;
+        final int length = filtered ? filteredIndices.size() : (int) maximum;
+        if (index < 0 || index >= length) {
+            return;
+        }
+
+        final ResultStore store = results;
+        if (!acquire(store, rows)) {
+            return;
+        }
+
+        try {
+            properties.put(rowAt(rows, length, index), property);
+        } finally {
+            release(store, rows);
+        }
+    }
+
+    /**
+     * Holds the store and the row order being read, which may be replaced or closed meanwhile
+     */
+    private static boolean acquire(final ResultStore store, final RowIndex rows) {
+        if (!store.acquire()) {
+            return false;
         }
+        if (rows != null && !rows.acquire()) {
+            store.release();
+            return false;
+        }
+        return true;
+    }
 
-        final HeroStats[] resultsArray = new HeroStats[results.size()];
-        return results.toArray(resultsArray);
+    private static void release(final ResultStore store, final RowIndex rows) {
+        if (rows != null) {
+            rows.release();
+        }
+        store.release();
     }
 
-    public HeroStats[] getAllHeroStats() {
-        return resultHeroStats;
+    public ResultStore getResults() {
+        return results;
+    }
+
+    public long getSize() {
+        return maximum;
     }
 
     public long getMaximum() {
@@ -95,22 +474,38 @@ public class OptimizationDb {
             return;
         }
 
-//        System.out.println("START SORT");
-        Sorter.sortHeroes(resultHeroStats, newColumn, newOrder);
-//        System.out.println("END SORT");
+        System.out.println("SORTING HEROES BY " + newColumn + " " + newOrder);
 
-        int count = 0;
-        final int[] sortedFilteredIndices = new int[Integer.parseInt("" + maximum)];
-        for (int i = 0; i < maximum; i++) {
-            if (filteredIds.contains(resultHeroStats[i].getId())) {
-                sortedFilteredIndices[count] = i;
-                count++;
+        // Switching between ascending and descending only changes which end rows are read from
+        if (newColumn != column) {
+            COLUMN_USAGE.computeIfAbsent(newColumn, x -> new AtomicLong()).incrementAndGet();
+            final RowIndex previous = sortedRows;
+            sortedRows = acquireSortedRows(newColumn);
+            if (previous != null) {
+                previous.release();
             }
-        }
 
-        filteredIndices = sortedFilteredIndices;
+            if (filtered) {
+                final RowIndex previousFiltered = filteredIndices;
+                filteredIndices = buildFilteredIndices();
+                previousFiltered.close();
+            }
+        }
 
         column = newColumn;
         order = newOrder;
     }
+
+    /**
+     * The column's sorted rows, held until they are no longer the current order
+     */
+    private RowIndex acquireSortedRows(final OptimizationColumn newColumn) {
+        while (true) {
+            final RowIndex rows = getSortedRows(sortedRowsByColumn, results, (int) maximum, newColumn);
+            if (rows.acquire()) {
+                return rows;
+            }
+            // Dropped from the cache by a concurrent sort before it could be held, so sort it again
+        }
+    }
 }
@@ -0,0 +1,166 @@
+package com.fribbels.gpu;
+
+import com.aparapi.Kernel;
+import com.aparapi.Range;
+import com.aparapi.device.Device;
+import com.aparapi.device.OpenCLDevice;
+import com.aparapi.opencl.OpenCL;
+import com.fribbels.enums.OptimizationColumn;
+import com.fribbels.request.OptimizationRequest;
+
+import java.util.Map;
+
+/**
+ * Runs the OpenCL source GpuKernelGenerator writes for one GpuKernelSpecialization, bound to a single OpenCL device,
+ * in place of the Aparapi translated run(). It takes the same inputs as the other kernels through load(), so the
+ * pipeline drives all of them alike, but always compacts its hits.
+ *
+ * Only the small accumulator and parameter arrays are passed to the device, the set lookup tables are not needed.
+ */
+public class GeneratedOptimizerKernel extends GpuOptimizerKernel {
+
+    private static final int MAX_WORK_GROUP_SIZE = 256;
+
+    public interface OptimizerProgram extends OpenCL<OptimizerProgram> {
+
+        OptimizerProgram optimize(
+                Range range,
+                @GlobalReadOnly("weaponAccs") float[] weaponAccs,
+                @GlobalReadOnly("helmetAccs") float[] helmetAccs,
+                @GlobalReadOnly("armorAccs") float[] armorAccs,
+                @GlobalReadOnly("necklaceAccs") float[] necklaceAccs,
+                @GlobalReadOnly("ringAccs") float[] ringAccs,
+                @GlobalReadOnly("bootAccs") float[] bootAccs,
+                @GlobalReadOnly("floatParams") float[] floatParams,
+                @GlobalReadOnly("intParams") int[] intParams,
+                @GlobalReadOnly("skillParams") float[] skillParams,
+                @GlobalWriteOnly("hits") long[] hits,
+                @GlobalReadWrite("hitCount") int[] hitCount,
+                @Local("localTopKValues") int[] localTopKValues,
+                @Local("localTopKIterations") long[] localTopKIterations,
+                @Arg("offset") long offset,
+                @Arg("end") long end,
+                @Arg("baseW") int baseW,
+                @Arg("baseH") int baseH,
+                @Arg("baseA") int baseA,
+                @Arg("baseN") int baseN,
+                @Arg("baseR") int baseR,
+                @Arg("baseB") int baseB,
+                @Arg("topK") int topK,
+                @Arg("topKLocalSize") int topKLocalSize,
+                @Arg("topKThreshold") int topKThreshold,
+                @Arg("hitCapacity") int hitCapacity);
+    }
+
+    private final GpuKernelSpecialization specialization;
+    private final OptimizerProgram program;
+
+    private float[] floatParams;
+    private int[] intParams;
+    private float[] skillParams;
+
+    /**
+     * Compiles the specialized source for device, throws if the device does not accept it
+     */
+    public GeneratedOptimizerKernel(final OpenCLDevice device, final GpuKernelSpecialization specialization) {
+        this.specialization = specialization;
+        this.program = device.bind(OptimizerProgram.class, GpuKernelGenerator.generate(specialization));
+    }
+
+    public GpuKernelSpecialization getSpecialization() {
+        return specialization;
+    }
+
+    @Override
+    protected void loaded(final OptimizationRequest request) {
+        floatParams = new float[]{
+                bonusBaseAtk, bonusBaseHp, bonusBaseDef,
+                atkSetBonus, hpSetBonus, defSetBonus, speedSetBonus, revengeSetBonus, penSetDmgBonus,
+                targetDefense,
+                bonusMaxAtk, bonusMaxHp, bonusMaxDef,
+                baseAtk, baseHp, baseDef, baseCr, baseCd, baseEff, baseRes, baseSpeed,
+                bonusCr, bonusCd, bonusEff, bonusRes, bonusSpeed,
+                aeiCr, aeiCd, aeiEff, aeiRes, aeiSpeed,
+                artifactHealth, artifactAttack
+        };
+
+        intParams = new int[GpuKernelGenerator.LIMITS_OFFSET + 2 * OptimizationColumn.values().length];
+        final long[] sizes = new long[]{wSize, hSize, aSize, nSize, rSize, bSize, argSize, SETTING_RAGE_SET, SETTING_PEN_SET};
+        for (int p = 0; p < sizes.length; p++) {
+            intParams[p] = (int) sizes[p];
+        }
+        for (final Map.Entry<OptimizationColumn, int[]> limit : GpuKernelSpecialization.limits(request).entrySet()) {
+            intParams[GpuKernelGenerator.LIMITS_OFFSET + 2 * limit.getKey().ordinal()] = limit.getValue()[0];
+            intParams[GpuKernelGenerator.LIMITS_OFFSET + 2 * limit.getKey().ordinal() + 1] = limit.getValue()[1];
+        }
+
+        final float[][] skills = new float[][]{
+                rate, pow, toFloats(targets), selfHpScaling, selfAtkScaling, selfDefScaling, selfSpdScaling,
+                increasedValue, penetration, cdmgIncrease, crit, support, hitMulti,
+                extraSelfAtkScaling, extraSelfDefScaling, extraSelfHpScaling
+        };
+        final int stride = GpuKernelGenerator.SKILL_PARAMS.length;
+        skillParams = new float[3 * stride];
+        for (int s = 0; s < 3; s++) {
+            for (int p = 0; p < stride; p++) {
+                skillParams[s * stride + p] = skills[p][s];
+            }
+        }
+    }
+
+    private static float[] toFloats(final int[] values) {
+        final float[] output = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            output[i] = values[i];
+        }
+        return output;
+    }
+
+    @Override
+    public boolean supportsPasses() {
+        return false;
+    }
+
+    @Override
+    public synchronized Kernel execute(final Range range) {
+        program.optimize(
+                range,
+                flattenedWeaponAccs,
+                flattenedHelmetAccs,
+                flattenedArmorAccs,
+                flattenedNecklaceAccs,
+                flattenedRingAccs,
+                flattenedBootAccs,
+                floatParams,
+                intParams,
+                skillParams,
+                hits,
+                hitCount,
+                localTopKValues,
+                localTopKIterations,
+                offset,
+                end,
+                baseW,
+                baseH,
+                baseA,
+                baseN,
+                baseR,
+                baseB,
+                topK,
+                topKLocalSize,
+                topKThreshold,
+                hits.length);
+        return this;
+    }
+
+    @Override
+    public int getKernelMaxWorkGroupSize(final Device device) {
+        return Math.min(MAX_WORK_GROUP_SIZE, device.getMaxWorkGroupSize());
+    }
+
+    @Override
+    public synchronized void dispose() {
+        program.dispose();
+        super.dispose();
+    }
+}
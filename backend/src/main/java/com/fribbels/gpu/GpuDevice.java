@@ -0,0 +1,45 @@
+package com.fribbels.gpu;
+
+import com.aparapi.Range;
+import com.aparapi.device.OpenCLDevice;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A device the optimizer kernel can run on, with its accumulated throughput. JTP devices have no OpenCL device and
+ * run the kernel on a Java thread pool.
+ */
+@Getter
+@ToString
+public class GpuDevice {
+
+    private final String key;
+    private final String name;
+    private final String driver;
+    private final transient OpenCLDevice openCLDevice;
+
+    private long runs;
+    private long evaluated;
+    private long busyMillis;
+    private double lastMillionsPerSecond;
+
+    public GpuDevice(final String key, final String name, final String driver, final OpenCLDevice openCLDevice) {
+        this.key = key;
+        this.name = name;
+        this.driver = driver;
+        this.openCLDevice = openCLDevice;
+    }
+
+    public Range createRange(final int globalSize, final int localSize) {
+        return openCLDevice == null
+                ? Range.create(globalSize, localSize)
+                : openCLDevice.createRange(globalSize, localSize);
+    }
+
+    public synchronized void record(final long evaluated, final long nanos) {
+        this.runs++;
+        this.evaluated += evaluated;
+        this.busyMillis += nanos / 1_000_000;
+        this.lastMillionsPerSecond = evaluated / (Math.max(1, nanos) / 1e9) / 1_000_000;
+    }
+}
@@ -0,0 +1,67 @@
+package com.fribbels.gpu;
+
+import com.aparapi.device.OpenCLDevice;
+import com.aparapi.internal.opencl.OpenCLPlatform;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The devices optimization batches are spread across, enumerated once when GPU acceleration is configured rather than
+ * on every request.
+ *
+ * In GPU mode these are the OpenCL devices of the type set by -DgpuDeviceType (GPU by default, CPU or ALL to use a
+ * CPU runtime like POCL), with the best device first. Other Intel devices are left out, as they are when picked as
+ * the best device. In JTP mode there are -DgpuJtpDevices Java thread pool devices, which is how multiple devices
+ * are exercised on hosts without OpenCL.
+ */
+public class GpuDevices {
+
+    private static final String DEVICE_TYPE = System.getProperty("gpuDeviceType", "GPU");
+    private static final int JTP_DEVICES = Integer.getInteger("gpuJtpDevices", 1);
+
+    private static volatile List<GpuDevice> devices = Collections.emptyList();
+
+    public static List<GpuDevice> getDevices() {
+        return devices;
+    }
+
+    public static synchronized List<GpuDevice> discover(final String executionMode, final long bestDeviceId) {
+        final List<GpuDevice> output = new ArrayList<>();
+
+        if ("GPU".equals(executionMode)) {
+            final List<OpenCLDevice> openCLDevices = new ArrayList<>();
+            try {
+                for (final OpenCLPlatform platform : OpenCLPlatform.getUncachedOpenCLPlatforms()) {
+                    openCLDevices.addAll(platform.getOpenCLDevices());
+                }
+            } catch (final Exception e) {
+                System.out.println("Error enumerating OpenCL devices " + e);
+            }
+
+            final List<OpenCLDevice> eligible = openCLDevices.stream()
+                    .filter(x -> x.getDeviceId() == bestDeviceId
+                            || (("ALL".equals(DEVICE_TYPE) || x.getType().name().equals(DEVICE_TYPE))
+                            && !x.getName().toLowerCase().contains("intel")))
+                    .sorted(Comparator.comparing((OpenCLDevice x) -> x.getDeviceId() != bestDeviceId))
+                    .collect(Collectors.toList());
+
+            for (final OpenCLDevice device : eligible) {
+                final OpenCLPlatform platform = device.getOpenCLPlatform();
+                final String driver = platform == null ? "" : platform.getName() + " " + platform.getVersion();
+                output.add(new GpuDevice(String.valueOf(device.getDeviceId()), device.getName(), driver, device));
+            }
+        } else {
+            for (int i = 0; i < Math.max(1, JTP_DEVICES); i++) {
+                output.add(new GpuDevice(executionMode + "-" + i, executionMode + " " + i, "Java " + System.getProperty("java.version"), null));
+            }
+        }
+
+        System.out.println("Optimizer devices: " + output.stream().map(GpuDevice::getName).collect(Collectors.toList()));
+        devices = Collections.unmodifiableList(output);
+        return devices;
+    }
+}
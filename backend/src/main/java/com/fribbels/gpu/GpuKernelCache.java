@@ -0,0 +1,75 @@
+package com.fribbels.gpu;
+
+import com.aparapi.Kernel;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Long lived optimizer kernels, one per device and kernel class. Aparapi compiles a kernel to OpenCL on its first
+ * execution and keeps the program for the life of the instance, so reusing the instances skips recompiling for every
+ * optimization request.
+ *
+ * Generated kernels are cached by device and specialization key, keeping the most recently used MAX_GENERATED.
+ * Specializations a device failed to compile are remembered and left to the regular kernels.
+ */
+public class GpuKernelCache {
+
+    private static final int MAX_GENERATED = 16;
+
+    private static final Map<String, GpuOptimizerKernel> KERNELS = new ConcurrentHashMap<>();
+    private static final Map<String, GeneratedOptimizerKernel> GENERATED = new LinkedHashMap<String, GeneratedOptimizerKernel>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, GeneratedOptimizerKernel> eldest) {
+            if (size() > MAX_GENERATED) {
+                eldest.getValue().dispose();
+                return true;
+            }
+            return false;
+        }
+    };
+    private static final Set<String> FAILED = new HashSet<>();
+
+    public static GpuOptimizerKernel get(final String deviceKey, final boolean allSetsValid) {
+        final String key = deviceKey + "|" + (allSetsValid ? SetFormat000OptimizerKernel.class : GpuOptimizerKernel.class).getSimpleName();
+        return KERNELS.computeIfAbsent(key, x -> {
+            System.out.println("Creating kernel " + key);
+            return allSetsValid ? new SetFormat000OptimizerKernel() : new GpuOptimizerKernel();
+        });
+    }
+
+    /**
+     * The generated kernel for specialization on device, or null if the device could not compile it
+     */
+    public static synchronized GeneratedOptimizerKernel getGenerated(final GpuDevice device, final GpuKernelSpecialization specialization) {
+        final String key = device.getKey() + "|" + specialization.getKey();
+        final GeneratedOptimizerKernel cached = GENERATED.get(key);
+        if (cached != null || FAILED.contains(key)) {
+            return cached;
+        }
+
+        try {
+            System.out.println("Generating kernel " + key);
+            final GeneratedOptimizerKernel kernel = new GeneratedOptimizerKernel(device.getOpenCLDevice(), specialization);
+            GENERATED.put(key, kernel);
+            return kernel;
+        } catch (final Exception e) {
+            System.out.println("Could not compile generated kernel on " + device.getName() + ", using the regular kernel " + e);
+            FAILED.add(key);
+            return null;
+        }
+    }
+
+    public static synchronized void disposeAll() {
+        KERNELS.values().forEach(Kernel::dispose);
+        KERNELS.clear();
+        GENERATED.values().forEach(Kernel::dispose);
+        GENERATED.clear();
+        FAILED.clear();
+    }
+}
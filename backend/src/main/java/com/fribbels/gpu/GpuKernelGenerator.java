@@ -0,0 +1,342 @@
+package com.fribbels.gpu;
+
+import com.fribbels.enums.OptimizationColumn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Writes the OpenCL source of an optimizer kernel specialized to a GpuKernelSpecialization. The math is the same as
+ * GpuOptimizerKernel.run, expression for expression so results match, but only the active checks are emitted: default
+ * limits are a sign check, unused skills are not computed, and set bonuses and the set format are counted from the six
+ * set indices in registers instead of looked up in the setSolutionBitMasks and validMultisets tables. Generated
+ * kernels always compact their hits, see GpuOptimizerKernel.output.
+ *
+ * Scalar inputs are packed into small arrays, laid out by the constants below and filled by GeneratedOptimizerKernel.
+ */
+public class GpuKernelGenerator {
+
+    // floatParams
+    static final String[] FLOAT_PARAMS = {
+            "bonusBaseAtk", "bonusBaseHp", "bonusBaseDef",
+            "atkSetBonus", "hpSetBonus", "defSetBonus", "speedSetBonus", "revengeSetBonus", "penSetDmgBonus",
+            "targetDefense",
+            "bonusMaxAtk", "bonusMaxHp", "bonusMaxDef",
+            "baseAtk", "baseHp", "baseDef", "baseCr", "baseCd", "baseEff", "baseRes", "baseSpeed",
+            "bonusCr", "bonusCd", "bonusEff", "bonusRes", "bonusSpeed",
+            "aeiCr", "aeiCd", "aeiEff", "aeiRes", "aeiSpeed",
+            "artifactHealth", "artifactAttack"
+    };
+
+    // intParams, followed by a (min, max) pair per OptimizationColumn ordinal from LIMITS_OFFSET
+    static final String[] INT_PARAMS = {
+            "wSize", "hSize", "aSize", "nSize", "rSize", "bSize", "argSize", "SETTING_RAGE_SET", "SETTING_PEN_SET"
+    };
+    static final int LIMITS_OFFSET = INT_PARAMS.length;
+
+    // skillParams, SKILL_PARAMS.length values per skill
+    static final String[] SKILL_PARAMS = {
+            "rate", "powMultiplier", "targets", "selfHpScaling", "selfAtkScaling", "selfDefScaling", "selfSpdScaling",
+            "increasedValue", "penetration", "cdmgIncrease", "crit", "support", "hitMulti",
+            "extraSelfAtkScaling", "extraSelfDefScaling", "extraSelfHpScaling"
+    };
+
+    private static final String[] PIECES = {"w", "h", "a", "n", "r", "b"};
+    private static final String[] ACCS = {"weaponAccs", "helmetAccs", "armorAccs", "necklaceAccs", "ringAccs", "bootAccs"};
+
+    // Accumulator slot of each per piece value, see OptimizationRequestHandler.ARG_COUNT
+    private static final String[] ACC_NAMES = {"Atk", "Hp", "Def", "Cr", "Cd", "Eff", "Res", "Speed", "Score", "Set", "Prio", "Upg", "Conv", "Eq"};
+    private static final int[] ACC_SLOTS = {0, 1, 2, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+
+    // The sets whose bonuses the stats use, by set index
+    private static final int[] BONUS_SETS = {0, 1, 2, 3, 4, 5, 6, 9, 11, 13, 14, 17};
+
+    private static final EnumSet<OptimizationColumn> FLOAT_COLUMNS = EnumSet.of(OptimizationColumn.ATK, OptimizationColumn.HP, OptimizationColumn.DEF);
+
+    public static String generate(final GpuKernelSpecialization spec) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("// ").append(spec.getKey()).append("\n");
+        sb.append("#pragma OPENCL EXTENSION cl_khr_fp64 : enable\n");
+        sb.append("#pragma OPENCL FP_CONTRACT OFF\n\n");
+
+        if (spec.isSkillUsed(0) || spec.isSkillUsed(1) || spec.isSkillUsed(2)) {
+            appendSkillFunction(sb);
+        }
+
+        sb.append("__kernel void optimize(\n");
+        for (final String accs : ACCS) {
+            sb.append("      __global const float *").append(accs).append(",\n");
+        }
+        sb.append("      __global const float *floatParams,\n");
+        sb.append("      __global const int *intParams,\n");
+        sb.append("      __global const float *skillParams,\n");
+        sb.append("      __global long *hits,\n");
+        sb.append("      __global int *hitCount,\n");
+        sb.append("      __local int *localTopKValues,\n");
+        sb.append("      __local long *localTopKIterations,\n");
+        sb.append("      long offset,\n");
+        sb.append("      long end,\n");
+        for (final String piece : PIECES) {
+            sb.append("      int base").append(piece.toUpperCase()).append(",\n");
+        }
+        sb.append("      int topK,\n");
+        sb.append("      int topKLocalSize,\n");
+        sb.append("      int topKThreshold,\n");
+        sb.append("      int hitCapacity) {\n");
+
+        sb.append("   const int id = get_global_id(0);\n");
+        sb.append("   const long i = offset + id;\n");
+        sb.append("   int pass = 0;\n");
+        sb.append("   int topKValue = 0;\n");
+        sb.append("   if (i < end) {\n");
+
+        for (int p = 0; p < FLOAT_PARAMS.length; p++) {
+            line(sb, "const float " + FLOAT_PARAMS[p] + " = floatParams[" + p + "];");
+        }
+        for (int p = 0; p < INT_PARAMS.length; p++) {
+            line(sb, "const long " + INT_PARAMS[p] + " = intParams[" + p + "];");
+        }
+        line(sb, "__global const int *limits = intParams + " + LIMITS_OFFSET + ";");
+        line(sb, "");
+
+        appendIndexDecode(sb);
+        appendPieceLoads(sb);
+        appendSets(sb, spec);
+        appendStats(sb, spec);
+        appendFilter(sb, spec);
+
+        sb.append("   }\n\n");
+        appendOutput(sb);
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static void line(final StringBuilder sb, final String line) {
+        sb.append("      ").append(line).append("\n");
+    }
+
+    private static void appendSkillFunction(final StringBuilder sb) {
+        final int stride = SKILL_PARAMS.length;
+        sb.append("int skillValue(__global const float *skillParams, const int s, const float targetDefense, const float atk,\n");
+        sb.append("               const float def, const float hp, const float spd, const float critDamage,\n");
+        sb.append("               const float pctDmgMultiplier, const float penSetOn) {\n");
+        for (int p = 0; p < stride; p++) {
+            sb.append("   const float ").append(SKILL_PARAMS[p]).append(" = skillParams[s * ").append(stride).append(" + ").append(p).append("];\n");
+        }
+        sb.append("   const float realPenetration = (1 - penetration) * (1 - penSetOn * 0.15f * targets);\n");
+        sb.append("   const float statScalings = selfHpScaling * hp + selfAtkScaling * atk + selfDefScaling * def + selfSpdScaling * spd;\n");
+        sb.append("   const float hitTypeMultis = crit * (critDamage + cdmgIncrease) + hitMulti;\n");
+        sb.append("   const float increasedValueMulti = 1 + increasedValue;\n");
+        sb.append("   const float dmgUpMod = 1 + selfSpdScaling * spd;\n");
+        sb.append("   const float extraDamage = (extraSelfHpScaling * hp + extraSelfAtkScaling * atk + extraSelfDefScaling * def) * 1.871f * 1.0f / (targetDefense * 0.3f / 300.0f + 1.0f);\n");
+        sb.append("   const float offensiveValue = (atk * rate + statScalings) * 1.871f * powMultiplier * increasedValueMulti * hitTypeMultis * dmgUpMod * pctDmgMultiplier;\n");
+        sb.append("   const float supportValue = selfHpScaling * hp * support + selfAtkScaling * atk * support + selfDefScaling * def * support;\n");
+        sb.append("   const float defensiveValue = 1.0f / (targetDefense * fmax(0.0f, realPenetration) / 300.0f + 1.0f);\n");
+        sb.append("   return (int) (offensiveValue * defensiveValue + supportValue + extraDamage);\n");
+        sb.append("}\n\n");
+    }
+
+    private static void appendIndexDecode(final StringBuilder sb) {
+        line(sb, "const int bCarry = baseB + id;");
+        line(sb, "const int b = bCarry % (int) bSize;");
+        line(sb, "const int rCarry = baseR + bCarry / (int) bSize;");
+        line(sb, "const int r = rCarry % (int) rSize;");
+        line(sb, "const int nCarry = baseN + rCarry / (int) rSize;");
+        line(sb, "const int n = nCarry % (int) nSize;");
+        line(sb, "const int aCarry = baseA + nCarry / (int) nSize;");
+        line(sb, "const int a = aCarry % (int) aSize;");
+        line(sb, "const int hCarry = baseH + aCarry / (int) aSize;");
+        line(sb, "const int h = hCarry % (int) hSize;");
+        line(sb, "const int w = baseW + hCarry / (int) hSize;");
+        line(sb, "");
+    }
+
+    private static void appendPieceLoads(final StringBuilder sb) {
+        for (int p = 0; p < PIECES.length; p++) {
+            final String piece = PIECES[p];
+            line(sb, "const int " + piece + "argSize = (int) (" + piece + " * argSize);");
+            for (int k = 0; k < ACC_NAMES.length; k++) {
+                line(sb, "const float " + piece + ACC_NAMES[k] + " = " + ACCS[p] + "[" + piece + "argSize + " + ACC_SLOTS[k] + "];");
+            }
+        }
+        line(sb, "");
+    }
+
+    private static void appendSets(final StringBuilder sb, final GpuKernelSpecialization spec) {
+        for (final String piece : PIECES) {
+            line(sb, "const int i" + piece + "Set = (int) " + piece + "Set;");
+        }
+
+        final TreeSet<Integer> counted = new TreeSet<>();
+        Arrays.stream(BONUS_SETS).forEach(counted::add);
+        for (final int[] requirement : spec.getSetRequirements()) {
+            for (int set = 0; set < requirement.length; set++) {
+                if (requirement[set] > 0) {
+                    counted.add(set);
+                }
+            }
+        }
+        for (final int set : counted) {
+            line(sb, "const int count" + set + " = " + Arrays.stream(PIECES)
+                    .map(piece -> "(i" + piece + "Set == " + set + ")")
+                    .collect(Collectors.joining(" + ")) + ";");
+        }
+
+        // Same as the setSolutionBitMasks bits
+        line(sb, "const int hpSet = count0 / 2;");
+        line(sb, "const int defSet = count1 / 2;");
+        line(sb, "const int atkSet = count2 >= 4;");
+        line(sb, "const int speedSet = count3 >= 4;");
+        line(sb, "const int crSet = count4 / 2;");
+        line(sb, "const int effSet = count5 / 2;");
+        line(sb, "const int cdSet = count6 >= 4;");
+        line(sb, "const int resSet = count9 / 2;");
+        line(sb, "const int rageSet = count11 >= 4;");
+        line(sb, "const int penSet = count13 >= 2;");
+        line(sb, "const int revengeSet = count14 >= 4;");
+        line(sb, "const int torrentSet = count17 / 2;");
+
+        final String setValid;
+        if (spec.isAllSetsValid()) {
+            setValid = "1";
+        } else if (spec.getSetRequirements().isEmpty()) {
+            setValid = "0";
+        } else {
+            final List<String> alternatives = new ArrayList<>();
+            for (final int[] requirement : spec.getSetRequirements()) {
+                final List<String> counts = new ArrayList<>();
+                for (int set = 0; set < requirement.length; set++) {
+                    if (requirement[set] > 0) {
+                        counts.add("count" + set + " >= " + requirement[set]);
+                    }
+                }
+                alternatives.add(counts.isEmpty() ? "1" : "(" + String.join(" && ", counts) + ")");
+            }
+            setValid = String.join("\n            || ", alternatives);
+        }
+        line(sb, "const int setValid = " + setValid + ";");
+        line(sb, "");
+    }
+
+    private static void appendStats(final StringBuilder sb, final GpuKernelSpecialization spec) {
+        line(sb, "const float atk = ((bonusBaseAtk + wAtk+hAtk+aAtk+nAtk+rAtk+bAtk + (atkSet * atkSetBonus)) * bonusMaxAtk);");
+        line(sb, "const float hp = ((bonusBaseHp + wHp+hHp+aHp+nHp+rHp+bHp + (hpSet * hpSetBonus + torrentSet * hpSetBonus/-2)) * bonusMaxHp);");
+        line(sb, "const float def = ((bonusBaseDef + wDef+hDef+aDef+nDef+rDef+bDef + (defSet * defSetBonus)) * bonusMaxDef);");
+        line(sb, "const int cr = (int) (baseCr + wCr+hCr+aCr+nCr+rCr+bCr + (crSet * 12) + bonusCr + aeiCr);");
+        line(sb, "const int cd = (int) (baseCd + wCd+hCd+aCd+nCd+rCd+bCd + (cdSet * 60) + bonusCd + aeiCd);");
+        line(sb, "const int eff = (int) (baseEff + wEff+hEff+aEff+nEff+rEff+bEff + (effSet * 20) + bonusEff + aeiEff);");
+        line(sb, "const int res = (int) (baseRes + wRes+hRes+aRes+nRes+rRes+bRes + (resSet * 20) + bonusRes + aeiRes);");
+        line(sb, "const int spd = (int) (baseSpeed + wSpeed+hSpeed+aSpeed+nSpeed+rSpeed+bSpeed + (speedSet * speedSetBonus) + (revengeSet * revengeSetBonus) + bonusSpeed + aeiSpeed);");
+        line(sb, "");
+        line(sb, "const float critRate = min(100, cr) / 100.0f;");
+        line(sb, "const float critDamage = min(350, cd) / 100.0f;");
+        line(sb, "const int cp = (int) (((atk * 1.6f + atk * 1.6f * critRate * critDamage) * (1.0 + (spd - 45.0f) * 0.02f) + hp + def * 9.3f) * (1.0f + (res/100.0f + eff/100.0f) / 4.0f));");
+        line(sb, "");
+        line(sb, "const float penSetOn = min(penSet, 1);");
+        line(sb, "const float rageMultiplier = fmax(0.0f, rageSet * SETTING_RAGE_SET * 0.3f);");
+        line(sb, "const float penMultiplier = fmax(1.0f, penSetOn * SETTING_PEN_SET * penSetDmgBonus);");
+        line(sb, "const float torrentMultiplier = fmax(0.0f, torrentSet * 0.1f);");
+        line(sb, "const float spdDiv1000 = (float) spd / 1000;");
+        line(sb, "const float pctDmgMultiplier = 1 + rageMultiplier + torrentMultiplier;");
+        line(sb, "");
+        line(sb, "const int ehp = (int) (hp * (def/300 + 1));");
+        line(sb, "const int hpps = (int) (hp*spdDiv1000);");
+        line(sb, "const int ehpps = (int) ((float)ehp*spdDiv1000);");
+        line(sb, "const int dmg = (int) (((critRate * atk * critDamage) + (1-critRate) * atk) * penMultiplier * pctDmgMultiplier);");
+        line(sb, "const int dmgps = (int) ((float)dmg*spdDiv1000);");
+        line(sb, "const int mcdmg = (int) (atk * critDamage * penMultiplier * pctDmgMultiplier);");
+        line(sb, "const int mcdmgps = (int) ((float)mcdmg*spdDiv1000);");
+        line(sb, "const int dmgh = (int) ((critDamage * hp * penMultiplier * pctDmgMultiplier)/10);");
+        line(sb, "const int dmgd = (int) ((critDamage * def * penMultiplier * pctDmgMultiplier));");
+        for (int s = 0; s < 3; s++) {
+            if (spec.isSkillUsed(s)) {
+                line(sb, "const int s" + (s + 1) + " = skillValue(skillParams, " + s + ", targetDefense, atk, def, hp, spd, critDamage, pctDmgMultiplier, penSetOn);");
+            }
+        }
+        line(sb, "");
+        line(sb, "const int score = (int) (wScore+hScore+aScore+nScore+rScore+bScore);");
+        line(sb, "const int priority = (int) (wPrio+hPrio+aPrio+nPrio+rPrio+bPrio);");
+        line(sb, "const int upgrades = (int) (wUpg+hUpg+aUpg+nUpg+rUpg+bUpg);");
+        line(sb, "const int conversions = (int) (wConv+hConv+aConv+nConv+rConv+bConv);");
+        line(sb, "const int eq = (int) (wEq+hEq+aEq+nEq+rEq+bEq);");
+        line(sb, "");
+        line(sb, "const float bsHp = (hp - baseHp - artifactHealth - (hpSet * hpSetBonus) + (torrentSet * hpSetBonus/2)) / baseHp * 100;");
+        line(sb, "const float bsAtk = (atk - baseAtk - artifactAttack - (atkSet * atkSetBonus)) / baseAtk * 100;");
+        line(sb, "const float bsDef = (def - baseDef - (defSet * defSetBonus)) / baseDef * 100;");
+        line(sb, "const float bsCr = (cr - baseCr - (crSet * 12));");
+        line(sb, "const float bsCd = (cd - baseCd - (cdSet * 60));");
+        line(sb, "const float bsEff = (eff - baseEff - (effSet * 20));");
+        line(sb, "const float bsRes = (res - baseRes - (resSet * 20));");
+        line(sb, "const float bsSpd = (spd - baseSpeed - (speedSet * speedSetBonus) - (revengeSet * revengeSetBonus));");
+        line(sb, "const int bs = (int) (bsHp + bsAtk + bsDef + bsCr*1.6f + bsCd*1.14f + bsEff + bsRes + bsSpd*2);");
+        line(sb, "");
+    }
+
+    private static void appendFilter(final StringBuilder sb, final GpuKernelSpecialization spec) {
+        final List<String> rejects = new ArrayList<>();
+        for (final OptimizationColumn column : spec.getLimitedColumns()) {
+            final int limit = 2 * column.ordinal();
+            final String value = variable(column);
+            rejects.add(value + " < limits[" + limit + "] || " + value + " > limits[" + (limit + 1) + "]");
+        }
+
+        final List<String> signs = new ArrayList<>();
+        for (final OptimizationColumn column : spec.getSignColumns()) {
+            if (FLOAT_COLUMNS.contains(column)) {
+                rejects.add(variable(column) + " < 0");
+            } else {
+                signs.add(variable(column));
+            }
+        }
+        if (!signs.isEmpty()) {
+            rejects.add("(" + String.join(" | ", signs) + ") < 0");
+        }
+
+        line(sb, "pass = setValid" + (rejects.isEmpty() ? "" : "\n            && !(" + String.join("\n            || ", rejects) + ")") + ";");
+
+        final OptimizationColumn topKColumn = spec.getTopKColumn();
+        if (topKColumn != null && topKColumn != OptimizationColumn.DAC) {
+            line(sb, "topKValue = " + (FLOAT_COLUMNS.contains(topKColumn) ? "(int) " : "") + variable(topKColumn) + ";");
+        }
+    }
+
+    // The generated variable names are the lower case column names
+    private static String variable(final OptimizationColumn column) {
+        return column.name().toLowerCase();
+    }
+
+    private static void appendOutput(final StringBuilder sb) {
+        sb.append("   if (topK == 1) {\n");
+        sb.append("      const int localId = get_local_id(0);\n");
+        sb.append("      const int keep = pass && topKValue >= topKThreshold;\n");
+        sb.append("      localTopKValues[localId] = topKValue;\n");
+        sb.append("      localTopKIterations[localId] = keep ? i : -1;\n");
+        sb.append("      barrier(CLK_LOCAL_MEM_FENCE);\n");
+        sb.append("      if (keep) {\n");
+        sb.append("         int rank = 0;\n");
+        sb.append("         const int localSize = get_local_size(0);\n");
+        sb.append("         for (int j = 0; j < localSize; j++) {\n");
+        sb.append("            const long other = localTopKIterations[j];\n");
+        sb.append("            if (other >= 0 && (localTopKValues[j] > topKValue || (localTopKValues[j] == topKValue && other < i))) {\n");
+        sb.append("               rank++;\n");
+        sb.append("            }\n");
+        sb.append("         }\n");
+        sb.append("         if (rank < topKLocalSize) {\n");
+        sb.append("            const int slot = atomic_add(hitCount, 1);\n");
+        sb.append("            if (slot < hitCapacity) {\n");
+        sb.append("               hits[slot] = i;\n");
+        sb.append("            }\n");
+        sb.append("         }\n");
+        sb.append("      }\n");
+        sb.append("   } else if (pass) {\n");
+        sb.append("      const int slot = atomic_add(hitCount, 1);\n");
+        sb.append("      if (slot < hitCapacity) {\n");
+        sb.append("         hits[slot] = i;\n");
+        sb.append("      }\n");
+        sb.append("   }\n");
+    }
+}
@@ -0,0 +1,248 @@
+package com.fribbels.gpu;
+
+import com.fribbels.core.StatCalculator;
+import com.fribbels.enums.OptimizationColumn;
+import com.fribbels.enums.Set;
+import com.fribbels.model.DamageMultipliers;
+import com.fribbels.request.OptimizationRequest;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.fribbels.handler.OptimizationRequestHandler.SET_COUNT;
+
+/**
+ * What a generated kernel has to check for a request, see GpuKernelGenerator. Requests with the same specialization
+ * share the same generated source, the limit values themselves are kernel arguments.
+ *
+ * Columns with non default limits get a range check, default 0..Integer.MAX_VALUE columns only reject negative values
+ * like CompiledFilter. Skill damage is only computed for skills that are limited or ranked by top K, or whose damage
+ * multipliers could make the value negative. Set formats are inlined as minimum piece counts per set, requirements
+ * that do not fit in six pieces have no inline form and are left to the regular kernels.
+ */
+@Getter
+public class GpuKernelSpecialization {
+
+    private static final int PIECES = 6;
+    private static final int MAX_SET_REQUIREMENTS = 64;
+
+    private static final OptimizationColumn[] SKILLS = {OptimizationColumn.S1, OptimizationColumn.S2, OptimizationColumn.S3};
+
+    private final List<OptimizationColumn> limitedColumns;
+    private final List<OptimizationColumn> signColumns;
+    private final boolean[] skills;
+    private final boolean allSetsValid;
+    private final List<int[]> setRequirements;
+    private final OptimizationColumn topKColumn;
+    private final String key;
+
+    private GpuKernelSpecialization(final List<OptimizationColumn> limitedColumns,
+                                    final List<OptimizationColumn> signColumns,
+                                    final boolean[] skills,
+                                    final boolean allSetsValid,
+                                    final List<int[]> setRequirements,
+                                    final OptimizationColumn topKColumn) {
+        this.limitedColumns = limitedColumns;
+        this.signColumns = signColumns;
+        this.skills = skills;
+        this.allSetsValid = allSetsValid;
+        this.setRequirements = setRequirements;
+        this.topKColumn = topKColumn;
+        this.key = "limits=" + names(limitedColumns)
+                + "|signs=" + names(signColumns)
+                + "|skills=" + skills[0] + "," + skills[1] + "," + skills[2]
+                + "|sets=" + (allSetsValid ? "all" : setRequirements.stream().map(Arrays::toString).collect(Collectors.joining(";")))
+                + "|topK=" + topKColumn;
+    }
+
+    /**
+     * The specialization for request, or null if its set format can not be inlined
+     */
+    public static GpuKernelSpecialization of(final OptimizationRequest request) {
+        final Map<OptimizationColumn, int[]> limits = limits(request);
+        final OptimizationColumn topKColumn = request.getInputTopKColumn();
+        final DamageMultipliers multipliers = request.hero.getDamageMultipliers();
+
+        final boolean[] skills = new boolean[SKILLS.length];
+        for (int s = 0; s < SKILLS.length; s++) {
+            final int[] limit = limits.get(SKILLS[s]);
+            skills[s] = !isDefault(limit)
+                    || topKColumn == SKILLS[s]
+                    || !isNonNegative(multipliers, s)
+                    || StatCalculator.SETTING_PEN_DEFENSE < 0;
+        }
+
+        final List<OptimizationColumn> limitedColumns = new ArrayList<>();
+        final List<OptimizationColumn> signColumns = new ArrayList<>();
+        for (final Map.Entry<OptimizationColumn, int[]> entry : limits.entrySet()) {
+            final int skill = Arrays.asList(SKILLS).indexOf(entry.getKey());
+            if (skill >= 0 && !skills[skill]) {
+                continue;
+            }
+
+            if (isDefault(entry.getValue())) {
+                signColumns.add(entry.getKey());
+            } else {
+                limitedColumns.add(entry.getKey());
+            }
+        }
+
+        if (request.getSetFormat() == 0) {
+            return new GpuKernelSpecialization(limitedColumns, signColumns, skills, true, Collections.emptyList(), topKColumn);
+        }
+
+        final List<int[]> setRequirements = setRequirements(request);
+        if (setRequirements == null) {
+            return null;
+        }
+        return new GpuKernelSpecialization(limitedColumns, signColumns, skills, false, setRequirements, topKColumn);
+    }
+
+    public boolean isSkillUsed(final int s) {
+        return skills[s];
+    }
+
+    private static boolean isDefault(final int[] limit) {
+        return limit[0] == 0 && limit[1] == Integer.MAX_VALUE;
+    }
+
+    // With every multiplier non negative, a skill can not reach a negative value for non negative stats
+    private static boolean isNonNegative(final DamageMultipliers m, final int s) {
+        return isNonNegative(m.getRate(), s)
+                && isNonNegative(m.getPow(), s)
+                && isNonNegative(m.getSelfHpScaling(), s)
+                && isNonNegative(m.getSelfAtkScaling(), s)
+                && isNonNegative(m.getSelfDefScaling(), s)
+                && isNonNegative(m.getSelfSpdScaling(), s)
+                && isNonNegative(m.getIncreasedValue(), s)
+                && isNonNegative(m.getPenetration(), s)
+                && isNonNegative(m.getCdmgIncrease(), s)
+                && isNonNegative(m.getCrit(), s)
+                && isNonNegative(m.getSupport(), s)
+                && isNonNegative(m.getHitMulti(), s)
+                && isNonNegative(m.getExtraSelfAtkScaling(), s)
+                && isNonNegative(m.getExtraSelfDefScaling(), s)
+                && isNonNegative(m.getExtraSelfHpScaling(), s);
+    }
+
+    private static boolean isNonNegative(final Float[] values, final int s) {
+        return values == null || values[s] >= 0;
+    }
+
+    /**
+     * The (min, max) limits of each filtered column, in the order the kernels check them
+     */
+    static Map<OptimizationColumn, int[]> limits(final OptimizationRequest request) {
+        final Map<OptimizationColumn, int[]> limits = new LinkedHashMap<>();
+        limits.put(OptimizationColumn.ATK, new int[]{request.inputAtkMinLimit, request.inputAtkMaxLimit});
+        limits.put(OptimizationColumn.HP, new int[]{request.inputHpMinLimit, request.inputHpMaxLimit});
+        limits.put(OptimizationColumn.DEF, new int[]{request.inputDefMinLimit, request.inputDefMaxLimit});
+        limits.put(OptimizationColumn.SPD, new int[]{request.inputSpdMinLimit, request.inputSpdMaxLimit});
+        limits.put(OptimizationColumn.CR, new int[]{request.inputCrMinLimit, request.inputCrMaxLimit});
+        limits.put(OptimizationColumn.CD, new int[]{request.inputCdMinLimit, request.inputCdMaxLimit});
+        limits.put(OptimizationColumn.EFF, new int[]{request.inputEffMinLimit, request.inputEffMaxLimit});
+        limits.put(OptimizationColumn.RES, new int[]{request.inputResMinLimit, request.inputResMaxLimit});
+        limits.put(OptimizationColumn.CP, new int[]{request.inputMinCpLimit, request.inputMaxCpLimit});
+        limits.put(OptimizationColumn.HPPS, new int[]{request.inputMinHppsLimit, request.inputMaxHppsLimit});
+        limits.put(OptimizationColumn.EHP, new int[]{request.inputMinEhpLimit, request.inputMaxEhpLimit});
+        limits.put(OptimizationColumn.EHPPS, new int[]{request.inputMinEhppsLimit, request.inputMaxEhppsLimit});
+        limits.put(OptimizationColumn.DMG, new int[]{request.inputMinDmgLimit, request.inputMaxDmgLimit});
+        limits.put(OptimizationColumn.DMGPS, new int[]{request.inputMinDmgpsLimit, request.inputMaxDmgpsLimit});
+        limits.put(OptimizationColumn.MCDMG, new int[]{request.inputMinMcdmgLimit, request.inputMaxMcdmgLimit});
+        limits.put(OptimizationColumn.MCDMGPS, new int[]{request.inputMinMcdmgpsLimit, request.inputMaxMcdmgpsLimit});
+        limits.put(OptimizationColumn.DMGH, new int[]{request.inputMinDmgHLimit, request.inputMaxDmgHLimit});
+        limits.put(OptimizationColumn.DMGD, new int[]{request.inputMinDmgDLimit, request.inputMaxDmgDLimit});
+        limits.put(OptimizationColumn.SCORE, new int[]{request.inputMinScoreLimit, request.inputMaxScoreLimit});
+        limits.put(OptimizationColumn.PRIORITY, new int[]{request.inputMinPriorityLimit, request.inputMaxPriorityLimit});
+        limits.put(OptimizationColumn.UPGRADES, new int[]{request.inputMinUpgradesLimit, request.inputMaxUpgradesLimit});
+        limits.put(OptimizationColumn.CONVERSIONS, new int[]{request.inputMinConversionsLimit, request.inputMaxConversionsLimit});
+        limits.put(OptimizationColumn.EQ, new int[]{request.inputMinEquippedLimit, request.inputMaxEquippedLimit});
+        limits.put(OptimizationColumn.S1, new int[]{request.inputMinS1Limit, request.inputMaxS1Limit});
+        limits.put(OptimizationColumn.S2, new int[]{request.inputMinS2Limit, request.inputMaxS2Limit});
+        limits.put(OptimizationColumn.S3, new int[]{request.inputMinS3Limit, request.inputMaxS3Limit});
+        limits.put(OptimizationColumn.BS, new int[]{request.inputMinBSLimit, request.inputMaxBSLimit});
+        return limits;
+    }
+
+    /**
+     * The set format as alternative minimum piece counts per set, the same layouts SetValidityTable accepts. Returns
+     * null for layouts longer than six pieces or too many alternatives to inline.
+     */
+    private static List<int[]> setRequirements(final OptimizationRequest request) {
+        final List<Set> sets1 = orEmpty(request.getInputSetsOne());
+        final List<Set> sets2 = orEmpty(request.getInputSetsTwo());
+        final List<Set> sets3 = orEmpty(request.getInputSetsThree());
+        final Map<String, int[]> requirements = new LinkedHashMap<>();
+
+        final int setFormat = request.getSetFormat();
+        if (setFormat == 1) {
+            for (final Set set1 : sets1) {
+                for (final Set set2 : sets2) {
+                    if (!addRequirement(requirements, 0, set1, set2)) return null;
+                }
+            }
+        } else if (setFormat == 2) {
+            for (final Set set1 : sets1) {
+                if (!addRequirement(requirements, 2, set1)) return null;
+            }
+        } else if (setFormat == 3) {
+            for (final Set set1 : sets1) {
+                if (!addRequirement(requirements, 4, set1)) return null;
+            }
+        } else if (setFormat == 4) {
+            for (final Set set1 : sets1) {
+                for (final Set set2 : sets2) {
+                    if (!addRequirement(requirements, 2, set1, set2)) return null;
+                }
+            }
+        } else if (setFormat == 5) {
+            for (final Set set1 : sets1) {
+                for (final Set set2 : sets2) {
+                    for (final Set set3 : sets3) {
+                        if (!addRequirement(requirements, 0, set1, set2, set3)) return null;
+                    }
+                }
+            }
+        } else {
+            return null;
+        }
+
+        if (requirements.size() > MAX_SET_REQUIREMENTS) {
+            return null;
+        }
+        return new ArrayList<>(requirements.values());
+    }
+
+    private static boolean addRequirement(final Map<String, int[]> requirements, final int free, final Set... sets) {
+        final int[] counts = new int[SET_COUNT];
+        int pieces = free;
+        for (final Set set : sets) {
+            for (final int index : set.getIndices()) {
+                counts[index]++;
+                pieces++;
+            }
+        }
+
+        if (pieces > PIECES) {
+            return false;
+        }
+        requirements.put(Arrays.toString(counts), counts);
+        return true;
+    }
+
+    private static List<Set> orEmpty(final List<Set> sets) {
+        return sets == null ? Collections.emptyList() : sets;
+    }
+
+    private static String names(final List<OptimizationColumn> columns) {
+        return columns.stream()
+                .map(OptimizationColumn::name)
+                .collect(Collectors.joining(","));
+    }
+}
@@ -1,6 +1,8 @@
 package com.fribbels.gpu;
 
 import com.aparapi.Kernel;
+import com.fribbels.core.MixedRadixIndex;
+import com.fribbels.core.SetValidityTable;
 import com.fribbels.model.DamageMultipliers;
 import com.fribbels.model.Hero;
 import com.fribbels.model.HeroStats;
@@ -10,197 +12,234 @@ import lombok.Setter;
 @Setter
 public class GpuOptimizerKernel extends Kernel {
 
-    @Constant final float[] flattenedWeaponAccs;
-    @Constant final float[] flattenedHelmetAccs;
-    @Constant final float[] flattenedArmorAccs;
-    @Constant final float[] flattenedNecklaceAccs;
-    @Constant final float[] flattenedRingAccs;
-    @Constant final float[] flattenedBootAccs;
-
-    @Constant final long wSize;
-    @Constant final long hSize;
-    @Constant final long aSize;
-    @Constant final long nSize;
-    @Constant final long rSize;
-    @Constant final long bSize;
-
-    @Constant final long argSize;
-
-    @Constant final float bonusBaseAtk;
-    @Constant final float bonusBaseHp;
-    @Constant final float bonusBaseDef;
-
-    @Constant final float atkSetBonus;
-    @Constant final float hpSetBonus;
-    @Constant final float defSetBonus;
-    @Constant final float speedSetBonus;
-    @Constant final float revengeSetBonus;
-    @Constant final float penSetDmgBonus;
-
-    @Constant final float targetDefense;
-
-    @Constant final float bonusMaxAtk;
-    @Constant final float bonusMaxHp;
-    @Constant final float bonusMaxDef;
-
-    @Constant final int SETTING_RAGE_SET;
-    @Constant final int SETTING_PEN_SET;
-
-    @Constant final float baseAtk;
-    @Constant final float baseHp;
-    @Constant final float baseDef;
-    @Constant final float baseCr;
-    @Constant final float baseCd;
-    @Constant final float baseEff;
-    @Constant final float baseRes;
-    @Constant final float baseSpeed;
-
-    @Constant final float bonusCr;
-    @Constant final float bonusCd;
-    @Constant final float bonusEff;
-    @Constant final float bonusRes;
-    @Constant final float bonusSpeed;
-
-    @Constant final float aeiCr;
-    @Constant final float aeiCd;
-    @Constant final float aeiEff;
-    @Constant final float aeiRes;
-    @Constant final float aeiSpeed;
+    @Constant float[] flattenedWeaponAccs;
+    @Constant float[] flattenedHelmetAccs;
+    @Constant float[] flattenedArmorAccs;
+    @Constant float[] flattenedNecklaceAccs;
+    @Constant float[] flattenedRingAccs;
+    @Constant float[] flattenedBootAccs;
+
+    @Constant long wSize;
+    @Constant long hSize;
+    @Constant long aSize;
+    @Constant long nSize;
+    @Constant long rSize;
+    @Constant long bSize;
+
+    @Constant long argSize;
+
+    @Constant float bonusBaseAtk;
+    @Constant float bonusBaseHp;
+    @Constant float bonusBaseDef;
+
+    @Constant float atkSetBonus;
+    @Constant float hpSetBonus;
+    @Constant float defSetBonus;
+    @Constant float speedSetBonus;
+    @Constant float revengeSetBonus;
+    @Constant float penSetDmgBonus;
+
+    @Constant float targetDefense;
+
+    @Constant float bonusMaxAtk;
+    @Constant float bonusMaxHp;
+    @Constant float bonusMaxDef;
+
+    @Constant int SETTING_RAGE_SET;
+    @Constant int SETTING_PEN_SET;
+
+    @Constant float baseAtk;
+    @Constant float baseHp;
+    @Constant float baseDef;
+    @Constant float baseCr;
+    @Constant float baseCd;
+    @Constant float baseEff;
+    @Constant float baseRes;
+    @Constant float baseSpeed;
+
+    @Constant float bonusCr;
+    @Constant float bonusCd;
+    @Constant float bonusEff;
+    @Constant float bonusRes;
+    @Constant float bonusSpeed;
+
+    @Constant float aeiCr;
+    @Constant float aeiCd;
+    @Constant float aeiEff;
+    @Constant float aeiRes;
+    @Constant float aeiSpeed;
 //
 //
-//    @Constant final float s1Rate;
-//    @Constant final float s1Pow;
-//    @Constant final float s1SelfHpScaling;
-//    @Constant final float s1SelfAtkScaling;
-//    @Constant final float s1SelfDefScaling;
-//    @Constant final float s1SelfSpdScaling;
-//    @Constant final float s1ConstantValue;
-//    @Constant final float s1SelfAtkConstantValue;
-//    @Constant final float s1ConditionalIncreasedValue;
-//    @Constant final float s1DefDiffPen;
-//    @Constant final float s1DefDiffPenMax;
-//    @Constant final float s1AtkDiffPen;
-//    @Constant final float s1AtkDiffPenMax;
-//    @Constant final float s1SpdDiffPen;
-//    @Constant final float s1SpdDiffPenMax;
-//    @Constant final float s1Penetration;
-//    @Constant final float s1AtkIncrease;
-
-    @Constant final boolean[] boolArr;
-    @Constant final int[] setPermutationIndicesPlusOne;
-    final int[] setSolutionCounters;
-    @Constant final long max;
+//    @Constant float s1Rate;
+//    @Constant float s1Pow;
+//    @Constant float s1SelfHpScaling;
+//    @Constant float s1SelfAtkScaling;
+//    @Constant float s1SelfDefScaling;
+//    @Constant float s1SelfSpdScaling;
+//    @Constant float s1ConstantValue;
+//    @Constant float s1SelfAtkConstantValue;
+//    @Constant float s1ConditionalIncreasedValue;
+//    @Constant float s1DefDiffPen;
+//    @Constant float s1DefDiffPenMax;
+//    @Constant float s1AtkDiffPen;
+//    @Constant float s1AtkDiffPenMax;
+//    @Constant float s1SpdDiffPen;
+//    @Constant float s1SpdDiffPenMax;
+//    @Constant float s1Penetration;
+//    @Constant float s1AtkIncrease;
+
+    // Set format validity bit per multiset of the six sets, looked up by the multiset's rank, see SetValidityTable
+    @Constant int[] validMultisets;
+    int[] setSolutionCounters;
+    @Constant long max;
 
     // Attempt at optimizing filters
-    //    @Constant final int[] sumValues = new int[] {0, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1}; // 21 values, one per filter
-    //    @Constant final int[] sumValues = new int[] {1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0}; // 21 values, one per filter
-    //    @Constant final boolean[] boolValues = new boolean[] {false, true, true}; // 21 values, one per filter
-    //    @Constant final int[] optimizerMinFilters;
-    //    @Constant final int[] optimizerMaxFilters;
-    //    @Constant final int[] optimizerFilterIndices;
-    //    @Constant final int optimizerFilterSize;
-    //    @Constant final int[] intArr;
-
-    @Constant final int inputAtkMinLimit;
-    @Constant final int inputAtkMaxLimit;
-    @Constant final int inputHpMinLimit;
-    @Constant final int inputHpMaxLimit;
-    @Constant final int inputDefMinLimit;
-    @Constant final int inputDefMaxLimit;
-    @Constant final int inputSpdMinLimit;
-    @Constant final int inputSpdMaxLimit;
-    @Constant final int inputCrMinLimit;
-    @Constant final int inputCrMaxLimit;
-    @Constant final int inputCdMinLimit;
-    @Constant final int inputCdMaxLimit;
-    @Constant final int inputEffMinLimit;
-    @Constant final int inputEffMaxLimit;
-    @Constant final int inputResMinLimit;
-    @Constant final int inputResMaxLimit;
-    @Constant final int inputMinCpLimit;
-    @Constant final int inputMaxCpLimit;
-    @Constant final int inputMinHppsLimit;
-    @Constant final int inputMaxHppsLimit;
-    @Constant final int inputMinEhpLimit;
-    @Constant final int inputMaxEhpLimit;
-    @Constant final int inputMinEhppsLimit;
-    @Constant final int inputMaxEhppsLimit;
-    @Constant final int inputMinDmgLimit;
-    @Constant final int inputMaxDmgLimit;
-    @Constant final int inputMinDmgpsLimit;
-    @Constant final int inputMaxDmgpsLimit;
-    @Constant final int inputMinMcdmgLimit;
-    @Constant final int inputMaxMcdmgLimit;
-    @Constant final int inputMinMcdmgpsLimit;
-    @Constant final int inputMaxMcdmgpsLimit;
-
-    @Constant final int inputMinDmgHLimit;
-    @Constant final int inputMaxDmgHLimit;
-    @Constant final int inputMinDmgDLimit;
-    @Constant final int inputMaxDmgDLimit;
-
-    @Constant final int inputMinS1Limit;
-    @Constant final int inputMaxS1Limit;
-    @Constant final int inputMinS2Limit;
-    @Constant final int inputMaxS2Limit;
-    @Constant final int inputMinS3Limit;
-    @Constant final int inputMaxS3Limit;
-
-    @Constant final float[] rate;
-    @Constant final float[] pow;
-    @Constant final int[] targets;
-
-    @Constant final float[] selfHpScaling;
-    @Constant final float[] selfAtkScaling;
-    @Constant final float[] selfDefScaling;
-    @Constant final float[] selfSpdScaling;
-    @Constant final float[] constantValue;
-    @Constant final float[] selfAtkConstantValue;
-    @Constant final float[] increasedValue;
-    @Constant final float[] defDiffPen;
-    @Constant final float[] defDiffPenMax;
-    @Constant final float[] atkDiffPen;
-    @Constant final float[] atkDiffPenMax;
-    @Constant final float[] spdDiffPen;
-    @Constant final float[] spdDiffPenMax;
-    @Constant final float[] penetration;
-    @Constant final float[] atkIncrease;
-    @Constant final float[] cdmgIncrease;
-    @Constant final float[] crit;
-    @Constant final float[] damage;
-    @Constant final float[] support;
-    @Constant final float[] hitMulti;
-
-    @Constant final float[] extraSelfAtkScaling;
-    @Constant final float[] extraSelfDefScaling;
-    @Constant final float[] extraSelfHpScaling;
-
-    @Constant final float artifactHealth;
-    @Constant final float artifactAttack;
-
-    @Constant final int inputMinUpgradesLimit;
-    @Constant final int inputMaxUpgradesLimit;
-    @Constant final int inputMinConversionsLimit;
-    @Constant final int inputMaxConversionsLimit;
-    @Constant final int inputMinEquippedLimit;
-    @Constant final int inputMaxEquippedLimit;
-    @Constant final int inputMinScoreLimit;
-    @Constant final int inputMaxScoreLimit;
-    @Constant final int inputMinBSLimit;
-    @Constant final int inputMaxBSLimit;
-    @Constant final int inputMinPriorityLimit;
-    @Constant final int inputMaxPriorityLimit;
+    //    @Constant int[] sumValues = new int[] {0, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1}; // 21 values, one per filter
+    //    @Constant int[] sumValues = new int[] {1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0}; // 21 values, one per filter
+    //    @Constant boolean[] boolValues = new boolean[] {false, true, true}; // 21 values, one per filter
+    //    @Constant int[] optimizerMinFilters;
+    //    @Constant int[] optimizerMaxFilters;
+    //    @Constant int[] optimizerFilterIndices;
+    //    @Constant int optimizerFilterSize;
+    //    @Constant int[] intArr;
+
+    @Constant int inputAtkMinLimit;
+    @Constant int inputAtkMaxLimit;
+    @Constant int inputHpMinLimit;
+    @Constant int inputHpMaxLimit;
+    @Constant int inputDefMinLimit;
+    @Constant int inputDefMaxLimit;
+    @Constant int inputSpdMinLimit;
+    @Constant int inputSpdMaxLimit;
+    @Constant int inputCrMinLimit;
+    @Constant int inputCrMaxLimit;
+    @Constant int inputCdMinLimit;
+    @Constant int inputCdMaxLimit;
+    @Constant int inputEffMinLimit;
+    @Constant int inputEffMaxLimit;
+    @Constant int inputResMinLimit;
+    @Constant int inputResMaxLimit;
+    @Constant int inputMinCpLimit;
+    @Constant int inputMaxCpLimit;
+    @Constant int inputMinHppsLimit;
+    @Constant int inputMaxHppsLimit;
+    @Constant int inputMinEhpLimit;
+    @Constant int inputMaxEhpLimit;
+    @Constant int inputMinEhppsLimit;
+    @Constant int inputMaxEhppsLimit;
+    @Constant int inputMinDmgLimit;
+    @Constant int inputMaxDmgLimit;
+    @Constant int inputMinDmgpsLimit;
+    @Constant int inputMaxDmgpsLimit;
+    @Constant int inputMinMcdmgLimit;
+    @Constant int inputMaxMcdmgLimit;
+    @Constant int inputMinMcdmgpsLimit;
+    @Constant int inputMaxMcdmgpsLimit;
+
+    @Constant int inputMinDmgHLimit;
+    @Constant int inputMaxDmgHLimit;
+    @Constant int inputMinDmgDLimit;
+    @Constant int inputMaxDmgDLimit;
+
+    @Constant int inputMinS1Limit;
+    @Constant int inputMaxS1Limit;
+    @Constant int inputMinS2Limit;
+    @Constant int inputMaxS2Limit;
+    @Constant int inputMinS3Limit;
+    @Constant int inputMaxS3Limit;
+
+    @Constant float[] rate;
+    @Constant float[] pow;
+    @Constant int[] targets;
+
+    @Constant float[] selfHpScaling;
+    @Constant float[] selfAtkScaling;
+    @Constant float[] selfDefScaling;
+    @Constant float[] selfSpdScaling;
+    @Constant float[] constantValue;
+    @Constant float[] selfAtkConstantValue;
+    @Constant float[] increasedValue;
+    @Constant float[] defDiffPen;
+    @Constant float[] defDiffPenMax;
+    @Constant float[] atkDiffPen;
+    @Constant float[] atkDiffPenMax;
+    @Constant float[] spdDiffPen;
+    @Constant float[] spdDiffPenMax;
+    @Constant float[] penetration;
+    @Constant float[] atkIncrease;
+    @Constant float[] cdmgIncrease;
+    @Constant float[] crit;
+    @Constant float[] damage;
+    @Constant float[] support;
+    @Constant float[] hitMulti;
+
+    @Constant float[] extraSelfAtkScaling;
+    @Constant float[] extraSelfDefScaling;
+    @Constant float[] extraSelfHpScaling;
+
+    @Constant float artifactHealth;
+    @Constant float artifactAttack;
+
+    @Constant int inputMinUpgradesLimit;
+    @Constant int inputMaxUpgradesLimit;
+    @Constant int inputMinConversionsLimit;
+    @Constant int inputMaxConversionsLimit;
+    @Constant int inputMinEquippedLimit;
+    @Constant int inputMaxEquippedLimit;
+    @Constant int inputMinScoreLimit;
+    @Constant int inputMaxScoreLimit;
+    @Constant int inputMinBSLimit;
+    @Constant int inputMaxBSLimit;
+    @Constant int inputMinPriorityLimit;
+    @Constant int inputMaxPriorityLimit;
 
     float[] debug;
 
-    int iteration;
+    // The iterations [offset, end) of the current batch, work item id evaluates iteration offset + id. The base
+    // digits are offset decoded on the host, so each work item only carries id through them with int divisions.
+    long offset;
+    long end;
+    int baseW;
+    int baseH;
+    int baseA;
+    int baseN;
+    int baseR;
+    int baseB;
+    private MixedRadixIndex permutationIndex;
+    private final int[] baseDigits = new int[6];
     boolean[] passes;
-    @Constant final int[] setSolutionBitMasks;
+
+    // Stream compaction: with compact set to 1, the iteration indices of passing builds are appended to hits and
+    // counted in hitCount[0] instead of being flagged in passes. The count can exceed hits.length, which means the
+    // batch overflowed and has to be rerun with a bigger buffer.
+    int compact;
+    long[] hits;
+    int[] hitCount;
+    // Set bonus bits per multiset of the six sets, looked up by the multiset's rank, see SetSolutionMasks
+    @Constant int[] setSolutionBitMasks;
+    @Constant int[] multisetBinomial;
+
+    // Top K: with topK set to 1, each work group ranks its passing builds by the topKColumn value in local memory and
+    // only appends its topKLocalSize best to hits, ties going to the lower iteration like TopKHeap. Builds below
+    // topKThreshold, the worst value the host already keeps, are dropped before ranking.
+    int topK;
+    int topKLocalSize;
+    int topKThreshold;
+    @Constant int topKColumn;
+    @Local int[] localTopKValues = new int[1];
+    @Local long[] localTopKIterations = new long[1];
 
 //    @Local int[] localSetsBuffer = new int[256 * 16];
 //    @Local final float[] localStatBuffer = new float[256 * 21];
 
-    public GpuOptimizerKernel(
+    /**
+     * Kernels are long lived, see GpuKernelCache, so Aparapi only compiles them to OpenCL once. The inputs are plain
+     * fields that load() replaces for every request, and Aparapi uploads them with the next execution.
+     */
+    public GpuOptimizerKernel() {
+    }
+
+    public void load(
             final OptimizationRequest request,
             final float[] flattenedWeaponAccs,
             final float[] flattenedHelmetAccs,
@@ -366,6 +405,7 @@ public class GpuOptimizerKernel extends Kernel {
         this.nSize = nSize;
         this.rSize = rSize;
         this.bSize = bSize;
+        this.permutationIndex = new MixedRadixIndex(wSize, hSize, aSize, nSize, rSize, bSize);
 
         inputAtkMinLimit = request.inputAtkMinLimit;
         inputAtkMaxLimit = request.inputAtkMaxLimit;
@@ -431,10 +471,11 @@ public class GpuOptimizerKernel extends Kernel {
 //        s1SelfSpdScaling = hero
 
         this.max = max;
-        this.boolArr = request.boolArr;
-        this.setPermutationIndicesPlusOne = request.setPermutationIndicesPlusOne;
+        this.topKColumn = request.getInputTopKColumn() == null ? -1 : request.getInputTopKColumn().ordinal();
+        this.validMultisets = request.setValidityTable.toIntBits();
         this.setSolutionCounters = request.setSolutionCounters;
         this.setSolutionBitMasks = setSolutionBitMasks;
+        this.multisetBinomial = SetValidityTable.flattenedBinomial();
 
         final DamageMultipliers dm = hero.getDamageMultipliers();
 
@@ -464,6 +505,37 @@ public class GpuOptimizerKernel extends Kernel {
         this.extraSelfAtkScaling = floatArr(dm.getExtraSelfAtkScaling());
         this.extraSelfDefScaling = floatArr(dm.getExtraSelfDefScaling());
         this.extraSelfHpScaling = floatArr(dm.getExtraSelfHpScaling());
+
+        loaded(request);
+    }
+
+    /**
+     * Called at the end of load(), for subclasses that derive their own inputs from the loaded fields
+     */
+    protected void loaded(final OptimizationRequest request) {
+    }
+
+    /**
+     * Sets the iterations of the next execution, and the digits of offset its work items count up from
+     */
+    public void setRange(final long offset, final long end) {
+        this.offset = offset;
+        this.end = end;
+
+        permutationIndex.decode(offset, baseDigits);
+        baseW = baseDigits[0];
+        baseH = baseDigits[1];
+        baseA = baseDigits[2];
+        baseN = baseDigits[3];
+        baseR = baseDigits[4];
+        baseB = baseDigits[5];
+    }
+
+    /**
+     * Whether the kernel can flag passes per build instead of compacting hits, see GpuPipeline
+     */
+    public boolean supportsPasses() {
+        return true;
     }
 
     private float[] floatArr(final Float[] arr) {
@@ -507,14 +579,21 @@ public class GpuOptimizerKernel extends Kernel {
         final int id = getGlobalId();
 //        final int localId = getLocalId();
 
-        final long i = max * iteration + id;
-        if (i < wSize * hSize * aSize * nSize * rSize * bSize) {
-            final long b = i % bSize;
-            final long r = ( ( i - b ) / bSize ) %  rSize;
-            final long n = ( ( i - r * bSize - b ) / (bSize * rSize) ) % nSize;
-            final long a = ( ( i - n * rSize * bSize - r * bSize - b ) / (bSize * rSize * nSize) ) % aSize;
-            final long h = ( ( i - a * nSize * rSize * bSize - n * rSize * bSize - r * bSize - b) / (bSize * rSize * nSize * aSize) ) % hSize;
-            final long w = ( ( i - h * aSize * nSize * rSize * bSize - a * nSize * rSize * bSize - n * rSize * bSize - r * bSize - b) / (bSize * rSize * nSize * aSize * hSize) ) % wSize;
+        final long i = offset + id;
+        boolean pass = false;
+        int topKValue = 0;
+        if (i < end) {
+            final int bCarry = baseB + id;
+            final int b = bCarry % (int) bSize;
+            final int rCarry = baseR + bCarry / (int) bSize;
+            final int r = rCarry % (int) rSize;
+            final int nCarry = baseN + rCarry / (int) rSize;
+            final int n = nCarry % (int) nSize;
+            final int aCarry = baseA + nCarry / (int) nSize;
+            final int a = aCarry % (int) aSize;
+            final int hCarry = baseH + aCarry / (int) aSize;
+            final int h = hCarry % (int) hSize;
+            final int w = baseW + hCarry / (int) hSize;
 
             final int wargSize = (int)(w * argSize);
             final float wAtk =   flattenedWeaponAccs[wargSize];
@@ -619,12 +698,33 @@ public class GpuOptimizerKernel extends Kernel {
             final int iRset = (int)rSet;
             final int iBset = (int)bSet;
 
-            final int setIndex = iWset * 1889568
-                    + iHset * 104976
-                    + iAset * 5832
-                    + iNset * 324
-                    + iRset * 18
-                    + iBset;
+            // Sort the six sets, then rank the multiset like SetValidityTable.rank
+            int m0 = iWset;
+            int m1 = iHset;
+            int m2 = iAset;
+            int m3 = iNset;
+            int m4 = iRset;
+            int m5 = iBset;
+            int swap = 0;
+            swap = min(m0, m5); m5 = max(m0, m5); m0 = swap;
+            swap = min(m1, m3); m3 = max(m1, m3); m1 = swap;
+            swap = min(m2, m4); m4 = max(m2, m4); m2 = swap;
+            swap = min(m1, m2); m2 = max(m1, m2); m1 = swap;
+            swap = min(m3, m4); m4 = max(m3, m4); m3 = swap;
+            swap = min(m0, m3); m3 = max(m0, m3); m0 = swap;
+            swap = min(m2, m5); m5 = max(m2, m5); m2 = swap;
+            swap = min(m0, m1); m1 = max(m0, m1); m0 = swap;
+            swap = min(m2, m3); m3 = max(m2, m3); m2 = swap;
+            swap = min(m4, m5); m5 = max(m4, m5); m4 = swap;
+            swap = min(m1, m2); m2 = max(m1, m2); m1 = swap;
+            swap = min(m3, m4); m4 = max(m3, m4); m3 = swap;
+            final int multisetIndex = multisetBinomial[m0 * 7 + 1]
+                    + multisetBinomial[(m1 + 1) * 7 + 2]
+                    + multisetBinomial[(m2 + 2) * 7 + 3]
+                    + multisetBinomial[(m3 + 3) * 7 + 4]
+                    + multisetBinomial[(m4 + 4) * 7 + 5]
+                    + multisetBinomial[(m5 + 5) * 7 + 6];
+            final int setMask = setSolutionBitMasks[multisetIndex];
 
 //            final int setIndex = iWset * 1048576
 //                    + iHset * 65536
@@ -662,20 +762,20 @@ public class GpuOptimizerKernel extends Kernel {
 
             //            debug[id] = min(1, longSetMasks[setIndex] & (1 << 7));
 
-            final int hpSet = min(1, setSolutionBitMasks[setIndex] & (1)) + min(1, setSolutionBitMasks[setIndex] & (1 << 1)) + min(1, setSolutionBitMasks[setIndex] & (1 << 2));
-            final int defSet = min(1, setSolutionBitMasks[setIndex] & (1 << 3)) + min(1, setSolutionBitMasks[setIndex] & (1 << 4)) + min(1, setSolutionBitMasks[setIndex] & (1 << 5));
-            final int atkSet = min(1, setSolutionBitMasks[setIndex] & (1 << 6));
-            final int speedSet = min(1, setSolutionBitMasks[setIndex] & (1 << 7));
-            final int crSet = min(1, setSolutionBitMasks[setIndex] & (1 << 8)) + min(1, setSolutionBitMasks[setIndex] & (1 << 9)) + min(1, setSolutionBitMasks[setIndex] & (1 << 10));
-            final int effSet = min(1, setSolutionBitMasks[setIndex] & (1 << 11)) + min(1, setSolutionBitMasks[setIndex] & (1 << 12)) + min(1, setSolutionBitMasks[setIndex] & (1 << 13));
-            final int cdSet = min(1, setSolutionBitMasks[setIndex] & (1 << 14));
-            final int resSet = min(1, setSolutionBitMasks[setIndex] & (1 << 17)) + min(1, setSolutionBitMasks[setIndex] & (1 << 18)) + min(1, setSolutionBitMasks[setIndex] & (1 << 19));
-            final int rageSet = min(1, setSolutionBitMasks[setIndex] & (1 << 21));
-            final int penSet = min(1, setSolutionBitMasks[setIndex] & (1 << 23));
-            final int revengeSet = min(1, setSolutionBitMasks[setIndex] & (1 << 24));
-//            final int protectionSet = min(1, setSolutionBitMasks[setIndex] & (1 << 25));
-//            final int injurySet = min(1, setSolutionBitMasks[setIndex] & (1 << 26));
-            final int torrentSet = min(1, setSolutionBitMasks[setIndex] & (1 << 27)) + min(1, setSolutionBitMasks[setIndex] & (1 << 28)) + min(1, setSolutionBitMasks[setIndex] & (1 << 29));
+            final int hpSet = min(1, setMask & (1)) + min(1, setMask & (1 << 1)) + min(1, setMask & (1 << 2));
+            final int defSet = min(1, setMask & (1 << 3)) + min(1, setMask & (1 << 4)) + min(1, setMask & (1 << 5));
+            final int atkSet = min(1, setMask & (1 << 6));
+            final int speedSet = min(1, setMask & (1 << 7));
+            final int crSet = min(1, setMask & (1 << 8)) + min(1, setMask & (1 << 9)) + min(1, setMask & (1 << 10));
+            final int effSet = min(1, setMask & (1 << 11)) + min(1, setMask & (1 << 12)) + min(1, setMask & (1 << 13));
+            final int cdSet = min(1, setMask & (1 << 14));
+            final int resSet = min(1, setMask & (1 << 17)) + min(1, setMask & (1 << 18)) + min(1, setMask & (1 << 19));
+            final int rageSet = min(1, setMask & (1 << 21));
+            final int penSet = min(1, setMask & (1 << 23));
+            final int revengeSet = min(1, setMask & (1 << 24));
+//            final int protectionSet = min(1, setMask & (1 << 25));
+//            final int injurySet = min(1, setMask & (1 << 26));
+            final int torrentSet = min(1, setMask & (1 << 27)) + min(1, setMask & (1 << 28)) + min(1, setMask & (1 << 29));
 
 
             // Set calculations using localbuffer instead off mask
@@ -753,22 +853,22 @@ public class GpuOptimizerKernel extends Kernel {
 // {1.871 * [(ATK)(Atkmod)(Rate)+(FlatMod)]} * (pow!)(EnhanceMod)(HitTypeMod)(ElementMod)(DamageUpMod)(TargetDebuffMod)
             // flatmod
 
-//            @Constant final float s1SelfHpScaling = 0;
-//            @Constant final float s1SelfAtkScaling = 0;
-//            @Constant final float s1SelfDefScaling = 0;
-//            @Constant final float s1SelfSpdScaling = 0;
-
-//            @Constant final float s1ConstantValue = 0;
-//            @Constant final float s1SelfAtkConstantValue = 0;
-//            @Constant final float s1ConditionalIncreasedValue = 0;
-//            @Constant final float s1DefDiffPen = 0;
-//            @Constant final float s1DefDiffPenMax = 0;
-//            @Constant final float s1AtkDiffPen = 0;
-//            @Constant final float s1AtkDiffPenMax = 0;
-//            @Constant final float s1SpdDiffPen = 0;
-//            @Constant final float s1SpdDiffPenMax = 0;
-//            @Constant final float s1Penetration = 0;
-//           x @Constant final float s1AtkIncrease = 0;
+//            @Constant float s1SelfHpScaling = 0;
+//            @Constant float s1SelfAtkScaling = 0;
+//            @Constant float s1SelfDefScaling = 0;
+//            @Constant float s1SelfSpdScaling = 0;
+
+//            @Constant float s1ConstantValue = 0;
+//            @Constant float s1SelfAtkConstantValue = 0;
+//            @Constant float s1ConditionalIncreasedValue = 0;
+//            @Constant float s1DefDiffPen = 0;
+//            @Constant float s1DefDiffPenMax = 0;
+//            @Constant float s1AtkDiffPen = 0;
+//            @Constant float s1AtkDiffPenMax = 0;
+//            @Constant float s1SpdDiffPen = 0;
+//            @Constant float s1SpdDiffPenMax = 0;
+//            @Constant float s1Penetration = 0;
+//           x @Constant float s1AtkIncrease = 0;
 
             final int score = (int) (wScore+hScore+aScore+nScore+rScore+bScore);
             final int priority = (int) (wPrio+hPrio+aPrio+nPrio+rPrio+bPrio);
@@ -827,9 +927,92 @@ public class GpuOptimizerKernel extends Kernel {
 //            if (true)
 //                return;
 
-            passes[id] = !(f1 || f2 || f3) && setPermutationIndicesPlusOne[setIndex] > 0;
+            pass = !(f1 || f2 || f3) && (validMultisets[multisetIndex >> 5] & (1 << (multisetIndex & 31))) != 0;
+            if (topK == 1) {
+                topKValue = getColumnValue(topKColumn, (int) atk, (int) hp, (int) def, spd, cr, cd, eff, res, cp, hpps, ehp, ehpps,
+                        dmg, dmgps, mcdmg, mcdmgps, dmgh, dmgd, s1, s2, s3, upgrades, conversions, eq, score, bs, priority);
+            }
 //            passes[id] = setIndex >= 340122242;
         }
+
+        output(id, i, pass, topKValue);
+    }
+
+    /**
+     * Writes the result of work item id, which every work item has to reach because top K ranking uses barriers
+     */
+    protected void output(final int id, final long i, final boolean pass, final int topKValue) {
+        if (topK == 1) {
+            final int localId = getLocalId();
+            final boolean keep = pass && topKValue >= topKThreshold;
+            localTopKValues[localId] = topKValue;
+            localTopKIterations[localId] = keep ? i : -1;
+            localBarrier();
+
+            if (keep) {
+                int rank = 0;
+                for (int j = 0; j < getLocalSize(); j++) {
+                    final long other = localTopKIterations[j];
+                    if (other >= 0 && (localTopKValues[j] > topKValue || (localTopKValues[j] == topKValue && other < i))) {
+                        rank++;
+                    }
+                }
+
+                if (rank < topKLocalSize) {
+                    final int slot = atomicAdd(hitCount, 0, 1);
+                    if (slot < hits.length) {
+                        hits[slot] = i;
+                    }
+                }
+            }
+        } else if (compact == 1) {
+            if (pass) {
+                final int slot = atomicAdd(hitCount, 0, 1);
+                if (slot < hits.length) {
+                    hits[slot] = i;
+                }
+            }
+        } else {
+            passes[id] = pass;
+        }
+    }
+
+    // Same values as StatCalculator.fillColumns, by OptimizationColumn ordinal
+    protected int getColumnValue(final int column, final int atk, final int hp, final int def, final int spd, final int cr,
+                                 final int cd, final int eff, final int res, final int cp, final int hpps, final int ehp,
+                                 final int ehpps, final int dmg, final int dmgps, final int mcdmg, final int mcdmgps,
+                                 final int dmgh, final int dmgd, final int s1, final int s2, final int s3,
+                                 final int upgrades, final int conversions, final int eq, final int score, final int bs,
+                                 final int priority) {
+        int value = 0;
+        if (column == 0) value = atk;
+        else if (column == 1) value = hp;
+        else if (column == 2) value = def;
+        else if (column == 3) value = spd;
+        else if (column == 4) value = cr;
+        else if (column == 5) value = cd;
+        else if (column == 6) value = eff;
+        else if (column == 7) value = res;
+        else if (column == 9) value = cp;
+        else if (column == 10) value = hpps;
+        else if (column == 11) value = ehp;
+        else if (column == 12) value = ehpps;
+        else if (column == 13) value = dmg;
+        else if (column == 14) value = dmgps;
+        else if (column == 15) value = mcdmg;
+        else if (column == 16) value = mcdmgps;
+        else if (column == 17) value = dmgh;
+        else if (column == 18) value = dmgd;
+        else if (column == 19) value = s1;
+        else if (column == 20) value = s2;
+        else if (column == 21) value = s3;
+        else if (column == 22) value = upgrades;
+        else if (column == 23) value = conversions;
+        else if (column == 24) value = eq;
+        else if (column == 25) value = score;
+        else if (column == 26) value = bs;
+        else if (column == 27) value = priority;
+        return value;
     }
 
 
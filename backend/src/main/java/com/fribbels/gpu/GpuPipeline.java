@@ -0,0 +1,295 @@
+package com.fribbels.gpu;
+
+import com.aparapi.Range;
+import com.fribbels.core.ChunkScheduler;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+
+/**
+ * Runs the optimizer kernel over the chunks a ChunkScheduler worker claims, split into batches of at most batchSize
+ * iterations, with a fixed set of rotating batch buffers. The calling thread
+ * dispatches kernels and decoder threads read back the results, so the kernel for batch i + 1 runs while batch i is
+ * being decoded. The stages are connected by bounded queues: the dispatcher blocks on the free buffer queue when the
+ * decoders fall behind, and decoders block on the ready queue when the kernel is the bottleneck.
+ *
+ * With compaction the kernel appends the iteration indices of passing builds to a small hits buffer instead of
+ * flagging a boolean per build, so readback and decoding scale with the number of hits rather than the batch size.
+ * A batch that overflows its hits buffer is rerun with a bigger one, and once hits get dense the pipeline falls back
+ * to the boolean passes buffers, unless the kernel only compacts like GeneratedOptimizerKernel.
+ *
+ * In top K mode each work group only appends its own best K builds, see GpuOptimizerKernel.output, so the hits stay
+ * bounded by K per work group and the dense fallback is not needed.
+ *
+ * Each stage is timed, the summary shows which side of the pipeline is waiting on the other.
+ */
+public class GpuPipeline {
+
+    private static final int INITIAL_HIT_CAPACITY = 4096;
+
+    public interface BatchDecoder {
+        /**
+         * Decodes the passing iteration indices hits[0, count) out of a batch of length iterations, which are in no
+         * particular order
+         */
+        void decode(long[] hits, int count, int length);
+    }
+
+    private static class Batch {
+        private final int[] hitCount = new int[1];
+        private long offset;
+        private int length;
+        private boolean[] passes;
+        private long[] hits;
+        private int count;
+    }
+
+    // Signals the end of the stream to a decoder
+    private static final Batch END = new Batch();
+
+    private final GpuOptimizerKernel kernel;
+    private final Range range;
+    private final int batchSize;
+    private final int decoders;
+    private final BlockingQueue<Batch> freeBatches;
+    private final BlockingQueue<Batch> readyBatches;
+    private boolean compact;
+    private int topKSize;
+    private IntSupplier topKThreshold;
+    private int[] localTopKValues;
+    private long[] localTopKIterations;
+
+    // Bound to the kernel's unused outputs, which still have to be valid arrays
+    private final boolean[] noPasses = new boolean[1];
+    private final long[] noHits = new long[1];
+    private final int[] noHitCount = new int[1];
+
+    private final AtomicLong bufferWaitNanos = new AtomicLong();
+    private final AtomicLong kernelNanos = new AtomicLong();
+    private final AtomicLong readyWaitNanos = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+    private final AtomicLong hitCounter = new AtomicLong();
+    private long dispatched;
+    private long compacted;
+    private long overflows;
+
+    /**
+     * Allocates the buffers up front, so an OutOfMemoryError surfaces here rather than mid run.
+     */
+    public GpuPipeline(final GpuOptimizerKernel kernel,
+                       final Range range,
+                       final int batchSize,
+                       final int buffers,
+                       final int decoders,
+                       final boolean compact) {
+        this.kernel = kernel;
+        this.range = range;
+        this.batchSize = batchSize;
+        this.decoders = decoders;
+        this.compact = compact || !kernel.supportsPasses();
+        this.freeBatches = new ArrayBlockingQueue<>(buffers);
+        this.readyBatches = new ArrayBlockingQueue<>(buffers + decoders);
+
+        for (int i = 0; i < buffers; i++) {
+            final Batch batch = new Batch();
+            batch.hits = new long[this.compact ? INITIAL_HIT_CAPACITY : batchSize];
+            batch.passes = this.compact ? null : new boolean[batchSize];
+            freeBatches.add(batch);
+        }
+    }
+
+    /**
+     * Switches the kernel to top K mode, keeping the best topKSize builds of each work group that are not below the
+     * current threshold. topKSize has to fit within a work group.
+     */
+    public void setTopK(final int topKSize, final IntSupplier topKThreshold) {
+        this.topKSize = topKSize;
+        this.topKThreshold = topKThreshold;
+        this.localTopKValues = new int[range.getLocalSize(0)];
+        this.localTopKIterations = new long[range.getLocalSize(0)];
+        this.compact = true;
+    }
+
+    /**
+     * Runs the chunks claimed by worker, in units of unitSize iterations, and returns once every dispatched batch has
+     * been decoded. Returns false if a kernel failed to execute.
+     */
+    public boolean run(final ChunkScheduler.Worker worker,
+                       final long unitSize,
+                       final BooleanSupplier cancelled,
+                       final BatchDecoder decoder) throws InterruptedException {
+        final ExecutorService decoderService = Executors.newFixedThreadPool(decoders);
+        for (int i = 0; i < decoders; i++) {
+            decoderService.submit(() -> decodeLoop(decoder));
+        }
+
+        final long[] chunk = new long[2];
+        boolean success = true;
+        try {
+            chunks:
+            while (!cancelled.getAsBoolean() && worker.claim(chunk)) {
+                final long chunkStart = System.nanoTime();
+                final long end = chunk[1] * unitSize;
+
+                for (long offset = chunk[0] * unitSize; offset < end; offset += batchSize) {
+                    if (cancelled.getAsBoolean()) {
+                        break chunks;
+                    }
+
+                    final long waitStart = System.nanoTime();
+                    final Batch batch = freeBatches.take();
+                    final long kernelStart = System.nanoTime();
+                    bufferWaitNanos.addAndGet(kernelStart - waitStart);
+
+                    batch.offset = offset;
+                    batch.length = (int) Math.min(batchSize, end - offset);
+                    try {
+                        execute(batch);
+                    } catch (final Exception e) {
+                        System.err.println("GPU error, please try again. " + e);
+                        success = false;
+                        break chunks;
+                    }
+                    kernelNanos.addAndGet(System.nanoTime() - kernelStart);
+
+                    dispatched++;
+                    readyBatches.put(batch);
+                }
+
+                worker.completed(chunk[1] - chunk[0], System.nanoTime() - chunkStart);
+            }
+        } finally {
+            for (int i = 0; i < decoders; i++) {
+                readyBatches.put(END);
+            }
+            decoderService.shutdown();
+            decoderService.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        }
+
+        printTimings();
+        return success;
+    }
+
+    /**
+     * Times one batch of batchSize iterations from offset without decoding it, in nanoseconds
+     */
+    public long benchmark(final long offset) throws InterruptedException {
+        final Batch batch = freeBatches.take();
+        try {
+            batch.offset = offset;
+            batch.length = batchSize;
+            final long start = System.nanoTime();
+            execute(batch);
+            return System.nanoTime() - start;
+        } finally {
+            freeBatches.add(batch);
+        }
+    }
+
+    private void execute(final Batch batch) {
+        kernel.setRange(batch.offset, batch.offset + batch.length);
+        kernel.setTopK(topKSize > 0 ? 1 : 0);
+        if (topKSize > 0) {
+            kernel.setLocalTopKValues(localTopKValues);
+            kernel.setLocalTopKIterations(localTopKIterations);
+            kernel.setTopKLocalSize(topKSize);
+            kernel.setTopKThreshold(topKThreshold.getAsInt());
+        }
+
+        while (compact) {
+            batch.hitCount[0] = 0;
+            kernel.setCompact(1);
+            kernel.setPasses(noPasses);
+            kernel.setHits(batch.hits);
+            kernel.setHitCount(batch.hitCount);
+            kernel.execute(range);
+
+            batch.count = batch.hitCount[0];
+            if (batch.count <= batch.hits.length) {
+                compacted++;
+                return;
+            }
+
+            overflows++;
+            if (batch.count > batchSize / 8 && topKSize == 0 && kernel.supportsPasses()) {
+                // Dense enough that a boolean per build is cheaper than an index per hit
+                compact = false;
+            } else {
+                batch.hits = new long[Integer.highestOneBit(batch.count - 1) << 1];
+            }
+        }
+
+        if (batch.passes == null) {
+            batch.passes = new boolean[batchSize];
+        }
+        batch.count = -1;
+        kernel.setCompact(0);
+        kernel.setPasses(batch.passes);
+        kernel.setHits(noHits);
+        kernel.setHitCount(noHitCount);
+        kernel.execute(range);
+    }
+
+    private void decodeLoop(final BatchDecoder decoder) {
+        while (true) {
+            final Batch batch;
+            final long waitStart = System.nanoTime();
+            try {
+                batch = readyBatches.take();
+            } catch (final InterruptedException e) {
+                return;
+            }
+            final long decodeStart = System.nanoTime();
+            readyWaitNanos.addAndGet(decodeStart - waitStart);
+
+            if (batch == END) {
+                return;
+            }
+
+            try {
+                if (batch.count < 0) {
+                    collectPasses(batch);
+                }
+                hitCounter.addAndGet(batch.count);
+                decoder.decode(batch.hits, batch.count, batch.length);
+            } catch (final Exception e) {
+                e.printStackTrace();
+            } finally {
+                decodeNanos.addAndGet(System.nanoTime() - decodeStart);
+                freeBatches.add(batch);
+            }
+        }
+    }
+
+    // Gathers the flagged iterations of an uncompacted batch into its hits buffer
+    private void collectPasses(final Batch batch) {
+        if (batch.hits.length < batch.length) {
+            batch.hits = new long[batchSize];
+        }
+
+        int count = 0;
+        for (int j = 0; j < batch.length; j++) {
+            if (batch.passes[j]) {
+                batch.hits[count++] = batch.offset + j;
+            }
+        }
+        batch.count = count;
+    }
+
+    private void printTimings() {
+        System.out.println("GPU pipeline: " + dispatched + " batches"
+                + ", " + compacted + " compacted"
+                + ", " + overflows + " overflow reruns"
+                + ", " + hitCounter.get() + " hits"
+                + ", kernel " + TimeUnit.NANOSECONDS.toMillis(kernelNanos.get()) + " ms"
+                + ", dispatch waiting for buffers " + TimeUnit.NANOSECONDS.toMillis(bufferWaitNanos.get()) + " ms"
+                + ", decode " + TimeUnit.NANOSECONDS.toMillis(decodeNanos.get()) + " ms"
+                + ", decoders waiting for batches " + TimeUnit.NANOSECONDS.toMillis(readyWaitNanos.get()) + " ms");
+    }
+}
@@ -0,0 +1,157 @@
+package com.fribbels.gpu;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Batch and work group sizes for each device, driver and kernel class, found by timing a small matrix of candidates
+ * the first time a device runs a kernel class on a large enough request. The winners are persisted to a local profile
+ * file, so later starts reuse them instead of benchmarking again. A driver update changes the key and retunes.
+ *
+ * JTP devices keep the defaults unless -DgpuAutoTuneJtp is set, timing the thread pool mostly measures the host.
+ */
+public class GpuTuningProfile {
+
+    public static boolean SETTING_GPU_AUTO_TUNE = true;
+
+    private static final boolean TUNE_JTP = Boolean.getBoolean("gpuAutoTuneJtp");
+    private static final File PROFILE_FILE = new File(System.getProperty("gpuTuningProfile",
+            new File(System.getProperty("user.home"), ".fribbels-optimizer-gpu-profile.json").getPath()));
+
+    private static final int[] BATCH_SIZES = new int[]{524288, 1048576, 2097152};
+    private static final int[] WORK_GROUP_SIZES = new int[]{64, 128, 256};
+    private static final int BENCHMARK_RUNS = 2;
+
+    private static final Gson gson = new Gson();
+    private static Map<String, Tuning> tunings;
+
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class Tuning {
+
+        private int batchSize;
+        private int workGroupSize;
+        private double millionsPerSecond;
+    }
+
+    /**
+     * The tuned sizes for running kernel on device, tuning them first if the profile has none and total covers the
+     * largest candidate batch. Falls back to the given defaults otherwise.
+     */
+    public static synchronized Tuning get(final GpuDevice device,
+                                          final GpuOptimizerKernel kernel,
+                                          final int defaultBatchSize,
+                                          final int maxWorkGroupSize,
+                                          final long total) {
+        final String key = device.getName() + "|" + device.getDriver() + "|" + kernel.getClass().getSimpleName();
+        final Tuning saved = load().get(key);
+        if (saved != null) {
+            return saved;
+        }
+
+        final Tuning defaults = new Tuning(defaultBatchSize, maxWorkGroupSize, 0);
+        if (!SETTING_GPU_AUTO_TUNE
+                || (device.getOpenCLDevice() == null && !TUNE_JTP)
+                || total < BATCH_SIZES[BATCH_SIZES.length - 1]) {
+            return defaults;
+        }
+
+        System.out.println("Tuning " + key);
+        Tuning best = null;
+        for (final int batchSize : BATCH_SIZES) {
+            for (final int workGroupSize : workGroupSizes(maxWorkGroupSize)) {
+                final double millionsPerSecond = benchmark(device, kernel, batchSize, workGroupSize);
+                System.out.printf("Tuning batch %d, work group %d: %.1f M/s%n", batchSize, workGroupSize, millionsPerSecond);
+                if (best == null || millionsPerSecond > best.millionsPerSecond) {
+                    best = new Tuning(batchSize, workGroupSize, millionsPerSecond);
+                }
+            }
+        }
+
+        if (best == null || best.millionsPerSecond <= 0) {
+            return defaults;
+        }
+
+        System.out.println("Tuned " + key + ": " + best);
+        tunings.put(key, best);
+        save();
+        return best;
+    }
+
+    private static int[] workGroupSizes(final int maxWorkGroupSize) {
+        return IntStream.concat(Arrays.stream(WORK_GROUP_SIZES), IntStream.of(maxWorkGroupSize))
+                .filter(x -> x <= maxWorkGroupSize)
+                .distinct()
+                .toArray();
+    }
+
+    // Best of a few timed batches after a warm up batch, 0 if the configuration failed
+    private static double benchmark(final GpuDevice device, final GpuOptimizerKernel kernel, final int batchSize, final int workGroupSize) {
+        try {
+            final GpuPipeline pipeline = new GpuPipeline(kernel, device.createRange(batchSize, workGroupSize), batchSize, 1, 1, true);
+            pipeline.benchmark(0);
+
+            long bestNanos = Long.MAX_VALUE;
+            for (int i = 0; i < BENCHMARK_RUNS; i++) {
+                bestNanos = Math.min(bestNanos, pipeline.benchmark(0));
+            }
+            return batchSize / (Math.max(1, bestNanos) / 1e9) / 1_000_000;
+        } catch (final Exception | OutOfMemoryError e) {
+            System.out.println("Tuning batch " + batchSize + ", work group " + workGroupSize + " failed " + e);
+            return 0;
+        }
+    }
+
+    public static synchronized Map<String, Tuning> getTunings() {
+        return new TreeMap<>(load());
+    }
+
+    public static synchronized void reset() {
+        tunings = new HashMap<>();
+        if (PROFILE_FILE.exists() && !PROFILE_FILE.delete()) {
+            System.out.println("Could not delete GPU tuning profile " + PROFILE_FILE);
+        }
+        System.out.println("Reset GPU tuning profile");
+    }
+
+    private static Map<String, Tuning> load() {
+        if (tunings != null) {
+            return tunings;
+        }
+
+        tunings = new HashMap<>();
+        if (PROFILE_FILE.exists()) {
+            try {
+                final Map<String, Tuning> saved = gson.fromJson(Files.asCharSource(PROFILE_FILE, Charsets.UTF_8).read(), new TypeToken<Map<String, Tuning>>(){}.getType());
+                if (saved != null) {
+                    tunings.putAll(saved);
+                }
+                System.out.println("Loaded GPU tuning profile " + PROFILE_FILE + " with " + tunings.size() + " entries");
+            } catch (final Exception e) {
+                System.out.println("Could not read GPU tuning profile " + PROFILE_FILE + " " + e);
+            }
+        }
+        return tunings;
+    }
+
+    private static void save() {
+        try {
+            Files.asCharSink(PROFILE_FILE, Charsets.UTF_8).write(gson.toJson(tunings));
+        } catch (final Exception e) {
+            System.out.println("Could not write GPU tuning profile " + PROFILE_FILE + " " + e);
+        }
+    }
+}
@@ -1,27 +1,26 @@
 package com.fribbels.gpu;
 
-import com.fribbels.model.Hero;
-import com.fribbels.model.HeroStats;
-import com.fribbels.request.OptimizationRequest;
-
 public class SetFormat000OptimizerKernel extends GpuOptimizerKernel {
 
-    public SetFormat000OptimizerKernel(final OptimizationRequest request, final float[] flattenedWeaponAccs, final float[] flattenedHelmetAccs, final float[] flattenedArmorAccs, final float[] flattenedNecklaceAccs, final float[] flattenedRingAccs, final float[] flattenedBootAccs, final float bonusBaseAtk, final float bonusBaseDef, final float bonusBaseHp, final float atkSetBonus, final float hpSetBonus, final float defSetBonus, final float speedSetBonus, final float revengeSetBonus, final float penSetDmgBonus, final float targetDefense, final float bonusMaxAtk, final float bonusMaxDef, final float bonusMaxHp, final int SETTING_RAGE_SET, final int SETTING_PEN_SET, final HeroStats base, final Hero hero, final long argSize, final long wSize, final long hSize, final long aSize, final long nSize, final long rSize, final long bSize, final long max, final int[] setSolutionBitMasks) {
-        super(request, flattenedWeaponAccs, flattenedHelmetAccs, flattenedArmorAccs, flattenedNecklaceAccs, flattenedRingAccs, flattenedBootAccs, bonusBaseAtk, bonusBaseDef, bonusBaseHp, atkSetBonus, hpSetBonus, defSetBonus, speedSetBonus, revengeSetBonus, penSetDmgBonus, targetDefense, bonusMaxAtk, bonusMaxDef, bonusMaxHp, SETTING_RAGE_SET, SETTING_PEN_SET, base, hero, argSize, wSize, hSize, aSize, nSize, rSize, bSize, max, setSolutionBitMasks);
-    }
-
     @Override
     public void run() {
         final int id = getGlobalId();
 
-        final long i = max * iteration + id;
-        if (i < wSize * hSize * aSize * nSize * rSize * bSize) {
-            final long b = i % bSize;
-            final long r = ( ( i - b ) / bSize ) %  rSize;
-            final long n = ( ( i - r * bSize - b ) / (bSize * rSize) ) % nSize;
-            final long a = ( ( i - n * rSize * bSize - r * bSize - b ) / (bSize * rSize * nSize) ) % aSize;
-            final long h = ( ( i - a * nSize * rSize * bSize - n * rSize * bSize - r * bSize - b) / (bSize * rSize * nSize * aSize) ) % hSize;
-            final long w = ( ( i - h * aSize * nSize * rSize * bSize - a * nSize * rSize * bSize - n * rSize * bSize - r * bSize - b) / (bSize * rSize * nSize * aSize * hSize) ) % wSize;
+        final long i = offset + id;
+        boolean pass = false;
+        int topKValue = 0;
+        if (i < end) {
+            final int bCarry = baseB + id;
+            final int b = bCarry % (int) bSize;
+            final int rCarry = baseR + bCarry / (int) bSize;
+            final int r = rCarry % (int) rSize;
+            final int nCarry = baseN + rCarry / (int) rSize;
+            final int n = nCarry % (int) nSize;
+            final int aCarry = baseA + nCarry / (int) nSize;
+            final int a = aCarry % (int) aSize;
+            final int hCarry = baseH + aCarry / (int) aSize;
+            final int h = hCarry % (int) hSize;
+            final int w = baseW + hCarry / (int) hSize;
 
             final int wargSize = (int)(w * argSize);
             final float wAtk =   flattenedWeaponAccs[wargSize];
@@ -126,27 +125,48 @@ public class SetFormat000OptimizerKernel extends GpuOptimizerKernel {
             final int iRset = (int)rSet;
             final int iBset = (int)bSet;
 
-            final int setIndex = iWset * 1889568
-                    + iHset * 104976
-                    + iAset * 5832
-                    + iNset * 324
-                    + iRset * 18
-                    + iBset;
+            // Sort the six sets, then rank the multiset like SetValidityTable.rank
+            int m0 = iWset;
+            int m1 = iHset;
+            int m2 = iAset;
+            int m3 = iNset;
+            int m4 = iRset;
+            int m5 = iBset;
+            int swap = 0;
+            swap = min(m0, m5); m5 = max(m0, m5); m0 = swap;
+            swap = min(m1, m3); m3 = max(m1, m3); m1 = swap;
+            swap = min(m2, m4); m4 = max(m2, m4); m2 = swap;
+            swap = min(m1, m2); m2 = max(m1, m2); m1 = swap;
+            swap = min(m3, m4); m4 = max(m3, m4); m3 = swap;
+            swap = min(m0, m3); m3 = max(m0, m3); m0 = swap;
+            swap = min(m2, m5); m5 = max(m2, m5); m2 = swap;
+            swap = min(m0, m1); m1 = max(m0, m1); m0 = swap;
+            swap = min(m2, m3); m3 = max(m2, m3); m2 = swap;
+            swap = min(m4, m5); m5 = max(m4, m5); m4 = swap;
+            swap = min(m1, m2); m2 = max(m1, m2); m1 = swap;
+            swap = min(m3, m4); m4 = max(m3, m4); m3 = swap;
+            final int multisetIndex = multisetBinomial[m0 * 7 + 1]
+                    + multisetBinomial[(m1 + 1) * 7 + 2]
+                    + multisetBinomial[(m2 + 2) * 7 + 3]
+                    + multisetBinomial[(m3 + 3) * 7 + 4]
+                    + multisetBinomial[(m4 + 4) * 7 + 5]
+                    + multisetBinomial[(m5 + 5) * 7 + 6];
+            final int setMask = setSolutionBitMasks[multisetIndex];
 
-            final int hpSet = min(1, setSolutionBitMasks[setIndex] & (1)) + min(1, setSolutionBitMasks[setIndex] & (1 << 1)) + min(1, setSolutionBitMasks[setIndex] & (1 << 2));
-            final int defSet = min(1, setSolutionBitMasks[setIndex] & (1 << 3)) + min(1, setSolutionBitMasks[setIndex] & (1 << 4)) + min(1, setSolutionBitMasks[setIndex] & (1 << 5));
-            final int atkSet = min(1, setSolutionBitMasks[setIndex] & (1 << 6));
-            final int speedSet = min(1, setSolutionBitMasks[setIndex] & (1 << 7));
-            final int crSet = min(1, setSolutionBitMasks[setIndex] & (1 << 8)) + min(1, setSolutionBitMasks[setIndex] & (1 << 9)) + min(1, setSolutionBitMasks[setIndex] & (1 << 10));
-            final int effSet = min(1, setSolutionBitMasks[setIndex] & (1 << 11)) + min(1, setSolutionBitMasks[setIndex] & (1 << 12)) + min(1, setSolutionBitMasks[setIndex] & (1 << 13));
-            final int cdSet = min(1, setSolutionBitMasks[setIndex] & (1 << 14));
-            final int resSet = min(1, setSolutionBitMasks[setIndex] & (1 << 17)) + min(1, setSolutionBitMasks[setIndex] & (1 << 18)) + min(1, setSolutionBitMasks[setIndex] & (1 << 19));
-            final int rageSet = min(1, setSolutionBitMasks[setIndex] & (1 << 21));
-            final int penSet = min(1, setSolutionBitMasks[setIndex] & (1 << 23));
-            final int revengeSet = min(1, setSolutionBitMasks[setIndex] & (1 << 24));
-//            final int protectionSet = min(1, setSolutionBitMasks[setIndex] & (1 << 25));
-//            final int injurySet = min(1, setSolutionBitMasks[setIndex] & (1 << 26));
-            final int torrentSet = min(1, setSolutionBitMasks[setIndex] & (1 << 27)) + min(1, setSolutionBitMasks[setIndex] & (1 << 28)) + min(1, setSolutionBitMasks[setIndex] & (1 << 29));
+            final int hpSet = min(1, setMask & (1)) + min(1, setMask & (1 << 1)) + min(1, setMask & (1 << 2));
+            final int defSet = min(1, setMask & (1 << 3)) + min(1, setMask & (1 << 4)) + min(1, setMask & (1 << 5));
+            final int atkSet = min(1, setMask & (1 << 6));
+            final int speedSet = min(1, setMask & (1 << 7));
+            final int crSet = min(1, setMask & (1 << 8)) + min(1, setMask & (1 << 9)) + min(1, setMask & (1 << 10));
+            final int effSet = min(1, setMask & (1 << 11)) + min(1, setMask & (1 << 12)) + min(1, setMask & (1 << 13));
+            final int cdSet = min(1, setMask & (1 << 14));
+            final int resSet = min(1, setMask & (1 << 17)) + min(1, setMask & (1 << 18)) + min(1, setMask & (1 << 19));
+            final int rageSet = min(1, setMask & (1 << 21));
+            final int penSet = min(1, setMask & (1 << 23));
+            final int revengeSet = min(1, setMask & (1 << 24));
+//            final int protectionSet = min(1, setMask & (1 << 25));
+//            final int injurySet = min(1, setMask & (1 << 26));
+            final int torrentSet = min(1, setMask & (1 << 27)) + min(1, setMask & (1 << 28)) + min(1, setMask & (1 << 29));
 
             final float atk =  ((bonusBaseAtk  + wAtk+hAtk+aAtk+nAtk+rAtk+bAtk + (atkSet * atkSetBonus)) * bonusMaxAtk);
             final float hp =   ((bonusBaseHp   + wHp+hHp+aHp+nHp+rHp+bHp + (hpSet * hpSetBonus + torrentSet * hpSetBonus/-2)) * bonusMaxHp);
@@ -237,8 +257,14 @@ public class SetFormat000OptimizerKernel extends GpuOptimizerKernel {
                     ||  s3 < inputMinS3Limit || s3 > inputMaxS3Limit
                     ||  bs < inputMinBSLimit || bs > inputMaxBSLimit;
 
-            passes[id] = !(f1 || f2 || f3);
+            pass = !(f1 || f2 || f3);
+            if (topK == 1) {
+                topKValue = getColumnValue(topKColumn, (int) atk, (int) hp, (int) def, spd, cr, cd, eff, res, cp, hpps, ehp, ehpps,
+                        dmg, dmgps, mcdmg, mcdmgps, dmgh, dmgd, s1, s2, s3, upgrades, conversions, eq, score, bs, priority);
+            }
         }
+
+        output(id, i, pass, topKValue);
     }
 
     private int getSkillValue(final int s,
@@ -0,0 +1,111 @@
+package com.fribbels.gpu;
+
+import com.fribbels.core.SetValidityTable;
+
+import static com.fribbels.handler.OptimizationRequestHandler.SET_COUNT;
+
+/**
+ * The set bonus bits the GPU kernels read for a build, see GpuOptimizerKernel. Bonuses only depend on how many items
+ * of each set a build has, so there is one mask per multiset of six sets, indexed by SetValidityTable.rank, instead of
+ * one per ordered 18^6 set index. The table is built on first GPU use, shared by every request, and released when GPU
+ * acceleration is turned off.
+ */
+public class SetSolutionMasks {
+
+    private static final int PIECES = 6;
+
+    private static int[] masks;
+
+    public static synchronized int[] get() {
+        if (masks == null) {
+            final long start = System.currentTimeMillis();
+            masks = new int[SetValidityTable.multisetCount()];
+            fill(new int[SET_COUNT], PIECES, 0);
+            System.out.println("Built " + masks.length + " set solution masks in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        return masks;
+    }
+
+    public static synchronized void release() {
+        masks = null;
+    }
+
+    private static void fill(final int[] counters, final int remaining, final int fromSet) {
+        if (remaining == 0) {
+            masks[SetValidityTable.rank(counters)] = mask(counters);
+            return;
+        }
+
+        for (int set = fromSet; set < SET_COUNT; set++) {
+            counters[set]++;
+            fill(counters, remaining - 1, set);
+            counters[set]--;
+        }
+    }
+
+    private static int mask(final int[] counters) {
+        int l = 0;
+
+        l += counters[17] / 2 > 0 ? 1 : 0; // torrent 1
+        l <<= 1;
+        l += counters[17] / 2 - 1 > 0 ? 1 : 0; // torrent 2
+        l <<= 1;
+        l += counters[17] / 2 - 2 > 0 ? 1 : 0; // torrent 3
+        l <<= 1;
+        l += counters[16] / 4 > 0 ? 1 : 0; // protection
+        l <<= 1;
+        l += counters[15] / 4 > 0 ? 1 : 0; // injury
+        l <<= 1;
+        l += counters[14] / 4 > 0 ? 1 : 0; // revenge
+        l <<= 1;
+        l += counters[13] / 2 > 0 ? 1 : 0; // pen
+        l <<= 1;
+        l += counters[12] / 2 > 0 ? 1 : 0; // immunity
+        l <<= 1;
+        l += counters[11] / 4 > 0 ? 1 : 0; // rage
+        l <<= 1;
+        l += counters[10] / 2 > 0 ? 1 : 0; // unity - should be x3 but don't need it
+        l <<= 1;
+        l += counters[9] / 2 > 0 ? 1 : 0; // res1
+        l <<= 1;
+        l += counters[9] / 2 - 1 > 0 ? 1 : 0; // res2
+        l <<= 1;
+        l += counters[9] / 2 - 2 > 0 ? 1 : 0; // res3
+        l <<= 1;
+        l += counters[8] / 4 > 0 ? 1 : 0; // counter
+        l <<= 1;
+        l += counters[7] / 4 > 0 ? 1 : 0; // lifesteal
+        l <<= 1;
+        l += counters[6] / 4 > 0 ? 1 : 0; // destr
+        l <<= 1;
+        l += counters[5] / 2 > 0 ? 1 : 0; // hit1
+        l <<= 1;
+        l += counters[5] / 2 - 1 > 0 ? 1 : 0; // hit2
+        l <<= 1;
+        l += counters[5] / 2 - 2 > 0 ? 1 : 0; // hit3
+        l <<= 1;
+        l += counters[4] / 2 > 0 ? 1 : 0; // crit1
+        l <<= 1;
+        l += counters[4] / 2 - 1 > 0 ? 1 : 0; // crit2
+        l <<= 1;
+        l += counters[4] / 2 - 2 > 0 ? 1 : 0;  // crit3
+        l <<= 1;
+        l += counters[3] / 4 > 0 ? 1 : 0; // spd
+        l <<= 1;
+        l += counters[2] / 4 > 0 ? 1 : 0; // atk
+        l <<= 1;
+        l += counters[1] / 2 > 0 ? 1 : 0; // def1
+        l <<= 1;
+        l += counters[1] / 2 - 1 > 0 ? 1 : 0; // def2
+        l <<= 1;
+        l += counters[1] / 2 - 2 > 0 ? 1 : 0; // def3
+        l <<= 1;
+        l += counters[0] / 2 > 0 ? 1 : 0; // hp1
+        l <<= 1;
+        l += counters[0] / 2 - 1 > 0 ? 1 : 0; // hp2
+        l <<= 1;
+        l += counters[0] / 2 - 2 > 0 ? 1 : 0; // hp3
+
+        return l;
+    }
+}
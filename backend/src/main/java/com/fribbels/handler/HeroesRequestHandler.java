@@ -60,7 +60,7 @@ public class HeroesRequestHandler extends RequestHandler implements HttpHandler
                     return;
                 case "/heroes/getAllHeroes":
                     final GetAllHeroesRequest getAllHeroesRequest = parseRequest(exchange, GetAllHeroesRequest.class);
-                    sendResponse(exchange, getAllHeroes(getAllHeroesRequest));
+                    sendJsonResponse(exchange, getAllHeroes(getAllHeroesRequest));
                     return;
                 case "/heroes/removeHeroById":
                     final IdRequest removeHeroByIdRequest = parseRequest(exchange, IdRequest.class);
@@ -284,7 +284,7 @@ public class HeroesRequestHandler extends RequestHandler implements HttpHandler
         return "";
     }
 
-    public String getAllHeroes(final GetAllHeroesRequest request) {
+    public GetAllHeroesResponse getAllHeroes(final GetAllHeroesRequest request) {
         try {
             final List<Hero> rawHeroes = heroDb.getAllHeroes();
             final List<Hero> heroes = rawHeroes.stream().map(x -> x.withCp(x.getCp())).collect(Collectors.toList());
@@ -297,7 +297,7 @@ public class HeroesRequestHandler extends RequestHandler implements HttpHandler
 
             final GetAllHeroesResponse response = GetAllHeroesResponse.builder().heroes(heroes).build();
 
-            return toJson(response);
+            return response;
         } catch (final RuntimeException e) {
             System.err.println("err" + e);
             e.printStackTrace();
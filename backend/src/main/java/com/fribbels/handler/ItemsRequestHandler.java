@@ -72,7 +72,7 @@ public class ItemsRequestHandler extends RequestHandler implements HttpHandler {
                     sendResponse(exchange, setItems(setItemsRequest));
                     return;
                 case "/items/getAllItems":
-                    sendResponse(exchange, getAllItems());
+                    sendJsonResponse(exchange, getAllItems());
                     return;
                 case "/items/getItemById":
                     final IdRequest getItemByIdRequest = parseRequest(exchange, IdRequest.class);
@@ -547,7 +547,7 @@ public class ItemsRequestHandler extends RequestHandler implements HttpHandler {
         return "";
     }
 
-    public String getAllItems() {
+    public GetAllItemsResponse getAllItems() {
         final List<Item> items = itemDb.getAllItems();
         augmentItemData(items);
         final GetAllItemsResponse response = GetAllItemsResponse.builder()
@@ -577,7 +577,7 @@ public class ItemsRequestHandler extends RequestHandler implements HttpHandler {
 //            }
 //        }
 
-        return toJson(response);
+        return response;
     }
 
     private void clearItemEquipped(final Item item) {
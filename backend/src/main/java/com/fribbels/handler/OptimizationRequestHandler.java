@@ -5,21 +5,37 @@ import com.aparapi.Range;
 import com.aparapi.device.Device;
 import com.aparapi.device.OpenCLDevice;
 import com.aparapi.internal.kernel.KernelManager;
-import com.aparapi.internal.opencl.OpenCLPlatform;
 import com.fribbels.Main;
 import com.fribbels.db.ItemDb;
+import com.fribbels.gpu.GpuDevice;
+import com.fribbels.gpu.GpuDevices;
+import com.fribbels.gpu.GpuKernelCache;
+import com.fribbels.gpu.GpuKernelSpecialization;
 import com.fribbels.gpu.GpuOptimizerKernel;
-import com.fribbels.gpu.SetFormat000OptimizerKernel;
+import com.fribbels.gpu.GpuPipeline;
+import com.fribbels.gpu.GpuTuningProfile;
+import com.fribbels.gpu.SetSolutionMasks;
+import com.fribbels.core.BootsBlockFilter;
+import com.fribbels.core.ChunkScheduler;
+import com.fribbels.core.CompiledFilter;
+import com.fribbels.core.DominanceFilter;
+import com.fribbels.core.MixedRadixIndex;
+import com.fribbels.core.OptimizationRangeTask;
+import com.fribbels.core.PartialSumIndex;
+import com.fribbels.core.ResultStore;
+import com.fribbels.core.SetValidityTable;
+import com.fribbels.core.StatBounds;
 import com.fribbels.core.StatCalculator;
+import com.fribbels.core.TopKHeap;
 import com.fribbels.db.BaseStatsDb;
 import com.fribbels.db.HeroDb;
 import com.fribbels.db.OptimizationDb;
 import com.fribbels.enums.Gear;
+import com.fribbels.enums.OptimizationColumn;
 import com.fribbels.enums.Set;
 import com.fribbels.model.Hero;
 import com.fribbels.model.HeroStats;
 import com.fribbels.model.Item;
-import com.fribbels.model.PassesContainer;
 import com.fribbels.request.EditResultRowsRequest;
 import com.fribbels.request.GetResultRowsRequest;
 import com.fribbels.request.IdRequest;
@@ -28,40 +44,55 @@ import com.fribbels.response.GetInProgressResponse;
 import com.fribbels.response.GetResultRowsResponse;
 import com.fribbels.response.OptimizationResponse;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
 import com.google.gson.Gson;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import lombok.Getter;
 import lombok.SneakyThrows;
 import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class OptimizationRequestHandler extends RequestHandler implements HttpHandler {
 
     public static int SETTING_MAXIMUM_RESULTS = 5_000_000;
     public static boolean SETTING_GPU = true;
+    public static boolean SETTING_DOMINANCE_FILTER = false;
+    public static boolean SETTING_GPU_COMPACTION = true;
+    // CPU workers search alongside the GPU, claiming chunks from the same scheduler
+    public static boolean SETTING_HETEROGENEOUS = true;
+    // Top K requests rank builds per work group on the GPU, only the best of each group are read back
+    public static boolean SETTING_GPU_TOP_K = true;
+    // OpenCL devices run kernels generated for the request's filters and set format, see GpuKernelGenerator
+    public static boolean SETTING_GPU_GENERATED_KERNELS = true;
+    // JTP runs the GPU path on CPU threads, for machines without an OpenCL device
+    @SuppressWarnings("deprecation") // Aparapi deprecates EXECUTION_MODE without a replacement for forcing JTP
+    public static Kernel.EXECUTION_MODE GPU_EXECUTION_MODE = Kernel.EXECUTION_MODE.valueOf(System.getProperty("gpuExecutionMode", "GPU"));
 
     private BaseStatsDb baseStatsDb;
     private Map<String, OptimizationDb> optimizationDbs;
@@ -73,118 +104,44 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
     @Getter
     private AtomicLong searchedCounter = new AtomicLong(0);
     private AtomicLong resultsCounter = new AtomicLong(0);
-
-    private int[] setSolutionBitMasks;
+    private AtomicLong prunedCounter = new AtomicLong(0);
 
     private boolean canUseGpu = true;
 
     public static final int SET_COUNT = 18;
     public static final int ARG_COUNT = 17;
 
-    //
-    private static final int SET_EXPONENTIAL = 34012224; // 16 ^ 6
+    private static final long MEET_IN_THE_MIDDLE_MAX_HALF_SIZE = 8_000_000;
+    private static final float MEET_IN_THE_MIDDLE_MAX_PASS_RATE = 0.25f;
+
+    private static final int GPU_PIPELINE_BUFFERS = 3;
+    private static final int GPU_PIPELINE_DECODERS = 2;
 
-    private boolean[] permutations = new boolean[SET_EXPONENTIAL];
-    private int[] setPermutationIndicesPlusOne = new int[SET_EXPONENTIAL];
+    // Result rows filtered per parallel task, in 64 row words
+    private static final int FILTER_BLOCK_WORDS = 1024;
 
     public static OptimizationRequestHandler instance;
 
     public void configureGpu(final boolean gpuEnabled) {
         System.out.println("GPU acceleration enabled: " + gpuEnabled);
         OptimizationRequestHandler.SETTING_GPU = gpuEnabled;
+        GpuKernelCache.disposeAll();
 
         if (gpuEnabled) {
             final Device device = KernelManager.instance().bestDevice();
             Main.BEST_DEVICE_ID = device.getDeviceId();
+            GpuDevices.discover(GPU_EXECUTION_MODE.name(), Main.BEST_DEVICE_ID);
 
             System.out.println(KernelManager.instance().bestDevice().getType());
 
+            // JTP and the other CPU modes don't need an OpenCL device, so the device checks below don't apply
+            if (!isGpuExecutionMode()) {
+                System.out.println("GPU path running in " + GPU_EXECUTION_MODE + " mode, skipping the OpenCL device check");
+                canUseGpu = true;
+                return;
+            }
 
             ExecutorService t = Executors.newFixedThreadPool(3);
-            t.execute(() -> {
-                setSolutionBitMasks = new int[SET_EXPONENTIAL];
-                int count = 0;
-                for (int a = 0; a < SET_COUNT; a++) {
-                    for (int b = 0; b < SET_COUNT; b++) {
-                        for (int c = 0; c < SET_COUNT; c++) {
-                            for (int d = 0; d < SET_COUNT; d++) {
-                                for (int e = 0; e < SET_COUNT; e++) {
-                                    for (int f = 0; f < SET_COUNT; f++) {
-                                        int[] sets = new int[]{a, b, c, d, e, f};
-                                        int[] counters = convertSetsToSetCounters(sets);
-
-                                        int l = 0;
-
-                                        l += counters[17] / 2 > 0 ? 1 : 0; // torrent 1
-                                        l <<= 1;
-                                        l += counters[17] / 2 - 1 > 0 ? 1 : 0; // torrent 2
-                                        l <<= 1;
-                                        l += counters[17] / 2 - 2 > 0 ? 1 : 0; // torrent 3
-                                        l <<= 1;
-                                        l += counters[16] / 4 > 0 ? 1 : 0; // protection
-                                        l <<= 1;
-                                        l += counters[15] / 4 > 0 ? 1 : 0; // injury
-                                        l <<= 1;
-                                        l += counters[14] / 4 > 0 ? 1 : 0; // revenge
-                                        l <<= 1;
-                                        l += counters[13] / 2 > 0 ? 1 : 0; // pen
-                                        l <<= 1;
-                                        l += counters[12] / 2 > 0 ? 1 : 0; // immunity
-                                        l <<= 1;
-                                        l += counters[11] / 4 > 0 ? 1 : 0; // rage
-                                        l <<= 1;
-                                        l += counters[10] / 2 > 0 ? 1 : 0; // unity - should be x3 but don't need it
-                                        l <<= 1;
-                                        l += counters[9] / 2 > 0 ? 1 : 0; // res1
-                                        l <<= 1;
-                                        l += counters[9] / 2 - 1 > 0 ? 1 : 0; // res2
-                                        l <<= 1;
-                                        l += counters[9] / 2 - 2 > 0 ? 1 : 0; // res3
-                                        l <<= 1;
-                                        l += counters[8] / 4 > 0 ? 1 : 0; // counter
-                                        l <<= 1;
-                                        l += counters[7] / 4 > 0 ? 1 : 0; // lifesteal
-                                        l <<= 1;
-                                        l += counters[6] / 4 > 0 ? 1 : 0; // destr
-                                        l <<= 1;
-                                        l += counters[5] / 2 > 0 ? 1 : 0; // hit1
-                                        l <<= 1;
-                                        l += counters[5] / 2 - 1 > 0 ? 1 : 0; // hit2
-                                        l <<= 1;
-                                        l += counters[5] / 2 - 2 > 0 ? 1 : 0; // hit3
-                                        l <<= 1;
-                                        l += counters[4] / 2 > 0 ? 1 : 0; // crit1
-                                        l <<= 1;
-                                        l += counters[4] / 2 - 1 > 0 ? 1 : 0; // crit2
-                                        l <<= 1;
-                                        l += counters[4] / 2 - 2 > 0 ? 1 : 0;  // crit3
-                                        l <<= 1;
-                                        l += counters[3] / 4 > 0 ? 1 : 0; // spd
-                                        l <<= 1;
-                                        l += counters[2] / 4 > 0 ? 1 : 0; // atk
-                                        l <<= 1;
-                                        l += counters[1] / 2 > 0 ? 1 : 0; // def1
-                                        l <<= 1;
-                                        l += counters[1] / 2 - 1 > 0 ? 1 : 0; // def2
-                                        l <<= 1;
-                                        l += counters[1] / 2 - 2 > 0 ? 1 : 0; // def3
-                                        l <<= 1;
-                                        l += counters[0] / 2 > 0 ? 1 : 0; // hp1
-                                        l <<= 1;
-                                        l += counters[0] / 2 - 1 > 0 ? 1 : 0; // hp2
-                                        l <<= 1;
-                                        l += counters[0] / 2 - 2 > 0 ? 1 : 0; // hp3
-
-                                        setSolutionBitMasks[count] = l;
-                                        count++;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            });
-
             t.execute(() -> {
                 try {
                     final boolean isIntel = KernelManager
@@ -217,6 +174,8 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
                     System.out.println("Error detecting GPU");
                 }
             });
+        } else {
+            SetSolutionMasks.release();
         }
     }
 
@@ -228,13 +187,6 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
         this.itemDb = itemDb;
         this.instance = this;
         optimizationDbs = new HashMap<>();
-
-        ExecutorService t = Executors.newFixedThreadPool(3);
-
-        t.execute(() -> {
-            permutations = new boolean[SET_EXPONENTIAL];
-            setPermutationIndicesPlusOne = new int[SET_EXPONENTIAL];
-        });
     }
 
     @Override
@@ -268,7 +220,7 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
                 case "/optimization/getResultRows":
                     final GetResultRowsRequest getResultRowsRequest = parseRequest(exchange, GetResultRowsRequest.class);
                     System.out.println(getResultRowsRequest);
-                    sendResponse(exchange, handleGetResultRowsRequest(getResultRowsRequest));
+                    sendJsonResponse(exchange, handleGetResultRowsRequest(getResultRowsRequest));
                     System.out.println("Sent response");
                     return;
                 case "/optimization/editResultRows":
@@ -341,70 +293,58 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
         }
 
         heroDb.saveOptimizationRequest(request);
-        final HeroStats[] heroStats = optimizationDb.getAllHeroStats();
-        final int[] indices = new int[heroStats.length];
-        final java.util.Set<String> ids = new HashSet<>();
-        int count = 0;
+        final long start = System.currentTimeMillis();
+        final ResultStore results = optimizationDb.getResults();
+        final int size = (int) optimizationDb.getSize();
+        final long[] rows = new long[(size + 63) >>> 6];
+        if (!results.acquire()) {
+            return "";
+        }
 
-        for (int i = 0; i < heroStats.length; i++) {
-            final HeroStats heroStatsInstance = heroStats[i];
-            if (passesUpdatedFilter(request, heroStatsInstance)) {
-                boolean passesGearIdFilter = true;
-                if (hasExcludedGearIds) {
-                    for (final String gearId : heroStatsInstance.items) {
-                        if (excludedGearIds.containsKey(gearId)) {
-                            passesGearIdFilter = false;
-                            break;
+        // Blocks cover whole words of rows, so each one sets its own bits without synchronization. CompiledFilter
+        // keeps rejection counts, so every block uses its own copy.
+        final int blockSize = FILTER_BLOCK_WORDS * 64;
+        final CompiledFilter compiledFilter = CompiledFilter.compile(request);
+        try {
+            IntStream.range(0, (size + blockSize - 1) / blockSize).parallel().forEach(block -> {
+                final CompiledFilter filter = compiledFilter.copy();
+                final int[] values = new int[64];
+                final int end = Math.min(size, (block + 1) * blockSize);
+                for (int first = block * blockSize; first < end; first += 64) {
+                    long word = filter.passes(results, first, Math.min(64, end - first), values);
+                    if (hasExcludedGearIds) {
+                        for (long remaining = word; remaining != 0; remaining &= remaining - 1) {
+                            final int bit = Long.numberOfTrailingZeros(remaining);
+                            if (hasExcludedItem(results.getItems(first + bit), excludedGearIds)) {
+                                word &= ~(1L << bit);
+                            }
                         }
                     }
+                    rows[first >>> 6] = word;
                 }
+            });
+        } finally {
+            results.release();
+        }
 
-                if (passesGearIdFilter) {
-                    indices[count] = i;
-                    ids.add(heroStatsInstance.getId());
-                    count++;
-                }
-            }
+        int count = 0;
+        for (final long word : rows) {
+            count += Long.bitCount(word);
         }
+        System.out.println("Filtered " + count + " of " + size + " rows in " + (System.currentTimeMillis() - start) + "ms");
 
-//        System.out.println("Indices count: " + count);
-        optimizationDb.setFilteredIds(ids, count);
+        optimizationDb.setFilteredRows(rows, count);
 
         return "";
     }
 
-    private boolean passesUpdatedFilter(final OptimizationRequest request, final HeroStats heroStats) {
-        if (heroStats.getAtk() < request.getInputAtkMinLimit() || heroStats.getAtk() > request.getInputAtkMaxLimit()
-                ||  heroStats.getHp()  < request.getInputHpMinLimit()  || heroStats.getHp() > request.getInputHpMaxLimit()
-                ||  heroStats.getDef() < request.getInputDefMinLimit() || heroStats.getDef() > request.getInputDefMaxLimit()
-                ||  heroStats.getSpd() < request.getInputSpdMinLimit() || heroStats.getSpd() > request.getInputSpdMaxLimit()
-                ||  heroStats.getCr() < request.getInputCrMinLimit()   || heroStats.getCr() > request.getInputCrMaxLimit()
-                ||  heroStats.getCd() < request.getInputCdMinLimit()   || heroStats.getCd() > request.getInputCdMaxLimit()
-                ||  heroStats.getEff() < request.getInputEffMinLimit() || heroStats.getEff() > request.getInputEffMaxLimit()
-                ||  heroStats.getRes() < request.getInputResMinLimit() || heroStats.getRes() > request.getInputResMaxLimit()
-                ||  heroStats.getCp() < request.getInputMinCpLimit() || heroStats.getCp() > request.getInputMaxCpLimit()
-                ||  heroStats.getHpps() < request.getInputMinHppsLimit() || heroStats.getHpps() > request.getInputMaxHppsLimit()
-                ||  heroStats.getEhp() < request.getInputMinEhpLimit() || heroStats.getEhp() > request.getInputMaxEhpLimit()
-                ||  heroStats.getEhpps() < request.getInputMinEhppsLimit() || heroStats.getEhpps() > request.getInputMaxEhppsLimit()
-                ||  heroStats.getDmg() < request.getInputMinDmgLimit() || heroStats.getDmg() > request.getInputMaxDmgLimit()
-                ||  heroStats.getDmgps() < request.getInputMinDmgpsLimit() || heroStats.getDmgps() > request.getInputMaxDmgpsLimit()
-                ||  heroStats.getMcdmg() < request.getInputMinMcdmgLimit() || heroStats.getMcdmg() > request.getInputMaxMcdmgLimit()
-                ||  heroStats.getMcdmgps() < request.getInputMinMcdmgpsLimit() || heroStats.getMcdmgps() > request.getInputMaxMcdmgpsLimit()
-                ||  heroStats.getDmgh() < request.getInputMinDmgHLimit() || heroStats.getDmgh() > request.getInputMaxDmgHLimit()
-                ||  heroStats.getDmgd() < request.getInputMinDmgDLimit() || heroStats.getDmgd() > request.getInputMaxDmgDLimit()
-                ||  heroStats.getS1() < request.getInputMinS1Limit() || heroStats.getS1() > request.getInputMaxS1Limit()
-                ||  heroStats.getS2() < request.getInputMinS2Limit() || heroStats.getS2() > request.getInputMaxS2Limit()
-                ||  heroStats.getS3() < request.getInputMinS3Limit() || heroStats.getS3() > request.getInputMaxS3Limit()
-                ||  heroStats.getScore() < request.getInputMinScoreLimit() || heroStats.getScore() > request.getInputMaxScoreLimit()
-                ||  heroStats.getBs() < request.getInputMinBSLimit() || heroStats.getBs() > request.getInputMaxBSLimit()
-                ||  heroStats.getPriority() < request.getInputMinPriorityLimit() || heroStats.getPriority() > request.getInputMaxPriorityLimit()
-                ||  heroStats.getUpgrades() < request.getInputMinUpgradesLimit() || heroStats.getUpgrades() > request.getInputMaxUpgradesLimit()
-                ||  heroStats.getConversions() < request.getInputMinConversionsLimit() || heroStats.getConversions() > request.getInputMaxConversionsLimit()
-                ||  heroStats.getEq() < request.getInputMinEquippedLimit() || heroStats.getEq() > request.getInputMaxEquippedLimit()
-        ) {
-            return false;
+    private static boolean hasExcludedItem(final Item[] items, final Map<String, String> excludedGearIds) {
+        for (final Item item : items) {
+            if (excludedGearIds.containsKey(item.getId())) {
+                return true;
+            }
         }
-        return true;
+        return false;
     }
 
     public String prepareExecution() {
@@ -420,7 +360,10 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
             return "";
         }
 
-        optimizationDbs.remove(request.getId());
+        final OptimizationDb removed = optimizationDbs.remove(request.getId());
+        if (removed != null) {
+            removed.close();
+        }
 
         return "";
     }
@@ -446,17 +389,16 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
         }
     }
 
-    private String handleGetResultRowsRequest(final GetResultRowsRequest request) {
+    private GetResultRowsResponse handleGetResultRowsRequest(final GetResultRowsRequest request) {
         if (request.getExecutionId() == null) {
-            final GetResultRowsResponse response = GetResultRowsResponse.builder()
+            return GetResultRowsResponse.builder()
                     .heroStats(new HeroStats[]{})
                     .maximum(0)
                     .build();
-            return gson.toJson(response);
         }
         final OptimizationDb optimizationDb = optimizationDbs.get(request.getExecutionId());
         if (optimizationDb == null) {
-            return "";
+            return null;
         }
 
         final String heroId = request.getOptimizationRequest().getHeroId();
@@ -487,7 +429,7 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
                 .heroStats(heroStats)
                 .maximum(maximum)
                 .build();
-        return gson.toJson(response);
+        return response;
     }
 
     private String handleEditResultRowsRequest(final EditResultRowsRequest request) {
@@ -496,15 +438,7 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
             return "";
         }
 
-        final HeroStats[] heroStats = optimizationDb.getRows(request.getIndex(), request.getIndex() + 1);
-        if (heroStats.length == 0) {
-            return "";
-        }
-
-        final HeroStats heroStat = heroStats[0];
-
-        heroStat.setProperty(request.getProperty());
-//        System.out.println(heroStat);
+        optimizationDb.setProperty(request.getIndex(), request.getProperty());
 
         return "";
     }
@@ -552,6 +486,11 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
         return output;
     }
 
+    @SuppressWarnings("deprecation") // Aparapi deprecates EXECUTION_MODE without a replacement for forcing JTP
+    public static boolean isGpuExecutionMode() {
+        return GPU_EXECUTION_MODE == Kernel.EXECUTION_MODE.GPU;
+    }
+
     // Compute a power of two less than or equal to `n`
     public static int findPreviousPowerOf2(int n) {
         // set all bits after the last set bit
@@ -607,17 +546,26 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
         });
 
         final int MAXIMUM_RESULTS = SETTING_MAXIMUM_RESULTS;
-        System.out.println("Start allocating memory");
-        final HeroStats[] resultHeroStats = new HeroStats[MAXIMUM_RESULTS];
-//        final long[] resultInts = new long[MAXIMUM_RESULTS];
-        System.out.println("Finished allocating memory");
+
+        // Top K mode keeps a bounded heap per worker thread instead of every passing build, so memory is
+        // O(K x threads) and the search never stops early on the maximum results
+        final boolean topK = request.getInputTopK() != null && request.getInputTopK() > 0 && request.getInputTopKColumn() != null;
+        final int topKSize = topK ? Math.min(request.getInputTopK(), MAXIMUM_RESULTS) : 0;
+        final int topKColumn = topK ? request.getInputTopKColumn().ordinal() : -1;
+        final Map<Thread, TopKHeap> topKHeaps = new ConcurrentHashMap<>();
+        if (topK) {
+            System.out.println("Top " + topKSize + " by " + request.getInputTopKColumn());
+        }
 
         final Map<Gear, List<Item>> itemsByGear = buildItemsByGear(items);
 
         final Map<String, float[]> accumulatorArrsByItemId = new ConcurrentHashMap<>(new HashMap<>());
-        final ExecutorService executorService = Executors.newFixedThreadPool(2);
         searchedCounter = new AtomicLong(0);
         resultsCounter = new AtomicLong(0);
+        prunedCounter = new AtomicLong(0);
+
+        fillAccs(statCalculator, items.toArray(new Item[0]), base, accumulatorArrsByItemId, useReforgeStats);
+        final int removedItems = SETTING_DOMINANCE_FILTER ? removeDominatedItems(request, itemsByGear) : 0;
 
         final long wSize = itemsByGear.get(Gear.WEAPON).size();
         final long hSize = itemsByGear.get(Gear.HELMET).size();
@@ -633,13 +581,6 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
         final Item[] allrings = itemsByGear.get(Gear.RING).toArray(new Item[0]);
         final Item[] allboots = itemsByGear.get(Gear.BOOTS).toArray(new Item[0]);
 
-        fillAccs(statCalculator, allweapons, base, accumulatorArrsByItemId, useReforgeStats);
-        fillAccs(statCalculator, allhelmets, base, accumulatorArrsByItemId, useReforgeStats);
-        fillAccs(statCalculator, allarmors, base, accumulatorArrsByItemId, useReforgeStats);
-        fillAccs(statCalculator, allnecklaces, base, accumulatorArrsByItemId, useReforgeStats);
-        fillAccs(statCalculator, allrings, base, accumulatorArrsByItemId, useReforgeStats);
-        fillAccs(statCalculator, allboots, base, accumulatorArrsByItemId, useReforgeStats);
-
         final AtomicInteger maxReached = new AtomicInteger();
 
         final boolean isShortCircuitable4PieceSet = request.getSetFormat() == 1 || request.getSetFormat() == 2;
@@ -656,6 +597,11 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
         final float[] flattenedBootAccs = flattenAccArrs(allboots, statCalculator);
 
         final Hero hero = request.hero;
+        final float[] baseSums = statCalculator.newStatSums(base);
+
+        // Results are stored as packed item index keys + stat columns, HeroStats are only built for requested rows
+        final Item[][] itemsBySlot = new Item[][]{allweapons, allhelmets, allarmors, allnecklaces, allrings, allboots};
+        final ResultStore resultStore = ResultStore.create(topK ? 0 : MAXIMUM_RESULTS, itemsBySlot, statCalculator, base);
 
         final float atkSetBonus = 0.45f * base.atk;
         final float hpSetBonus = 0.20f * base.hp;
@@ -689,8 +635,6 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
 
         final long maxPerms = wSize * hSize * aSize * nSize * rSize * bSize;
 
-        final GpuOptimizerKernel kernel;
-
         hero.setDamageMultipliers(request.damageMultipliers);
         heroDb.getHeroById(hero.getId()).setDamageMultipliers(request.getDamageMultipliers());
 
@@ -699,338 +643,432 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
 //        System.out.println("multis");
 //        System.out.println(request.damageMultipliers.toString());
 
-        if (SETTING_GPU && canUseGpu && maxPerms >= 20_000_000) {
-            // GPU Optimize
+        final StatBounds statBounds = new StatBounds(
+                request,
+                new float[][]{flattenedWeaponAccs, flattenedHelmetAccs, flattenedArmorAccs, flattenedNecklaceAccs, flattenedRingAccs, flattenedBootAccs},
+                ARG_COUNT,
+                hero,
+                bonusMaxAtk,
+                bonusMaxHp,
+                bonusMaxDef,
+                atkSetBonus,
+                hpSetBonus,
+                defSetBonus,
+                speedSetBonus,
+                revengeSetBonus);
+
+        // The search is split into weapon x helmet x armor prefixes, each prefix covers necklace x ring x boots
+        final long prefixes = wSize * hSize * aSize;
+        final long prefixSize = nSize * rSize * bSize;
+
+        // Meet in the middle: with a selective bounded stat, only scan the sorted range of the
+        // necklace x ring x boots half that can still pass for each prefix instead of the whole half
+        final int partialSumStat = prefixSize <= MEET_IN_THE_MIDDLE_MAX_HALF_SIZE
+                ? PartialSumIndex.selectStat(
+                        statBounds,
+                        samplePrefixSums(baseSums, flattenedWeaponAccs, flattenedHelmetAccs, flattenedArmorAccs, 64),
+                        flattenedNecklaceAccs,
+                        flattenedRingAccs,
+                        flattenedBootAccs,
+                        ARG_COUNT,
+                        MEET_IN_THE_MIDDLE_MAX_PASS_RATE)
+                : -1;
+        final PartialSumIndex partialSumIndex = partialSumStat < 0 ? null : PartialSumIndex.build(
+                statBounds.getIndex(partialSumStat),
+                flattenedNecklaceAccs,
+                flattenedRingAccs,
+                flattenedBootAccs,
+                ARG_COUNT);
+        if (partialSumIndex != null) {
+            System.out.println("Meet in the middle on accumulator " + partialSumIndex.getStatIndex() + " over " + prefixSize + " partial sums");
+        }
 
-//            final int max = 2097152;
-            final int max = 1048576;
+        final CompiledFilter compiledFilter = CompiledFilter.compile(request);
+        System.out.println("Compiled filter with " + compiledFilter.size() + " active limits");
 
-            kernel = selectKernel(
-                    request,
-                    flattenedWeaponAccs,
-                    flattenedHelmetAccs,
-                    flattenedArmorAccs,
-                    flattenedNecklaceAccs,
-                    flattenedRingAccs,
-                    flattenedBootAccs,
-                    bonusBaseAtk,
-                    bonusBaseDef,
-                    bonusBaseHp,
-                    atkSetBonus,
-                    hpSetBonus,
-                    defSetBonus,
-                    speedSetBonus,
-                    revengeSetBonus,
-                    penSetDmgBonus,
-                    StatCalculator.SETTING_PEN_DEFENSE,
-                    bonusMaxAtk,
-                    bonusMaxDef,
-                    bonusMaxHp,
-                    SETTING_RAGE_SET,
-                    SETTING_PEN_SET,
-                    base,
-                    hero,
-                    ARG_COUNT,
-                    wSize,
-                    hSize,
-                    aSize,
-                    nSize,
-                    rSize,
-                    bSize,
-                    max, setSolutionBitMasks
-            );
+        // Boots level pre-filter on blocks of boots, only used when the request limits one of its stats
+        final BootsBlockFilter bootsBlockFilter = BootsBlockFilter.create(
+                request,
+                flattenedBootAccs,
+                ARG_COUNT,
+                hero,
+                bonusMaxAtk,
+                bonusMaxHp,
+                bonusMaxDef,
+                atkSetBonus,
+                hpSetBonus,
+                defSetBonus,
+                speedSetBonus,
+                revengeSetBonus,
+                penSetDmgBonus);
+        if (bootsBlockFilter != null) {
+            System.out.println("Using boots block filter");
+        }
+
+        final Map<String, LongAdder> searchedByWorker = new ConcurrentHashMap<>();
+        final AtomicBoolean exit = new AtomicBoolean(false);
+
+        // Searches the prefixes [start, end) on the calling thread
+        final OptimizationRangeTask.RangeConsumer cpuLeaf = (start, end) -> {
+            // Scratch buffers for this leaf, each level holds the sums of the slots chosen so far.
+            // Nothing is allocated per candidate unless it passes the filter.
+            final float[] weaponSums = new float[ARG_COUNT];
+            final float[] helmetSums = new float[ARG_COUNT];
+            final float[] armorSums = new float[ARG_COUNT];
+            final float[] necklaceSums = new float[ARG_COUNT];
+            final float[] ringSums = new float[ARG_COUNT];
+            final float[] bootSums = new float[ARG_COUNT];
+            final int[] sets = new int[SET_COUNT];
+            final int[] columns = new int[StatCalculator.COLUMN_COUNT];
+            final TopKHeap topKHeap = topK ? topKHeaps.computeIfAbsent(Thread.currentThread(), x -> new TopKHeap(topKSize)) : null;
+            final CompiledFilter filter = compiledFilter.copy();
+            final BootsBlockFilter.Worker bootsWorker = bootsBlockFilter == null ? null : bootsBlockFilter.newWorker();
+            long searched = 0;
+            long masked = 0;
 
             try {
+                for (long prefix = start; prefix < end; prefix++) {
+                    if (Main.interrupt || exit.get()) {
+                        return;
+                    }
 
-                int maxWorkGroupSize = 64;
+                    final int w = (int) (prefix / (hSize * aSize));
+                    final int h = (int) (prefix / aSize % hSize);
+                    final int a = (int) (prefix % aSize);
+
+                    final Item weapon = allweapons[w];
+                    final Item helmet = allhelmets[h];
+                    final Item armor = allarmors[a];
+
+                    // For 4 piece sets, we can skip if the first 3 pieces don't match possible sets,
+                    // but only if the items are sorted & prioritized by set.
+                    if (isShortCircuitable4PieceSet) {
+                        if (!(firstSets.contains(weapon.getSet())
+                                ||    firstSets.contains(helmet.getSet())
+                                ||    firstSets.contains(armor.getSet()))) {
+                            prune(prefixSize);
+                            continue;
+                        }
+                    }
 
-                try {
-                    //                final Device bestDevice = KernelManager.instance().bestDevice();
+                    addSums(baseSums, flattenedWeaponAccs, w, weaponSums);
+                    addSums(weaponSums, flattenedHelmetAccs, h, helmetSums);
+                    addSums(helmetSums, flattenedArmorAccs, a, armorSums);
+                    if (!statBounds.canPass(weaponSums, 1)
+                            ||  !statBounds.canPass(helmetSums, 2)
+                            ||  !statBounds.canPass(armorSums, 3)) {
+                        prune(prefixSize);
+                        continue;
+                    }
 
-                    List<OpenCLPlatform> platforms = OpenCLPlatform.getUncachedOpenCLPlatforms();
-                    final Optional<OpenCLDevice> bestDevice = platforms.stream()
-                            .flatMap(x -> x.getOpenCLDevices().stream())
-                            .filter(x -> x.getDeviceId() == Main.BEST_DEVICE_ID)
-                            .findFirst();
+                    sets[weapon.set.index]++;
+                    sets[helmet.set.index]++;
+                    sets[armor.set.index]++;
+
+                    if (partialSumIndex != null) {
+                        final int from = partialSumIndex.lowerBound(statBounds.minRemaining(partialSumStat, armorSums));
+                        final int to = Math.max(from, partialSumIndex.upperBound(statBounds.maxRemaining(partialSumStat, armorSums)));
+                        prune(prefixSize - (to - from));
+
+                        for (int i = from; i < to; i++) {
+                            final int index = partialSumIndex.getIndex(i);
+                            final int b = (int) (index % bSize);
+                            final int r = (int) (index / bSize % rSize);
+                            final int n = (int) (index / bSize / rSize);
+
+                            final Item necklace = allnecklaces[n];
+                            final Item ring = allrings[r];
+                            final Item boots = allboots[b];
+                            addSums(armorSums, flattenedNecklaceAccs, n, necklaceSums);
+                            addSums(necklaceSums, flattenedRingAccs, r, ringSums);
+                            addSums(ringSums, flattenedBootAccs, b, bootSums);
+                            sets[necklace.set.index]++;
+                            sets[ring.set.index]++;
+                            sets[boots.set.index]++;
+
+                            final boolean full = !collectResult(request, statCalculator, base, bootSums, sets, columns, filter, resultStore, maxReached,
+                                    topKHeap, topKColumn, prefix * prefixSize + index);
+
+                            sets[necklace.set.index]--;
+                            sets[ring.set.index]--;
+                            sets[boots.set.index]--;
+
+                            if (full) {
+                                exit.set(true);
+                                return;
+                            }
+                        }
 
-                    System.out.println(bestDevice);
+                        searched += to - from;
+                        searchedCounter.addAndGet(to - from);
+                    } else {
+                        for (int n = 0; n < nSize; n++) {
+                            addSums(armorSums, flattenedNecklaceAccs, n, necklaceSums);
+                            if (!statBounds.canPass(necklaceSums, 4)) {
+                                prune(rSize * bSize);
+                                continue;
+                            }
 
-                    final int kernelMaxWorkGroupSize = kernel.getKernelMaxWorkGroupSize(bestDevice.get());
-                    System.out.println("Kernel max work group size: " + kernelMaxWorkGroupSize);
+                            final Item necklace = allnecklaces[n];
+                            sets[necklace.set.index]++;
 
-                    maxWorkGroupSize = kernelMaxWorkGroupSize;
-                    System.out.println("Kernel max work group size power of 2: " + maxWorkGroupSize);
-                } catch (final Exception e) {
-                    e.printStackTrace();
-                    System.out.println("Could not find max work group size. Defaulting.");
-                }
+                            for (int r = 0; r < rSize; r++) {
+                                addSums(necklaceSums, flattenedRingAccs, r, ringSums);
+                                if (!statBounds.canPass(ringSums, 5)) {
+                                    prune(bSize);
+                                    continue;
+                                }
 
-                final int finalMaxWorkGroupSize = maxWorkGroupSize;
+                                final Item ring = allrings[r];
+                                sets[ring.set.index]++;
 
-                kernel.setExecutionModeWithoutFallback(Kernel.EXECUTION_MODE.GPU);
+                                final boolean[] bootMask = bootsWorker == null ? null : bootsWorker.evaluate(ringSums, sets);
 
-                final AtomicBoolean exit = new AtomicBoolean(false);
-                final AtomicInteger executionCounter = new AtomicInteger(0);
+                                for (int b = 0; b < bSize; b++) {
+                                    if (bootMask != null && !bootMask[b]) {
+                                        masked++;
+                                        continue;
+                                    }
 
-                final Map<String, PassesContainer> passesPool = new HashMap<>();
+                                    final Item boots = allboots[b];
+                                    addSums(ringSums, flattenedBootAccs, b, bootSums);
+                                    sets[boots.set.index]++;
 
-                for (int i = 0; i < maxPerms / max + 1; i++) {
-                    if (exit.get() || Main.interrupt)
-                        break;
+                                    if (!collectResult(request, statCalculator, base, bootSums, sets, columns, filter, resultStore, maxReached,
+                                            topKHeap, topKColumn, prefix * prefixSize + (n * rSize + r) * bSize + b)) {
+                                        exit.set(true);
+                                        return;
+                                    }
 
-                    final int finalI = i;
-
-                    final boolean[] passes;
-                    final String passesId;
-                    final Optional<PassesContainer> containerOptional = passesPool.values()
-                            .stream()
-                            .filter(x -> !x.isLocked())
-                            .findFirst();
-                    if (containerOptional.isPresent()) {
-                        final PassesContainer container = containerOptional.get();
-                        passes = container.getPasses();
-                        passesId = container.getId();
-                        container.setLocked(true);
-                    } else {
-                        try {
-                            passes = new boolean[max];
-                            passesId = "" + finalI;
-                            passesPool.put(passesId, PassesContainer.builder()
-                                    .id(passesId)
-                                    .passes(passes)
-                                    .locked(true)
-                                    .build());
-                        } catch (final OutOfMemoryError e) {
-                            e.printStackTrace();
-                            inProgress = false;
-
-                            break;
+                                    sets[boots.set.index]--;
+                                }
+
+                                searched += bSize;
+                                searchedCounter.addAndGet(bSize);
+                                sets[ring.set.index]--;
+                            }
+
+                            sets[necklace.set.index]--;
                         }
                     }
 
-                    List<OpenCLPlatform> platforms = OpenCLPlatform.getUncachedOpenCLPlatforms();
-                    final Optional<OpenCLDevice> bestDevice = platforms.stream()
-                            .flatMap(x -> x.getOpenCLDevices().stream())
-                            .filter(x -> x.getDeviceId() == Main.BEST_DEVICE_ID)
-                            .findFirst();
+                    sets[weapon.set.index]--;
+                    sets[helmet.set.index]--;
+                    sets[armor.set.index]--;
+                }
+            } catch (final Exception e) {
+                inProgress = false;
+                e.printStackTrace();
+            } finally {
+                prunedCounter.addAndGet(masked);
+                searchedByWorker.computeIfAbsent(Thread.currentThread().getName(), x -> new LongAdder()).add(searched);
+            }
+        };
 
-                    while(executionCounter.get() > 1 && !exit.get() && !Main.interrupt) {
-                        Thread.sleep(10);
-                    }
+        if (SETTING_GPU && canUseGpu && maxPerms >= 20_000_000) {
+            // GPU Optimize
 
-                    executionCounter.incrementAndGet();
+            // Default batch size, devices use their tuned batch size once they have one
+            final int max = 1048576;
+
+            // The devices and the CPU workers claim prefix chunks from a shared scheduler, sized to each one's
+            // throughput. Device chunks cover at least one full batch.
+            final ChunkScheduler scheduler = new ChunkScheduler(prefixes);
+            final List<GpuDevice> devices = GpuDevices.getDevices().isEmpty()
+                    ? GpuDevices.discover(GPU_EXECUTION_MODE.name(), Main.BEST_DEVICE_ID)
+                    : GpuDevices.getDevices();
+            final Map<GpuDevice, GpuPipeline> pipelines = new LinkedHashMap<>();
+            final Map<GpuDevice, ChunkScheduler.Worker> deviceWorkers = new LinkedHashMap<>();
+            final AtomicInteger topKThreshold = new AtomicInteger(Integer.MIN_VALUE);
+
+            for (final GpuDevice device : devices) {
+                final GpuOptimizerKernel kernel = selectKernel(
+                        device,
+                        request,
+                        flattenedWeaponAccs,
+                        flattenedHelmetAccs,
+                        flattenedArmorAccs,
+                        flattenedNecklaceAccs,
+                        flattenedRingAccs,
+                        flattenedBootAccs,
+                        bonusBaseAtk,
+                        bonusBaseDef,
+                        bonusBaseHp,
+                        atkSetBonus,
+                        hpSetBonus,
+                        defSetBonus,
+                        speedSetBonus,
+                        revengeSetBonus,
+                        penSetDmgBonus,
+                        StatCalculator.SETTING_PEN_DEFENSE,
+                        bonusMaxAtk,
+                        bonusMaxDef,
+                        bonusMaxHp,
+                        SETTING_RAGE_SET,
+                        SETTING_PEN_SET,
+                        base,
+                        hero,
+                        ARG_COUNT,
+                        wSize,
+                        hSize,
+                        aSize,
+                        nSize,
+                        rSize,
+                        bSize,
+                        max, SetSolutionMasks.get()
+                );
 
-                    final Range range = bestDevice.get().createRange(max, finalMaxWorkGroupSize);
-                    kernel.setIteration(finalI);
-                    kernel.setPasses(passes);
+                int maxWorkGroupSize = 64;
+                if (device.getOpenCLDevice() != null) {
                     try {
-                        kernel.execute(range);
+                        maxWorkGroupSize = kernel.getKernelMaxWorkGroupSize(device.getOpenCLDevice());
+                        System.out.println("Kernel max work group size on " + device.getName() + ": " + maxWorkGroupSize);
                     } catch (final Exception e) {
-                        System.err.println("GPU error, please try again. " + e);
-                        inProgress = false;
-                        break;
+                        e.printStackTrace();
+                        System.out.println("Could not find max work group size. Defaulting.");
                     }
+                }
 
+                kernel.setExecutionModeWithoutFallback(GPU_EXECUTION_MODE);
 
-                    executorService.submit(() -> {
-                        try {
-                            searchedCounter.addAndGet(Math.min(max, maxPerms));
-
-                            for (int j = 0; j < max; j++) {
-                                final long iteration = ((long) finalI) * max + j;
-
-                                //                    System.out.println(longSetMasks[0]);
-                                //                    System.out.println(debug[j]);
+                final GpuTuningProfile.Tuning tuning = GpuTuningProfile.get(device, kernel, max, maxWorkGroupSize, maxPerms);
+                final int batchSize = tuning.getBatchSize();
+                final Range range = device.createRange(batchSize, tuning.getWorkGroupSize());
 
-                                if (passes[j]) {
-                                    if (iteration >= maxPerms) {
-                                        break;
-                                    }
-                                    if (Main.interrupt || exit.get()) {
-                                        break;
-                                    }
+                try {
+                    final GpuPipeline pipeline = new GpuPipeline(kernel, range, batchSize, GPU_PIPELINE_BUFFERS, GPU_PIPELINE_DECODERS, SETTING_GPU_COMPACTION);
+                    // JTP emulates work group barriers with Java threads, which costs far more than it saves
+                    if (SETTING_GPU_TOP_K && topK && device.getOpenCLDevice() != null
+                            && topKColumn != OptimizationColumn.DAC.ordinal() && topKSize * 2 <= tuning.getWorkGroupSize()) {
+                        System.out.println("Top " + topKSize + " per work group of " + tuning.getWorkGroupSize() + " on " + device.getName());
+                        pipeline.setTopK(topKSize, topKThreshold::get);
+                    }
+                    pipelines.put(device, pipeline);
+                    deviceWorkers.put(device, scheduler.newWorker(device.getName(), (batchSize + prefixSize - 1) / prefixSize, prefixes));
+                } catch (final OutOfMemoryError e) {
+                    e.printStackTrace();
+                }
+            }
 
-                                    final int b = (int) (iteration % bSize);
-                                    final int r = (int) (((iteration - b) / bSize) % rSize);
-                                    final int n = (int) (((iteration - r * bSize - b) / (bSize * rSize)) % nSize);
-                                    final int a = (int) (((iteration - n * rSize * bSize - r * bSize - b) / (bSize * rSize * nSize)) % aSize);
-                                    final int h = (int) (((iteration - a * nSize * rSize * bSize - n * rSize * bSize - r * bSize - b) / (bSize * rSize * nSize * aSize)) % hSize);
-                                    final int w = (int) (((iteration - h * aSize * nSize * rSize * bSize - a * nSize * rSize * bSize - n * rSize * bSize - r * bSize - b) / (bSize * rSize * nSize * aSize * hSize)) % wSize);
-
-                                    final Item weapon = allweapons[w];
-                                    final Item helmet = allhelmets[h];
-                                    final Item armor = allarmors[a];
-                                    final Item necklace = allnecklaces[n];
-                                    final Item ring = allrings[r];
-                                    final Item boots = allboots[b];
+            final int cpuWorkers = SETTING_HETEROGENEOUS
+                    ? Math.max(1, Runtime.getRuntime().availableProcessors() - pipelines.size() * (GPU_PIPELINE_DECODERS + 1))
+                    : 0;
+            final ExecutorService cpuService = Executors.newFixedThreadPool(Math.max(1, cpuWorkers));
+            for (int i = 0; i < cpuWorkers; i++) {
+                final ChunkScheduler.Worker cpuWorker = scheduler.newWorker("CPU-" + i, 1, prefixes);
+                cpuService.submit(() -> {
+                    final long[] chunk = new long[2];
+                    while (!exit.get() && !Main.interrupt && cpuWorker.claim(chunk)) {
+                        final long chunkStart = System.nanoTime();
+                        cpuLeaf.accept(chunk[0], chunk[1]);
+                        cpuWorker.completed(chunk[1] - chunk[0], System.nanoTime() - chunkStart);
+                    }
+                });
+            }
+            cpuService.shutdown();
+
+            final MixedRadixIndex permutationIndex = new MixedRadixIndex(wSize, hSize, aSize, nSize, rSize, bSize);
+            final GpuPipeline.BatchDecoder decoder = (hits, count, length) -> {
+                searchedCounter.addAndGet(length);
+                final TopKHeap topKHeap = topK ? topKHeaps.computeIfAbsent(Thread.currentThread(), x -> new TopKHeap(topKSize)) : null;
+                final float[] sums = new float[ARG_COUNT];
+                final int[] sets = new int[SET_COUNT];
+                final int[] columns = new int[StatCalculator.COLUMN_COUNT];
+                final MixedRadixIndex.Odometer odometer = permutationIndex.odometer();
+
+                for (int j = 0; j < count; j++) {
+                    final long iteration = hits[j];
+                    if (Main.interrupt || exit.get()) {
+                        break;
+                    }
 
-                                    final Item[] collectedItems = new Item[]{weapon, helmet, armor, necklace, ring, boots};
-                                    final int[] collectedSets = statCalculator.buildSetsArr(collectedItems);
+                    final int[] digits = odometer.moveTo(iteration);
+                    final int w = digits[0];
+                    final int h = digits[1];
+                    final int a = digits[2];
+                    final int n = digits[3];
+                    final int r = digits[4];
+                    final int b = digits[5];
+
+                    addSums(baseSums, flattenedWeaponAccs, w, sums);
+                    addSums(sums, flattenedHelmetAccs, h, sums);
+                    addSums(sums, flattenedArmorAccs, a, sums);
+                    addSums(sums, flattenedNecklaceAccs, n, sums);
+                    addSums(sums, flattenedRingAccs, r, sums);
+                    addSums(sums, flattenedBootAccs, b, sums);
+
+                    Arrays.fill(sets, 0);
+                    sets[allweapons[w].set.index]++;
+                    sets[allhelmets[h].set.index]++;
+                    sets[allarmors[a].set.index]++;
+                    sets[allnecklaces[n].set.index]++;
+                    sets[allrings[r].set.index]++;
+                    sets[allboots[b].set.index]++;
+                    statCalculator.fillColumns(base, sums, sets, request.hero, columns);
+
+                    if (topK) {
+                        resultsCounter.incrementAndGet();
+                        topKHeap.offer(columns[topKColumn], iteration);
+                        continue;
+                    }
 
-                                    final int reforges = weapon.upgradeable + helmet.upgradeable + armor.upgradeable + necklace.upgradeable + ring.upgradeable + boots.upgradeable;
-                                    final int conversions = weapon.convertable + helmet.convertable + armor.convertable + necklace.convertable + ring.convertable + boots.convertable;
-                                    final int alreadyEquipped = weapon.alreadyEquipped + helmet.alreadyEquipped + armor.alreadyEquipped + necklace.alreadyEquipped + ring.alreadyEquipped + boots.alreadyEquipped;
-                                    final int priority = weapon.priority + helmet.priority + armor.priority + necklace.priority + ring.priority + boots.priority;
-                                    final HeroStats result = statCalculator.addAccumulatorArrsToHero(base, new float[][]{weapon.tempStatAccArr, helmet.tempStatAccArr, armor.tempStatAccArr, necklace.tempStatAccArr, ring.tempStatAccArr, boots.tempStatAccArr}, collectedSets, request.hero, reforges, conversions, alreadyEquipped, priority);
+                    final long resultsIndex = resultsCounter.getAndIncrement();
 
-                                    result.setSets(collectedSets);
-                                    result.setItems(ImmutableList.of(allweapons[w].getId(), allhelmets[h].getId(), allarmors[a]
-                                            .getId(), allnecklaces[n].id, allrings[r].id, allboots[b].id));
-                                    result.setModIds(ImmutableList.of(allweapons[w].getModId(), allhelmets[h].getModId(), allarmors[a]
-                                            .getModId(), allnecklaces[n].modId, allrings[r].modId, allboots[b].modId));
-                                    result.setMods(Lists.newArrayList(allweapons[w].getMod(), allhelmets[h].getMod(), allarmors[a]
-                                            .getMod(), allnecklaces[n].getMod(), allrings[r].getMod(), allboots[b].getMod()));
+                    if (resultsIndex >= MAXIMUM_RESULTS) {
+                        maxReached.set(MAXIMUM_RESULTS);
+                        exit.set(true);
+                        break;
+                    }
 
-                                    final long resultsIndex = resultsCounter.getAndIncrement();
+                    resultStore.set((int) resultsIndex, iteration, columns);
+                }
 
-                                    if (resultsIndex >= MAXIMUM_RESULTS) {
-                                        maxReached.set(MAXIMUM_RESULTS);
-                                        exit.set(true);
-                                        break;
-                                    }
+                if (topK) {
+                    topKThreshold.accumulateAndGet(topKHeap.threshold(), Math::max);
+                }
+            };
+
+            // One dispatcher thread per device, each device's pipeline keeps claiming chunks until the space is done
+            final ExecutorService deviceService = Executors.newFixedThreadPool(Math.max(1, pipelines.size()));
+            final List<Future<Boolean>> deviceResults = new ArrayList<>();
+            for (final Map.Entry<GpuDevice, GpuPipeline> entry : pipelines.entrySet()) {
+                final ChunkScheduler.Worker deviceWorker = deviceWorkers.get(entry.getKey());
+                deviceResults.add(deviceService.submit(() -> entry.getValue().run(deviceWorker, prefixSize, () -> exit.get() || Main.interrupt, decoder)));
+            }
+            deviceService.shutdown();
 
-                                    result.setId("" + resultsIndex);
-                                    resultHeroStats[(int) resultsIndex] = result;
-                                }
-                            }
+            boolean success = !pipelines.isEmpty() || cpuWorkers > 0;
+            for (final Future<Boolean> deviceResult : deviceResults) {
+                try {
+                    success &= deviceResult.get();
+                } catch (final ExecutionException e) {
+                    e.printStackTrace();
+                    success = false;
+                }
+            }
+            cpuService.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
 
-                            passesPool.get(passesId).setLocked(false);
-                            executionCounter.decrementAndGet();
-                        } catch (final Exception e) {
-                            e.printStackTrace();
-                        }
-                    });
+            scheduler.printThroughput(prefixSize);
+            deviceWorkers.forEach((device, worker) -> device.record(worker.getProcessed() * prefixSize, worker.getBusyNanos()));
 
-                }
-            } finally {
-                System.out.println("DISPOSE");
-                kernel.dispose();
+            if (!success) {
+                inProgress = false;
             }
         } else {
             // CPU Optimize
 
-            for (int w = 0; w < wSize; w++) {
-                final Item weapon = itemsByGear.get(Gear.WEAPON).get(w);
-//                final long finalW = w;
-
-                executorService.submit(() -> {
-                    boolean exit = false;
-                    try {
-
-                        final float[] weaponAccumulatorArr = statCalculator.getStatAccumulatorArr(base, weapon, accumulatorArrsByItemId, useReforgeStats);
-
-                        for (int h = 0; h < hSize; h++) {
-                            final Item helmet = itemsByGear.get(Gear.HELMET).get(h);
-                            final float[] helmetAccumulatorArr = statCalculator.getStatAccumulatorArr(base, helmet, accumulatorArrsByItemId, useReforgeStats);
-
-                            for (int a = 0; a < aSize; a++) {
-                                final Item armor = itemsByGear.get(Gear.ARMOR).get(a);
-                                final float[] armorAccumulatorArr = statCalculator.getStatAccumulatorArr(base, armor, accumulatorArrsByItemId, useReforgeStats);
-
-                                // For 4 piece sets, we can short circuit if the first 3 pieces don't match possible sets,
-                                // but only if the items are sorted & prioritized by set.
-                                if (isShortCircuitable4PieceSet) {
-                                    if (!(firstSets.contains(weapon.getSet())
-                                            ||    firstSets.contains(helmet.getSet())
-                                            ||    firstSets.contains(armor.getSet()))) {
-                                        // continue not return because other helmets may work
-                                        break;
-                                    }
-                                }
+            // Split the prefixes across all cores
+            final ForkJoinPool forkJoinPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            final long leafSize = prefixes / (forkJoinPool.getParallelism() * 64L);
+            final long cpuStartTime = System.currentTimeMillis();
 
-                                for (int n = 0; n < nSize; n++) {
-                                    final Item necklace = itemsByGear.get(Gear.NECKLACE).get(n);
-                                    final float[] necklaceAccumulatorArr = statCalculator.getStatAccumulatorArr(base, necklace, accumulatorArrsByItemId, useReforgeStats);
-
-                                    for (int r = 0; r < rSize; r++) {
-                                        final Item ring = itemsByGear.get(Gear.RING).get(r);
-                                        final float[] ringAccumulatorArr = statCalculator.getStatAccumulatorArr(base, ring, accumulatorArrsByItemId, useReforgeStats);
-
-                                        for (int b = 0; b < bSize; b++) {
-                                            if (Main.interrupt) {
-                                                executorService.shutdownNow();
-                                                return;
-                                            }
-                                            if (exit) return;
-
-                                            final Item boots = itemsByGear.get(Gear.BOOTS).get(b);
-                                            final float[] bootsAccumulatorArr = statCalculator.getStatAccumulatorArr(base, boots, accumulatorArrsByItemId, useReforgeStats);
-
-                                            final Item[] collectedItems = new Item[]{weapon, helmet, armor, necklace, ring, boots};
-                                            final int[] collectedSets = statCalculator.buildSetsArr(collectedItems);
-                                            final int reforges = weapon.upgradeable + helmet.upgradeable + armor.upgradeable + necklace.upgradeable + ring.upgradeable + boots.upgradeable;
-                                            final int conversions = weapon.convertable + helmet.convertable + armor.convertable + necklace.convertable + ring.convertable + boots.convertable;
-                                            final int alreadyEquipped = weapon.alreadyEquipped + helmet.alreadyEquipped + armor.alreadyEquipped + necklace.alreadyEquipped + ring.alreadyEquipped + boots.alreadyEquipped;
-                                            final int priority = weapon.priority + helmet.priority + armor.priority + necklace.priority + ring.priority + boots.priority;
-                                            final HeroStats result = statCalculator.addAccumulatorArrsToHero(
-                                                    base,
-                                                    new float[][]{weaponAccumulatorArr, helmetAccumulatorArr, armorAccumulatorArr, necklaceAccumulatorArr, ringAccumulatorArr, bootsAccumulatorArr},
-                                                    collectedSets,
-                                                    request.hero,
-                                                    reforges,
-                                                    conversions,
-                                                    alreadyEquipped,
-                                                    priority);
-                                            searchedCounter.getAndIncrement();
-                                            //                                        final boolean passesFilter = true;
-
-                                            final boolean passesFilter = passesFilter(result, request, collectedSets);
-                                            result.setSets(collectedSets);
-                                            if (passesFilter) {
-                                                final long resultsIndex = resultsCounter.getAndIncrement();
-                                                if (resultsIndex < MAXIMUM_RESULTS) {
-                                                    result.setId("" + resultsIndex);
-
-//                                                    final long index1D = finalW * hSize * aSize * nSize * rSize * bSize + h * aSize * nSize * rSize * bSize + a * nSize * rSize * bSize + n * rSize * bSize + r * bSize + b;
-
-                                                    result.setItems(ImmutableList.of(
-                                                            weapon.getId(),
-                                                            helmet.getId(),
-                                                            armor.getId(),
-                                                            necklace.getId(),
-                                                            ring.getId(),
-                                                            boots.getId()
-                                                    ));
-                                                    result.setModIds(ImmutableList.of(
-                                                            weapon.getModId(),
-                                                            helmet.getModId(),
-                                                            armor.getModId(),
-                                                            necklace.getModId(),
-                                                            ring.getModId(),
-                                                            boots.getModId()
-                                                    ));
-                                                    result.setMods(Lists.newArrayList(
-                                                            weapon.getMod(),
-                                                            helmet.getMod(),
-                                                            armor.getMod(),
-                                                            necklace.getMod(),
-                                                            ring.getMod(),
-                                                            boots.getMod()
-                                                    ));
-
-                                                    resultHeroStats[(int) resultsIndex] = result;
-//                                                    resultInts[(int) resultsIndex] = index1D;
-
-                                                    if (resultsIndex == MAXIMUM_RESULTS-1) {
-                                                        maxReached.set(MAXIMUM_RESULTS-1);
-                                                    }
-                                                } else {
-                                                    System.out.println("EXIT");
-                                                    exit = true;
-                                                    break;
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    } catch (final Exception e) {
-                        inProgress = false;
-                        e.printStackTrace();
-                    }
-                });
+            try {
+                forkJoinPool.invoke(new OptimizationRangeTask(0, prefixes, leafSize, cpuLeaf));
+            } finally {
+                forkJoinPool.shutdown();
             }
+
+            printWorkerThroughput(searchedByWorker, System.currentTimeMillis() - cpuStartTime);
         }
 
 
@@ -1038,20 +1076,38 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
         System.out.printf("*** Time taken: %s ms%n", System.currentTimeMillis() - startTime);
 
         try {
-            executorService.shutdown();
-            executorService.awaitTermination(50000000, TimeUnit.SECONDS);
+            System.out.println("Pruned " + prunedCounter.get() + " of " + maxPerms + " permutations");
 
             try {
-                final long size = maxReached.get() == MAXIMUM_RESULTS-1 ? MAXIMUM_RESULTS : resultsCounter.get();
-                System.out.println("MaxReached: " + size);
+                final long size;
+                if (topK) {
+                    final ResultStore topKResults = buildTopKResults(
+                            topKHeaps.values(),
+                            topKSize,
+                            request,
+                            statCalculator,
+                            base,
+                            baseSums,
+                            itemsBySlot,
+                            new float[][]{flattenedWeaponAccs, flattenedHelmetAccs, flattenedArmorAccs, flattenedNecklaceAccs, flattenedRingAccs, flattenedBootAccs});
+                    size = topKResults.getCapacity();
+                    System.out.println("Top K kept " + size + " of " + resultsCounter.get() + " results from " + topKHeaps.size() + " workers");
+
+                    optimizationDb.setResults(topKResults, size);
+                } else {
+                    // Workers keep counting results after the cap, only the rows below the capacity were written
+                    size = Math.min(resultsCounter.get(), resultStore.getCapacity());
+                    System.out.println("MaxReached: " + maxReached.get() + ", results: " + size);
 
-                optimizationDb.setResultHeroes(resultHeroStats, size);
+                    optimizationDb.setResults(resultStore, size);
+                }
 
                 System.out.println("OPTIMIZATION_REQUEST_END");
                 System.out.println("PROGRESS: [" + size + "]");
                 OptimizationResponse response = OptimizationResponse.builder()
                         .searched(Math.min(searchedCounter.get(), maxPerms))
                         .results(resultsCounter.get())
+                        .removedItems(removedItems)
                         .build();
 
                 inProgress = false;
@@ -1071,6 +1127,12 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
         return "";
     }
 
+    // Pruned subtrees still count as searched so progress reporting stays accurate
+    private void prune(final long permutations) {
+        searchedCounter.addAndGet(permutations);
+        prunedCounter.addAndGet(permutations);
+    }
+
     public int[] convertSetsArrayIntoIndexArray(final int[] sets) {
         final int[] output = new int[]{0, 0, 0, 0, 0, 0};
         int count = 0;
@@ -1087,330 +1149,177 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
         return output;
     }
 
-    public int[] convertSetsToSetCounters(final int[] sets) {
-        final int[] output = new int[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0}; // Length of SET_COUNT
+    // Stats are indexed by OptimizationColumn ordinal, see StatCalculator.fillColumns
+    public boolean passesFilter(final int[] columns, final CompiledFilter filter, final OptimizationRequest request, final int[] sets) {
+        if (!filter.passes(columns)) {
+            return false;
+        }
 
-        for (int i = 0; i < sets.length; i++) {
-            output[sets[i]]++;
+        if (!request.setValidityTable.isValid(sets)) {
+            return false;
         }
 
-        return output;
+        return true;
     }
 
-    public boolean passesFilter(final HeroStats heroStats, final OptimizationRequest request, final int[] sets) {
-        if (heroStats.atk < request.inputAtkMinLimit || heroStats.atk > request.inputAtkMaxLimit
-                ||  heroStats.hp  < request.inputHpMinLimit  || heroStats.hp > request.inputHpMaxLimit
-                ||  heroStats.def < request.inputDefMinLimit || heroStats.def > request.inputDefMaxLimit
-                ||  heroStats.spd < request.inputSpdMinLimit || heroStats.spd > request.inputSpdMaxLimit
-                ||  heroStats.cr < request.inputCrMinLimit   || heroStats.cr > request.inputCrMaxLimit
-                ||  heroStats.cd < request.inputCdMinLimit   || heroStats.cd > request.inputCdMaxLimit
-                ||  heroStats.eff < request.inputEffMinLimit || heroStats.eff > request.inputEffMaxLimit
-                ||  heroStats.res < request.inputResMinLimit || heroStats.res > request.inputResMaxLimit
-                ||  heroStats.cp < request.inputMinCpLimit || heroStats.cp > request.inputMaxCpLimit
-                ||  heroStats.hpps < request.inputMinHppsLimit || heroStats.hpps > request.inputMaxHppsLimit
-                ||  heroStats.ehp < request.inputMinEhpLimit || heroStats.ehp > request.inputMaxEhpLimit
-                ||  heroStats.ehpps < request.inputMinEhppsLimit || heroStats.ehpps > request.inputMaxEhppsLimit
-                ||  heroStats.dmg < request.inputMinDmgLimit || heroStats.dmg > request.inputMaxDmgLimit
-                ||  heroStats.dmgps < request.inputMinDmgpsLimit || heroStats.dmgps > request.inputMaxDmgpsLimit
-                ||  heroStats.mcdmg < request.inputMinMcdmgLimit || heroStats.mcdmg > request.inputMaxMcdmgLimit
-                ||  heroStats.mcdmgps < request.inputMinMcdmgpsLimit || heroStats.mcdmgps > request.inputMaxMcdmgpsLimit
-                ||  heroStats.dmgh < request.inputMinDmgHLimit || heroStats.dmgh > request.inputMaxDmgHLimit
-                ||  heroStats.dmgd < request.inputMinDmgDLimit || heroStats.dmgd > request.inputMaxDmgDLimit
-                ||  heroStats.s1 < request.inputMinS1Limit || heroStats.s1 > request.inputMaxS1Limit
-                ||  heroStats.s2 < request.inputMinS2Limit || heroStats.s2 > request.inputMaxS2Limit
-                ||  heroStats.s3 < request.inputMinS3Limit || heroStats.s3 > request.inputMaxS3Limit
-                ||  heroStats.score < request.inputMinScoreLimit || heroStats.score > request.inputMaxScoreLimit
-                ||  heroStats.bs < request.inputMinBSLimit || heroStats.bs > request.inputMaxBSLimit
-                ||  heroStats.priority < request.inputMinPriorityLimit || heroStats.priority > request.inputMaxPriorityLimit
-                ||  heroStats.upgrades < request.inputMinUpgradesLimit || heroStats.upgrades > request.inputMaxUpgradesLimit
-                ||  heroStats.conversions < request.inputMinConversionsLimit || heroStats.conversions > request.inputMaxConversionsLimit
-                ||  heroStats.eq < request.inputMinEquippedLimit || heroStats.eq > request.inputMaxEquippedLimit
-        ) {
-            return false;
+    /**
+     * Evaluates the build in bootSums/sets and stores it if it passes the filter, or offers it to the worker's
+     * top K heap in top K mode. Returns false once the maximum number of results has been reached.
+     */
+    private boolean collectResult(final OptimizationRequest request,
+                                  final StatCalculator statCalculator,
+                                  final HeroStats base,
+                                  final float[] bootSums,
+                                  final int[] sets,
+                                  final int[] columns,
+                                  final CompiledFilter filter,
+                                  final ResultStore resultStore,
+                                  final AtomicInteger maxReached,
+                                  final TopKHeap topKHeap,
+                                  final int topKColumn,
+                                  final long permutationIndex) {
+        statCalculator.fillColumns(base, bootSums, sets, request.hero, columns);
+        if (!passesFilter(columns, filter, request, sets)) {
+            return true;
         }
 
-        final int[] indexArray = convertSetsArrayIntoIndexArray(sets);
-        final int index = calculateSetIndex(indexArray);
-        //        System.out.println(Arrays.toString(indexArray));
+        if (topKHeap != null) {
+            resultsCounter.incrementAndGet();
+            topKHeap.offer(columns[topKColumn], permutationIndex);
+            return true;
+        }
 
-        if (request.boolArr[index] == false) {
+        final int maximumResults = resultStore.getCapacity();
+        final long resultsIndex = resultsCounter.getAndIncrement();
+        if (resultsIndex >= maximumResults) {
+            System.out.println("EXIT");
+            maxReached.set(maximumResults);
             return false;
         }
 
+        resultStore.set((int) resultsIndex, permutationIndex, columns);
+
         return true;
     }
 
-    public Map<Gear, List<Item>> buildItemsByGear(final List<Item> items) {
-        return ImmutableList.copyOf(Gear.values())
-                .stream()
-                .collect(Collectors.toMap(
-                        Function.identity(),
-                        gear -> items.stream()
-                                .filter(x -> x.getGear() == gear)
-                                .collect(Collectors.toList())));
-    }
+    /**
+     * Merges the per worker top K heaps and re-evaluates the kept permutations into a result store, best first.
+     */
+    private ResultStore buildTopKResults(final Collection<TopKHeap> topKHeaps,
+                                         final int topKSize,
+                                         final OptimizationRequest request,
+                                         final StatCalculator statCalculator,
+                                         final HeroStats base,
+                                         final float[] baseSums,
+                                         final Item[][] itemsBySlot,
+                                         final float[][] flattenedAccsBySlot) {
+        final long[] keys = TopKHeap.merge(topKHeaps, topKSize).getSortedKeys();
+        final ResultStore output = new ResultStore(keys.length, itemsBySlot, statCalculator, base);
+        final int[] indices = new int[itemsBySlot.length];
+        final float[] sums = new float[ARG_COUNT];
+        final int[] sets = new int[SET_COUNT];
+        final int[] columns = new int[StatCalculator.COLUMN_COUNT];
+
+        for (int i = 0; i < keys.length; i++) {
+            ResultStore.decodeKey(keys[i], itemsBySlot, indices);
+
+            System.arraycopy(baseSums, 0, sums, 0, ARG_COUNT);
+            Arrays.fill(sets, 0);
+            for (int slot = 0; slot < itemsBySlot.length; slot++) {
+                addSums(sums, flattenedAccsBySlot[slot], indices[slot], sums);
+                sets[itemsBySlot[slot][indices[slot]].set.index]++;
+            }
 
-    public List<Set> getSetsOrElseAll(final List<Set> sets) {
-        if (sets == null || sets.size() == 0) {
-            return ImmutableList.of();
+            statCalculator.fillColumns(base, sums, sets, request.hero, columns);
+            output.set(i, keys[i], columns);
         }
-        return sets;
-    }
 
-    private static final int POW_18_5 = 1889568;
-    private static final int POW_18_4 = 104976;
-    private static final int POW_18_3 = 5832;
-    private static final int POW_18_2 = 324;
-    private static final int POW_18_1 = 18;
-
-    public int calculateSetIndex(final int[] indices) { // sorted, size 6, elements [0-17]
-        return indices[0] * POW_18_5
-                + indices[1] * POW_18_4
-                + indices[2] * POW_18_3
-                + indices[3] * POW_18_2
-                + indices[4] * POW_18_1
-                + indices[5];
+        return output;
     }
 
-    // https://java2blog.com/permutations-array-java/
-    public List<List<Integer>> permute(int[] arr) {
-        final List<List<Integer>> list = new ArrayList<>();
-        permuteHelper(list, new ArrayList<>(), arr, new boolean[arr.length]);
+    // Weapon + helmet + armor sums of evenly spaced prefixes, used to estimate filter selectivity
+    private float[][] samplePrefixSums(final float[] baseSums,
+                                       final float[] flattenedWeaponAccs,
+                                       final float[] flattenedHelmetAccs,
+                                       final float[] flattenedArmorAccs,
+                                       final int count) {
+        final int wSize = flattenedWeaponAccs.length / ARG_COUNT;
+        final int hSize = flattenedHelmetAccs.length / ARG_COUNT;
+        final int aSize = flattenedArmorAccs.length / ARG_COUNT;
+        final long prefixes = (long) wSize * hSize * aSize;
+        final int sampleCount = (int) Math.min(count, prefixes);
+        final float[][] output = new float[sampleCount][];
+
+        for (int i = 0; i < sampleCount; i++) {
+            final long prefix = prefixes * i / sampleCount;
+            final float[] weaponSums = new float[ARG_COUNT];
+            final float[] helmetSums = new float[ARG_COUNT];
+            final float[] armorSums = new float[ARG_COUNT];
+            addSums(baseSums, flattenedWeaponAccs, (int) (prefix / ((long) hSize * aSize)), weaponSums);
+            addSums(weaponSums, flattenedHelmetAccs, (int) (prefix / aSize % hSize), helmetSums);
+            addSums(helmetSums, flattenedArmorAccs, (int) (prefix % aSize), armorSums);
+            output[i] = armorSums;
+        }
 
-        return list;
+        return output;
     }
 
-    private void permuteHelper(final List<List<Integer>> list,
-                               final List<Integer> resultList,
-                               final int [] arr,
-                               final boolean [] used) {
-
-        // Base case
-        if (resultList.size() == arr.length) {
-            list.add(new ArrayList<>(resultList));
-        } else {
-            for (int i = 0; i < arr.length; i++) {
-                if (used[i] || i > 0 && arr[i] == arr[i-1] && !used[i - 1]) {
-                    // If element is already used
-                    continue;
-                }
-                // choose element
-                used[i] = true;
-                resultList.add(arr[i]);
-
-                // Explore
-                permuteHelper(list, resultList, arr, used);
-
-                // Unchoose element
-                used[i] = false;
-                resultList.remove(resultList.size() - 1);
-            }
+    private void printWorkerThroughput(final Map<String, LongAdder> searchedByWorker, final long millis) {
+        final double seconds = Math.max(1, millis) / 1000.0;
+        long total = 0;
+        for (final Map.Entry<String, LongAdder> entry : new TreeMap<>(searchedByWorker).entrySet()) {
+            final long searched = entry.getValue().sum();
+            total += searched;
+            System.out.printf("Worker %s: %d evaluated, %.1f M/s%n", entry.getKey(), searched, searched / seconds / 1_000_000);
         }
+        System.out.printf("Workers total: %d evaluated in %d ms, %.1f M/s%n", total, millis, total / seconds / 1_000_000);
     }
 
-    public void addCalculatedFields(OptimizationRequest request) {
-//        final boolean[] permutations = new boolean[SET_EXPONENTIAL];
-//        final int[] setPermutationIndicesPlusOne = new int[SET_EXPONENTIAL];
-        Arrays.fill(permutations, false);
-        Arrays.fill(setPermutationIndicesPlusOne, 0);
-//        int[] setSolutionCounters;
-
-//        setSolutionCounters = new int[1];
-
-        final List<Set> inputSets1 = getSetsOrElseAll(request.getInputSetsOne());
-        final List<Set> inputSets2 = getSetsOrElseAll(request.getInputSetsTwo());
-        final List<Set> inputSets3 = getSetsOrElseAll(request.getInputSetsThree());
-
-        final int setFormat = request.getSetFormat();
-        if (setFormat == 0) {
-            // [0][0][0] All valid
-
-            Arrays.fill(permutations, true);
-//            setSolutionCounters = new int[1];
-            setPermutationIndicesPlusOne[0] = 1;
-        } else if (setFormat == 1) {
-            // [4][2][0]
-
-            for (Set set1 : inputSets1) {
-                for (Set set2 : inputSets2) {
-                    final int[] indices = ArrayUtils.addAll(set1.getIndices(), set2.getIndices());
-
-                    List<List<Integer>> allSolutions = permute(indices);
-
-//                    setSolutionCounters = new int[allSolutions.size() * 16];
-                    for (int i = 0; i < allSolutions.size(); i++) {
-                        final int[] solution = allSolutions.get(i).stream().mapToInt(x->x).toArray();
-                        final int index1D = calculateSetIndex(solution);
-
-//                        int[] setSolutionCounter = convertSetsToSetCounters(solution);
-//                        for (int j = 0; j < 16; j++) {
-//                            setSolutionCounters[i*16 + j] = setSolutionCounter[j];
-//                        }
-//
-                        permutations[index1D] = true;
-                        setPermutationIndicesPlusOne[index1D] = i + 1;
-                    }
-                    //                    System.out.println(Arrays.toString(indices));
-                    //                    System.out.println(set1);
-                    //                    System.out.println(set2);
-                    //                    System.out.println(index1D);
-                    //                    System.out.println("----");
-                }
-            }
-        } else if (setFormat == 2) {
-            // [4][0][0]
-
-            final int[] missing = new int[]{0, 0};
-            for (Set set1 : inputSets1) {
-                final int[] indices = ArrayUtils.addAll(set1.getIndices(), missing);
-                for (int a = 0; a < SET_COUNT; a++) {
-                    for (int b = 0; b < SET_COUNT; b++) {
-                        final int[] indicesInstance = ArrayUtils.clone(indices);
-                        indicesInstance[4] = a;
-                        indicesInstance[5] = b;
-
-                        List<List<Integer>> allSolutions = permute(indicesInstance);
-
-//                        setSolutionCounters = new int[allSolutions.size() * 16];
-                        for (int i = 0; i < allSolutions.size(); i++) {
-                            final int[] solution = allSolutions.get(i).stream().mapToInt(x->x).toArray();
-                            final int index1D = calculateSetIndex(solution);
-
-//                            int[] setSolutionCounter = convertSetsToSetCounters(solution);
-//                            for (int j = 0; j < 16; j++) {
-//                                setSolutionCounters[i*16 + j] = setSolutionCounter[j];
-//                            }
-//
-                            permutations[index1D] = true;
-                            setPermutationIndicesPlusOne[index1D] = i + 1;
-                        }
-                        //                        System.out.println(Arrays.toString(indicesInstance));
-                        //                        System.out.println(set1);
-                        //                        System.out.println(index1D);
-                        //                        System.out.println("----");
-                    }
-                }
-            }
-        } else if (setFormat == 3) {
-            // [2][0][0]
-            final int[] missing = new int[]{0, 0, 0, 0};
-            for (Set set1 : inputSets1) {
-                final int[] indices = ArrayUtils.addAll(set1.getIndices(), missing);
-                for (int a = 0; a < SET_COUNT; a++) {
-                    for (int b = 0; b < SET_COUNT; b++) {
-                        for (int c = 0; c < SET_COUNT; c++) {
-                            for (int d = 0; d < SET_COUNT; d++) {
-                                final int[] indicesInstance = ArrayUtils.clone(indices);
-                                indicesInstance[2] = a;
-                                indicesInstance[3] = b;
-                                indicesInstance[4] = c;
-                                indicesInstance[5] = d;
-
-                                final List<List<Integer>> allSolutions = permute(indicesInstance);
-
-//                                setSolutionCounters = new int[allSolutions.size() * 16];
-                                for (int i = 0; i < allSolutions.size(); i++) {
-                                    final int[] solution = allSolutions.get(i).stream().mapToInt(x->x).toArray();
-                                    final int index1D = calculateSetIndex(solution);
-
-//                                    int[] setSolutionCounter = convertSetsToSetCounters(solution);
-//                                    for (int j = 0; j < 16; j++) {
-//                                        setSolutionCounters[i*16 + j] = setSolutionCounter[j];
-//                                    }
-//
-                                    permutations[index1D] = true;
-                                    setPermutationIndicesPlusOne[index1D] = i + 1;
-                                }
-                                //                                System.out.println(Arrays.toString(indicesInstance));
-                                //                                System.out.println(set1);
-                                //                                System.out.println(index1D);
-                                //                                System.out.println("----");
-                            }
-                        }
-                    }
-                }
-            }
-
-        } else if (setFormat == 4) {
-            // [2][2][0]
-
-            final int[] missing = new int[]{0, 0};
-            for (Set set1 : inputSets1) {
-                for (Set set2 : inputSets2) {
-                    final int[] indices = ArrayUtils.addAll(ArrayUtils.addAll(set1.getIndices(), set2.getIndices()), missing);
-                    for (int a = 0; a < SET_COUNT; a++) {
-                        for (int b = 0; b < SET_COUNT; b++) {
-                            final int[] indicesInstance = ArrayUtils.clone(indices);
-                            indicesInstance[4] = a;
-                            indicesInstance[5] = b;
-
-                            List<List<Integer>> allSolutions = permute(indicesInstance);
-
-//                            setSolutionCounters = new int[allSolutions.size() * 16];
-                            for (int i = 0; i < allSolutions.size(); i++) {
-                                final int[] solution = allSolutions.get(i).stream().mapToInt(x->x).toArray();
-                                final int index1D = calculateSetIndex(solution);
-
-//                                int[] setSolutionCounter = convertSetsToSetCounters(solution);
-//                                for (int j = 0; j < 16; j++) {
-//                                    setSolutionCounters[i*16 + j] = setSolutionCounter[j];
-//                                }
-//
-                                permutations[index1D] = true;
-                                setPermutationIndicesPlusOne[index1D] = i + 1;
-                            }
-                            //                            System.out.println(Arrays.toString(indicesInstance));
-                            //                            System.out.println(set1);
-                            //                            System.out.println(set2);
-                            //                            System.out.println(index1D);
-                            //                            System.out.println("----");
-                        }
-                    }
-                }
-            }
-        } else if (setFormat == 5) {
-            // [2][2][2]
-
-            for (Set set1 : inputSets1) {
-                for (Set set2 : inputSets2) {
-                    for (Set set3 : inputSets3) {
-                        final int[] indices = ArrayUtils.addAll(ArrayUtils.addAll(set1.getIndices(), set2.getIndices()), set3.getIndices());
+    private static void addSums(final float[] from, final float[] flattenedAccs, final int itemIndex, final float[] to) {
+        final int offset = itemIndex * ARG_COUNT;
+        for (int i = 0; i < ARG_COUNT; i++) {
+            to[i] = from[i] + flattenedAccs[offset + i];
+        }
+    }
 
-                        List<List<Integer>> allSolutions = permute(indices);
+    // Drops Pareto dominated items from each gear list in place, returns how many were removed
+    public int removeDominatedItems(final OptimizationRequest request, final Map<Gear, List<Item>> itemsByGear) {
+        final DominanceFilter dominanceFilter = DominanceFilter.fromRequest(request);
+        int removed = 0;
 
-//                        setSolutionCounters = new int[allSolutions.size() * 16];
-                        for (int i = 0; i < allSolutions.size(); i++) {
-                            final int[] solution = allSolutions.get(i).stream().mapToInt(x->x).toArray();
-                            final int index1D = calculateSetIndex(solution);
+        for (final Gear gear : Gear.values()) {
+            final List<Item> gearItems = itemsByGear.get(gear);
+            final List<Item> filteredItems = dominanceFilter.filter(gearItems);
+            System.out.println("Dominance filter " + gear + ": " + gearItems.size() + " -> " + filteredItems.size());
 
-//                            int[] setSolutionCounter = convertSetsToSetCounters(solution);
-//                            for (int j = 0; j < 16; j++) {
-//                                setSolutionCounters[i*16 + j] = setSolutionCounter[j];
-//                            }
-//
-                            permutations[index1D] = true;
-                            setPermutationIndicesPlusOne[index1D] = i + 1;
-                        }
-                        //                        System.out.println(Arrays.toString(indices));
-                        //                        System.out.println(set1);
-                        //                        System.out.println(set2);
-                        //                        System.out.println(set3);
-                        //                        System.out.println(index1D);
-                        //                        System.out.println("----");
-                    }
-                }
-            }
-        } else {
-            throw new RuntimeException("Invalid Set Format " + request.getSetFormat());
+            removed += gearItems.size() - filteredItems.size();
+            itemsByGear.put(gear, filteredItems);
         }
 
-        request.setBoolArr(permutations);
-        request.setSetPermutationIndicesPlusOne(setPermutationIndicesPlusOne);
-//        request.setSetSolutionCounters(setSolutionCounters);
+        System.out.println("Removed " + removed + " dominated items");
+        return removed;
+    }
 
+    public Map<Gear, List<Item>> buildItemsByGear(final List<Item> items) {
+        return ImmutableList.copyOf(Gear.values())
+                .stream()
+                .collect(Collectors.toMap(
+                        Function.identity(),
+                        gear -> items.stream()
+                                .filter(x -> x.getGear() == gear)
+                                .collect(Collectors.toList())));
     }
 
+    public void addCalculatedFields(OptimizationRequest request) {
+        request.setSetValidityTable(SetValidityTable.forRequest(request));
+    }
+
+    /**
+     * Loads the request into the cached kernel for the device, the kernel is reused across requests. OpenCL devices
+     * use a kernel generated for the request when its set format can be inlined.
+     */
     public static GpuOptimizerKernel selectKernel(
+            final GpuDevice device,
             final OptimizationRequest request,
             final float[] flattenedWeaponAccs,
             final float[] flattenedHelmetAccs,
@@ -1445,44 +1354,17 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
             final long max,
             final int[] longSetMasks
     ) {
-        if (request.getSetFormat() == 0) {
-            return new SetFormat000OptimizerKernel(
-                    request,
-                    flattenedWeaponAccs,
-                    flattenedHelmetAccs,
-                    flattenedArmorAccs,
-                    flattenedNecklaceAccs,
-                    flattenedRingAccs,
-                    flattenedBootAccs,
-                    bonusBaseAtk,
-                    bonusBaseDef,
-                    bonusBaseHp,
-                    atkSetBonus,
-                    hpSetBonus,
-                    defSetBonus,
-                    speedSetBonus,
-                    revengeSetBonus,
-                    penSetDmgBonus,
-                    targetDefense,
-                    bonusMaxAtk,
-                    bonusMaxDef,
-                    bonusMaxHp,
-                    SETTING_RAGE_SET,
-                    SETTING_PEN_SET,
-                    base,
-                    hero,
-                    argSize,
-                    wSize,
-                    hSize,
-                    aSize,
-                    nSize,
-                    rSize,
-                    bSize,
-                    max,
-                    longSetMasks
-            );
+        GpuOptimizerKernel kernel = null;
+        if (SETTING_GPU_GENERATED_KERNELS && device.getOpenCLDevice() != null) {
+            final GpuKernelSpecialization specialization = GpuKernelSpecialization.of(request);
+            if (specialization != null) {
+                kernel = GpuKernelCache.getGenerated(device, specialization);
+            }
+        }
+        if (kernel == null) {
+            kernel = GpuKernelCache.get(device.getKey(), request.getSetFormat() == 0);
         }
-        return new GpuOptimizerKernel(
+        kernel.load(
                 request,
                 flattenedWeaponAccs,
                 flattenedHelmetAccs,
@@ -1517,6 +1399,7 @@ public class OptimizationRequestHandler extends RequestHandler implements HttpHa
                 max,
                 longSetMasks
         );
+        return kernel;
     }
 }
 
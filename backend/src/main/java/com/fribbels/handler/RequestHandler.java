@@ -2,21 +2,29 @@ package com.fribbels.handler;
 
 import com.fribbels.model.Request;
 import com.fribbels.response.Response;
+import com.fribbels.response.StreamingTypeAdapterFactory;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.Files;
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
 import com.sun.net.httpserver.HttpExchange;
 import org.apache.commons.io.IOUtils;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 
 public class RequestHandler {
 
     private static final Gson GSON = new Gson();
+    private static final Gson STREAMING_GSON = new GsonBuilder()
+            .registerTypeAdapterFactory(new StreamingTypeAdapterFactory())
+            .create();
 
     public void handleRequest(final String filename) throws IOException {
         try {
@@ -53,16 +61,37 @@ public class RequestHandler {
     }
 
     protected void sendResponse(final HttpExchange exchange, final String response) throws IOException {
+        final byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
         final OutputStream outputStream = exchange.getResponseBody();
-        exchange.sendResponseHeaders(200, response.getBytes().length);
         exchange.getResponseHeaders().put("Content-Type", ImmutableList.of("application/json"));
-        outputStream.write(response.getBytes());
+        exchange.sendResponseHeaders(200, bytes.length);
+        outputStream.write(bytes);
         outputStream.flush();
         outputStream.close();
 
         System.out.println("Finished " + exchange.getRequestURI().getPath());
     }
 
+    /**
+     * Writes response as JSON straight to the response body with chunked encoding, instead of building the whole
+     * string first, for responses with many items or builds. A null response sends an empty body.
+     */
+    protected void sendJsonResponse(final HttpExchange exchange, final Response response) throws IOException {
+        if (response == null) {
+            sendResponse(exchange, "");
+            return;
+        }
+
+        exchange.getResponseHeaders().put("Content-Type", ImmutableList.of("application/json"));
+        exchange.sendResponseHeaders(200, 0);
+        try (final JsonWriter writer = STREAMING_GSON.newJsonWriter(new BufferedWriter(
+                new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)))) {
+            STREAMING_GSON.toJson(response, response.getClass(), writer);
+        }
+
+        System.out.println("Finished " + exchange.getRequestURI().getPath());
+    }
+
     protected <T extends Request> T parseRequest(final HttpExchange exchange, final Class<T> type) throws IOException {
         final String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
         System.out.println(body);
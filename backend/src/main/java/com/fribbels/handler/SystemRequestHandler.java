@@ -2,9 +2,14 @@ package com.fribbels.handler;
 
 import com.fribbels.Main;
 import com.fribbels.core.StatCalculator;
+import com.fribbels.gpu.GpuDevices;
+import com.fribbels.gpu.GpuTuningProfile;
 import com.fribbels.request.BuildsRequest;
 import com.fribbels.request.HeroesRequest;
 import com.fribbels.request.SetSettingsRequest;
+import com.fribbels.response.GetDevicesResponse;
+import com.fribbels.response.GetGpuProfileResponse;
+import com.google.gson.Gson;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import org.apache.commons.io.IOUtils;
@@ -14,6 +19,8 @@ import java.io.OutputStream;
 
 public class SystemRequestHandler extends RequestHandler implements HttpHandler {
 
+    private static final Gson gson = new Gson();
+
     @Override
     public void handle(final HttpExchange exchange) throws IOException {
         System.out.println("===================== HeroesRequestHandler =====================");
@@ -29,6 +36,15 @@ public class SystemRequestHandler extends RequestHandler implements HttpHandler
                     final SetSettingsRequest setSettingsRequest = parseRequest(exchange, SetSettingsRequest.class);
                     sendResponse(exchange, setSettings(setSettingsRequest));
                     return;
+                case "/system/getDevices":
+                    sendResponse(exchange, getDevices());
+                    return;
+                case "/system/getGpuProfile":
+                    sendResponse(exchange, getGpuProfile());
+                    return;
+                case "/system/resetGpuProfile":
+                    sendResponse(exchange, resetGpuProfile());
+                    return;
 
                 default:
                     System.out.println("No handler found for " + path);
@@ -49,6 +65,23 @@ public class SystemRequestHandler extends RequestHandler implements HttpHandler
         return "";
     }
 
+    private String getDevices() {
+        return gson.toJson(GetDevicesResponse.builder()
+                .devices(GpuDevices.getDevices())
+                .build());
+    }
+
+    private String getGpuProfile() {
+        return gson.toJson(GetGpuProfileResponse.builder()
+                .tunings(GpuTuningProfile.getTunings())
+                .build());
+    }
+
+    private String resetGpuProfile() {
+        GpuTuningProfile.reset();
+        return "";
+    }
+
     private String setSettings(final SetSettingsRequest request) {
         System.out.println(request);
         HeroesRequestHandler.SETTING_UNLOCK_ON_UNEQUIP = request.isSettingUnlockOnUnequip();
@@ -66,6 +99,30 @@ public class SystemRequestHandler extends RequestHandler implements HttpHandler
             StatCalculator.SETTING_PEN_DEFENSE = max;
         }
 
+        if (request.getSettingDominanceFilter() != null) {
+            OptimizationRequestHandler.SETTING_DOMINANCE_FILTER = request.getSettingDominanceFilter();
+        }
+
+        if (request.getSettingGpuCompaction() != null) {
+            OptimizationRequestHandler.SETTING_GPU_COMPACTION = request.getSettingGpuCompaction();
+        }
+
+        if (request.getSettingHeterogeneous() != null) {
+            OptimizationRequestHandler.SETTING_HETEROGENEOUS = request.getSettingHeterogeneous();
+        }
+
+        if (request.getSettingGpuTopK() != null) {
+            OptimizationRequestHandler.SETTING_GPU_TOP_K = request.getSettingGpuTopK();
+        }
+
+        if (request.getSettingGpuGeneratedKernels() != null) {
+            OptimizationRequestHandler.SETTING_GPU_GENERATED_KERNELS = request.getSettingGpuGeneratedKernels();
+        }
+
+        if (request.getSettingGpuAutoTune() != null) {
+            GpuTuningProfile.SETTING_GPU_AUTO_TUNE = request.getSettingGpuAutoTune();
+        }
+
         return "";
     }
 }
@@ -1,5 +1,7 @@
 package com.fribbels.request;
 
+import com.fribbels.core.SetValidityTable;
+import com.fribbels.enums.OptimizationColumn;
 import com.fribbels.enums.Set;
 import com.fribbels.enums.StatType;
 import com.fribbels.model.DamageMultipliers;
@@ -159,9 +161,12 @@ public class OptimizationRequest extends Request {
     private Integer inputEffPriority;
     private Integer inputResPriority;
 
+    // Top K mode: only keep the inputTopK best builds by inputTopKColumn instead of every passing build
+    private Integer inputTopK;
+    private OptimizationColumn inputTopKColumn;
+
     // calculated fields
-    public boolean[] boolArr;
-    public int[] setPermutationIndicesPlusOne;
+    public SetValidityTable setValidityTable;
     public int[] setSolutionCounters;
     private int setFormat;
 }
@@ -24,4 +24,10 @@ public class SetSettingsRequest extends Request {
     private boolean settingGpu;
     private Integer settingMaxResults;
     private Integer settingPenDefense;
+    private Boolean settingDominanceFilter;
+    private Boolean settingGpuCompaction;
+    private Boolean settingHeterogeneous;
+    private Boolean settingGpuTopK;
+    private Boolean settingGpuGeneratedKernels;
+    private Boolean settingGpuAutoTune;
 }
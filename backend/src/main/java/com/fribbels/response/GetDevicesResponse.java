@@ -0,0 +1,18 @@
+package com.fribbels.response;
+
+import com.fribbels.gpu.GpuDevice;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.List;
+
+@Setter
+@Getter
+@Builder
+@ToString
+public class GetDevicesResponse extends Response {
+
+    private List<GpuDevice> devices;
+}
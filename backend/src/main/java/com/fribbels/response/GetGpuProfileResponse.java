@@ -0,0 +1,18 @@
+package com.fribbels.response;
+
+import com.fribbels.gpu.GpuTuningProfile;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.Map;
+
+@Setter
+@Getter
+@Builder
+@ToString
+public class GetGpuProfileResponse extends Response {
+
+    private Map<String, GpuTuningProfile.Tuning> tunings;
+}
@@ -0,0 +1,132 @@
+package com.fribbels.response;
+
+import com.fribbels.model.BonusStats;
+import com.fribbels.model.HeroStats;
+import com.fribbels.model.Mod;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes HeroStats field by field in declaration order, the same JSON the reflective adapter writes, without its per
+ * field reflection. Result pages and hero builds are mostly HeroStats, so this is the hot path of those responses.
+ * Reading goes through the reflective adapter.
+ */
+public class HeroStatsTypeAdapter extends TypeAdapter<HeroStats> {
+
+    private final TypeAdapter<BonusStats> bonusStatsAdapter;
+    private final TypeAdapter<Mod> modAdapter;
+    private final TypeAdapter<HeroStats> delegate;
+
+    public HeroStatsTypeAdapter(final Gson gson, final TypeAdapter<HeroStats> delegate) {
+        this.delegate = delegate;
+        bonusStatsAdapter = gson.getAdapter(BonusStats.class);
+        modAdapter = gson.getAdapter(Mod.class);
+    }
+
+    @Override
+    public void write(final JsonWriter out, final HeroStats stats) throws IOException {
+        if (stats == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+        out.name("atk").value(stats.atk);
+        out.name("hp").value(stats.hp);
+        out.name("def").value(stats.def);
+        out.name("cr").value(stats.cr);
+        out.name("cd").value(stats.cd);
+        out.name("eff").value(stats.eff);
+        out.name("res").value(stats.res);
+        out.name("dac").value(stats.dac);
+        out.name("spd").value(stats.spd);
+        out.name("cp").value(stats.cp);
+
+        out.name("ehp").value(stats.ehp);
+        out.name("hpps").value(stats.hpps);
+        out.name("ehpps").value(stats.ehpps);
+        out.name("dmg").value(stats.dmg);
+        out.name("dmgps").value(stats.dmgps);
+        out.name("mcdmg").value(stats.mcdmg);
+        out.name("mcdmgps").value(stats.mcdmgps);
+        out.name("dmgh").value(stats.dmgh);
+        out.name("dmgd").value(stats.dmgd);
+
+        out.name("s1").value(stats.s1);
+        out.name("s2").value(stats.s2);
+        out.name("s3").value(stats.s3);
+
+        out.name("upgrades").value(stats.upgrades);
+        out.name("conversions").value(stats.conversions);
+        out.name("eq").value(stats.eq);
+        out.name("score").value(stats.score);
+        out.name("bs").value(stats.bs);
+        out.name("priority").value(stats.priority);
+
+        out.name("bonusStats");
+        bonusStatsAdapter.write(out, stats.bonusStats);
+
+        out.name("sets");
+        writeInts(out, stats.sets);
+
+        out.name("id").value(stats.id);
+        out.name("name").value(stats.name);
+        out.name("property").value(stats.property);
+        out.name("items");
+        writeStrings(out, stats.items);
+        out.name("modIds");
+        writeStrings(out, stats.modIds);
+        out.name("mods");
+        writeMods(out, stats.mods);
+        out.endObject();
+    }
+
+    private void writeMods(final JsonWriter out, final List<Mod> mods) throws IOException {
+        if (mods == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginArray();
+        for (final Mod mod : mods) {
+            modAdapter.write(out, mod);
+        }
+        out.endArray();
+    }
+
+    static void writeInts(final JsonWriter out, final int[] values) throws IOException {
+        if (values == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginArray();
+        for (final int value : values) {
+            out.value(value);
+        }
+        out.endArray();
+    }
+
+    static void writeStrings(final JsonWriter out, final List<String> values) throws IOException {
+        if (values == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginArray();
+        for (final String value : values) {
+            out.value(value);
+        }
+        out.endArray();
+    }
+
+    @Override
+    public HeroStats read(final JsonReader in) throws IOException {
+        return delegate.read(in);
+    }
+}
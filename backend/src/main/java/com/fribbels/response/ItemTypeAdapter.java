@@ -0,0 +1,127 @@
+package com.fribbels.response;
+
+import com.fribbels.enums.Gear;
+import com.fribbels.enums.Material;
+import com.fribbels.enums.Rank;
+import com.fribbels.enums.Set;
+import com.fribbels.model.AugmentedStats;
+import com.fribbels.model.Item;
+import com.fribbels.model.Mod;
+import com.fribbels.model.Stat;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes Items field by field in declaration order, the same JSON the reflective adapter writes, without its per field
+ * reflection. The small nested types go through their usual adapters, and reading goes through the reflective adapter.
+ */
+public class ItemTypeAdapter extends TypeAdapter<Item> {
+
+    private final TypeAdapter<Gear> gearAdapter;
+    private final TypeAdapter<Rank> rankAdapter;
+    private final TypeAdapter<Set> setAdapter;
+    private final TypeAdapter<Material> materialAdapter;
+    private final TypeAdapter<Stat> statAdapter;
+    private final TypeAdapter<List<Stat>> statsAdapter;
+    private final TypeAdapter<List<List<String>>> opAdapter;
+    private final TypeAdapter<Mod> modAdapter;
+    private final TypeAdapter<AugmentedStats> augmentedStatsAdapter;
+    private final TypeAdapter<Item> delegate;
+
+    public ItemTypeAdapter(final Gson gson, final TypeAdapter<Item> delegate) {
+        this.delegate = delegate;
+        gearAdapter = gson.getAdapter(Gear.class);
+        rankAdapter = gson.getAdapter(Rank.class);
+        setAdapter = gson.getAdapter(Set.class);
+        materialAdapter = gson.getAdapter(Material.class);
+        statAdapter = gson.getAdapter(Stat.class);
+        statsAdapter = gson.getAdapter(new TypeToken<List<Stat>>(){});
+        opAdapter = gson.getAdapter(new TypeToken<List<List<String>>>(){});
+        modAdapter = gson.getAdapter(Mod.class);
+        augmentedStatsAdapter = gson.getAdapter(AugmentedStats.class);
+    }
+
+    @Override
+    public void write(final JsonWriter out, final Item item) throws IOException {
+        if (item == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+        out.name("gear");
+        gearAdapter.write(out, item.getGear());
+        out.name("rank");
+        rankAdapter.write(out, item.getRank());
+        out.name("set");
+        setAdapter.write(out, item.getSet());
+        out.name("enhance").value(item.getEnhance());
+        out.name("level").value(item.getLevel());
+        out.name("main");
+        statAdapter.write(out, item.getMain());
+        out.name("substats");
+        statsAdapter.write(out, item.getSubstats());
+        out.name("op");
+        opAdapter.write(out, item.getOp());
+        out.name("storage").value(item.getStorage());
+        out.name("mod");
+        modAdapter.write(out, item.getMod());
+        out.name("name").value(item.getName());
+        out.name("augmentedStats");
+        augmentedStatsAdapter.write(out, item.getAugmentedStats());
+        out.name("reforgedStats");
+        augmentedStatsAdapter.write(out, item.getReforgedStats());
+        out.name("material");
+        materialAdapter.write(out, item.getMaterial());
+        out.name("mconfidence").value(item.getMconfidence());
+        out.name("id").value(item.getId());
+        out.name("modId").value(item.getModId());
+        out.name("ingameId").value(item.getIngameId());
+        out.name("ingameEquippedId").value(item.getIngameEquippedId());
+        out.name("equippedById").value(item.getEquippedById());
+        out.name("equippedByName").value(item.getEquippedByName());
+        out.name("heroName").value(item.getHeroName());
+        out.name("locked").value(item.isLocked());
+        out.name("disableMods").value(item.isDisableMods());
+        out.name("reforgeable").value(item.getReforgeable());
+        out.name("upgradeable").value(item.getUpgradeable());
+        out.name("convertable").value(item.getConvertable());
+        out.name("alreadyEquipped").value(item.getAlreadyEquipped());
+        out.name("priority").value(item.getPriority());
+        out.name("wss").value(item.getWss());
+        out.name("reforgedWss").value(item.getReforgedWss());
+        out.name("dpsWss").value(item.getDpsWss());
+        out.name("supportWss").value(item.getSupportWss());
+        out.name("combatWss").value(item.getCombatWss());
+        out.name("duplicateId").value(item.getDuplicateId());
+        out.name("allowedMods").value(item.getAllowedMods());
+        out.name("tempStatAccArr");
+        writeFloats(out, item.getTempStatAccArr());
+        out.endObject();
+    }
+
+    private static void writeFloats(final JsonWriter out, final float[] values) throws IOException {
+        if (values == null) {
+            out.nullValue();
+            return;
+        }
+
+        // Boxed so the values print as floats, the same as Gson's float adapter
+        out.beginArray();
+        for (final float value : values) {
+            out.value(Float.valueOf(value));
+        }
+        out.endArray();
+    }
+
+    @Override
+    public Item read(final JsonReader in) throws IOException {
+        return delegate.read(in);
+    }
+}
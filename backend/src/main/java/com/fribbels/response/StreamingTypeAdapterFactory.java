@@ -0,0 +1,27 @@
+package com.fribbels.response;
+
+import com.fribbels.model.HeroStats;
+import com.fribbels.model.Item;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Hand written adapters for the types that make up most of the large responses, for the Gson that streams responses.
+ * Reads are delegated to the adapter Gson would otherwise use, so the types still round trip.
+ */
+public class StreamingTypeAdapterFactory implements TypeAdapterFactory {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(final Gson gson, final TypeToken<T> type) {
+        if (type.getRawType() == HeroStats.class) {
+            return (TypeAdapter<T>) new HeroStatsTypeAdapter(gson, gson.getDelegateAdapter(this, TypeToken.get(HeroStats.class)));
+        }
+        if (type.getRawType() == Item.class) {
+            return (TypeAdapter<T>) new ItemTypeAdapter(gson, gson.getDelegateAdapter(this, TypeToken.get(Item.class)));
+        }
+        return null;
+    }
+}
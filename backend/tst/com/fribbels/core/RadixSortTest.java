@@ -0,0 +1,64 @@
+package com.fribbels.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+public class RadixSortTest {
+
+    @Test
+    public void sortsNegativeKeys() {
+        final Random random = new Random(1);
+        final int[] keys = random.ints(1000).toArray();
+        keys[0] = Integer.MIN_VALUE;
+        keys[1] = Integer.MAX_VALUE;
+        keys[2] = -1;
+        keys[3] = 0;
+
+        assertSorted(keys);
+    }
+
+    @Test
+    public void keepsEqualKeysInInputOrder() {
+        // Spans several blocks, so equal keys are scattered from different blocks
+        final Random random = new Random(2);
+        final int[] keys = random.ints(300000, -50, 50).toArray();
+
+        assertSorted(keys);
+    }
+
+    @Test
+    public void skipsPassesWithOneDigit() {
+        // Only the lowest and third byte differ, the second and highest byte passes are skipped
+        final Random random = new Random(3);
+        final int[] keys = IntStream.range(0, 5000)
+                .map(i -> (random.nextInt(256) << 16) | random.nextInt(256))
+                .toArray();
+
+        assertSorted(keys);
+    }
+
+    @Test
+    public void skipsEveryPassWithEqualKeys() {
+        final int[] keys = new int[100];
+        Arrays.fill(keys, -7);
+
+        assertSorted(keys);
+    }
+
+    private static void assertSorted(final int[] keys) {
+        final int[] expected = IntStream.range(0, keys.length)
+                .boxed()
+                .sorted(Comparator.comparingInt(i -> keys[i]))
+                .mapToInt(x -> x)
+                .toArray();
+        final int[] values = IntStream.range(0, keys.length).toArray();
+
+        assertArrayEquals(expected, RadixSort.sort(keys.clone(), values));
+    }
+}
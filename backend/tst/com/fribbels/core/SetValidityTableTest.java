@@ -0,0 +1,247 @@
+package com.fribbels.core;
+
+import com.fribbels.enums.Set;
+import com.fribbels.request.OptimizationRequest;
+import org.apache.commons.lang3.ArrayUtils;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static com.fribbels.handler.OptimizationRequestHandler.SET_COUNT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares SetValidityTable against the permute() based table it replaced, over every multiset of six sets.
+ */
+public class SetValidityTableTest {
+
+    private static final int SET_EXPONENTIAL = 34012224; // 18 ^ 6
+
+    private final boolean[] permutations = new boolean[SET_EXPONENTIAL];
+    private final java.util.Set<String> permuted = new HashSet<>();
+
+    @Test
+    public void allValidFormat() {
+        final SetValidityTable table = SetValidityTable.forRequest(request(0,
+                Arrays.asList(), Arrays.asList(), Arrays.asList()));
+
+        forEachMultiset(sorted -> assertTrue(table.isValid(counters(sorted))));
+    }
+
+    @Test
+    public void fourTwoFormat() {
+        // Includes a 4 piece set in the 2 piece slot, which makes the layout eight pieces long
+        compare(1,
+                Arrays.asList(Set.SPEED, Set.DESTRUCTION),
+                Arrays.asList(Set.HEALTH, Set.CRIT, Set.ATTACK),
+                Arrays.asList());
+    }
+
+    @Test
+    public void fourFormat() {
+        compare(2,
+                Arrays.asList(Set.SPEED, Set.COUNTER),
+                Arrays.asList(),
+                Arrays.asList());
+    }
+
+    @Test
+    public void twoFormat() {
+        // A 4 piece set in the 2 piece slot, the other 2 pieces of it are kept past the free pieces
+        compare(3,
+                Arrays.asList(Set.SPEED),
+                Arrays.asList(),
+                Arrays.asList());
+    }
+
+    @Test
+    public void twoTwoFormat() {
+        // A 4 piece set here leaves eight pieces, the baseline accepted every six piece subset of them
+        compare(4,
+                Arrays.asList(Set.SPEED, Set.HEALTH),
+                Arrays.asList(Set.ATTACK, Set.CRIT, Set.HEALTH),
+                Arrays.asList());
+    }
+
+    @Test
+    public void twoTwoTwoFormat() {
+        compare(5,
+                Arrays.asList(Set.SPEED, Set.HEALTH, Set.CRIT),
+                Arrays.asList(Set.HEALTH, Set.CRIT),
+                Arrays.asList(Set.CRIT, Set.HIT));
+    }
+
+    private void compare(final int setFormat, final List<Set> inputSets1, final List<Set> inputSets2, final List<Set> inputSets3) {
+        buildPermutations(setFormat, inputSets1, inputSets2, inputSets3);
+        final SetValidityTable table = SetValidityTable.forRequest(request(setFormat, inputSets1, inputSets2, inputSets3));
+
+        final int[] validCount = new int[1];
+        forEachMultiset(sorted -> {
+            final boolean expected = permutations[calculateSetIndex(sorted)];
+            assertEquals(expected, table.isValid(counters(sorted)), "Format " + setFormat + " " + Arrays.toString(sorted));
+            if (expected) {
+                validCount[0]++;
+            }
+        });
+        assertTrue(validCount[0] > 0);
+    }
+
+    private static OptimizationRequest request(final int setFormat, final List<Set> inputSets1, final List<Set> inputSets2, final List<Set> inputSets3) {
+        return OptimizationRequest.builder()
+                .setFormat(setFormat)
+                .inputSetsOne(inputSets1)
+                .inputSetsTwo(inputSets2)
+                .inputSetsThree(inputSets3)
+                .build();
+    }
+
+    private interface MultisetConsumer {
+        void accept(int[] sorted);
+    }
+
+    private static void forEachMultiset(final MultisetConsumer consumer) {
+        final int[] sorted = new int[6];
+        forEachMultiset(consumer, sorted, 0, 0);
+    }
+
+    private static void forEachMultiset(final MultisetConsumer consumer, final int[] sorted, final int position, final int fromSet) {
+        if (position == sorted.length) {
+            consumer.accept(sorted);
+            return;
+        }
+        for (int set = fromSet; set < SET_COUNT; set++) {
+            sorted[position] = set;
+            forEachMultiset(consumer, sorted, position + 1, set);
+        }
+    }
+
+    private static int[] counters(final int[] sets) {
+        final int[] counters = new int[SET_COUNT];
+        for (final int set : sets) {
+            counters[set]++;
+        }
+        return counters;
+    }
+
+    private static int calculateSetIndex(final int[] indices) {
+        int index = 0;
+        for (int i = 0; i < 6; i++) {
+            index = index * SET_COUNT + indices[i];
+        }
+        return index;
+    }
+
+    // The baseline addCalculatedFields, without the unused permutation indices
+    private void buildPermutations(final int setFormat, final List<Set> inputSets1, final List<Set> inputSets2, final List<Set> inputSets3) {
+        Arrays.fill(permutations, false);
+        permuted.clear();
+
+        if (setFormat == 1) {
+            for (final Set set1 : inputSets1) {
+                for (final Set set2 : inputSets2) {
+                    mark(ArrayUtils.addAll(set1.getIndices(), set2.getIndices()));
+                }
+            }
+        } else if (setFormat == 2) {
+            for (final Set set1 : inputSets1) {
+                final int[] indices = ArrayUtils.addAll(set1.getIndices(), new int[]{0, 0});
+                for (int a = 0; a < SET_COUNT; a++) {
+                    for (int b = 0; b < SET_COUNT; b++) {
+                        final int[] indicesInstance = ArrayUtils.clone(indices);
+                        indicesInstance[4] = a;
+                        indicesInstance[5] = b;
+                        mark(indicesInstance);
+                    }
+                }
+            }
+        } else if (setFormat == 3) {
+            for (final Set set1 : inputSets1) {
+                final int[] indices = ArrayUtils.addAll(set1.getIndices(), new int[]{0, 0, 0, 0});
+                for (int a = 0; a < SET_COUNT; a++) {
+                    for (int b = 0; b < SET_COUNT; b++) {
+                        for (int c = 0; c < SET_COUNT; c++) {
+                            for (int d = 0; d < SET_COUNT; d++) {
+                                final int[] indicesInstance = ArrayUtils.clone(indices);
+                                indicesInstance[2] = a;
+                                indicesInstance[3] = b;
+                                indicesInstance[4] = c;
+                                indicesInstance[5] = d;
+                                mark(indicesInstance);
+                            }
+                        }
+                    }
+                }
+            }
+        } else if (setFormat == 4) {
+            for (final Set set1 : inputSets1) {
+                for (final Set set2 : inputSets2) {
+                    final int[] indices = ArrayUtils.addAll(ArrayUtils.addAll(set1.getIndices(), set2.getIndices()), new int[]{0, 0});
+                    for (int a = 0; a < SET_COUNT; a++) {
+                        for (int b = 0; b < SET_COUNT; b++) {
+                            final int[] indicesInstance = ArrayUtils.clone(indices);
+                            indicesInstance[4] = a;
+                            indicesInstance[5] = b;
+                            mark(indicesInstance);
+                        }
+                    }
+                }
+            }
+        } else if (setFormat == 5) {
+            for (final Set set1 : inputSets1) {
+                for (final Set set2 : inputSets2) {
+                    for (final Set set3 : inputSets3) {
+                        mark(ArrayUtils.addAll(ArrayUtils.addAll(set1.getIndices(), set2.getIndices()), set3.getIndices()));
+                    }
+                }
+            }
+        }
+    }
+
+    private void mark(final int[] indices) {
+        // permute() yields the same permutations for any ordering of the same indices, so each multiset runs once
+        final int[] key = ArrayUtils.clone(indices);
+        Arrays.sort(key);
+        if (!permuted.add(Arrays.toString(key))) {
+            return;
+        }
+
+        for (final List<Integer> solution : permute(indices)) {
+            final int[] prefix = solution.stream().mapToInt(x -> x).toArray();
+            permutations[calculateSetIndex(prefix)] = true;
+        }
+    }
+
+    // https://java2blog.com/permutations-array-java/
+    private static List<List<Integer>> permute(final int[] arr) {
+        final List<List<Integer>> list = new ArrayList<>();
+        permuteHelper(list, new ArrayList<>(), arr, new boolean[arr.length]);
+
+        return list;
+    }
+
+    private static void permuteHelper(final List<List<Integer>> list,
+                                      final List<Integer> resultList,
+                                      final int[] arr,
+                                      final boolean[] used) {
+        if (resultList.size() == arr.length) {
+            list.add(new ArrayList<>(resultList));
+        } else {
+            for (int i = 0; i < arr.length; i++) {
+                if (used[i] || i > 0 && arr[i] == arr[i - 1] && !used[i - 1]) {
+                    continue;
+                }
+                used[i] = true;
+                resultList.add(arr[i]);
+
+                permuteHelper(list, resultList, arr, used);
+
+                used[i] = false;
+                resultList.remove(resultList.size() - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.fribbels.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TopKHeapTest {
+
+    @Test
+    public void keepsHighestValues() {
+        final TopKHeap heap = new TopKHeap(3);
+        assertEquals(Integer.MIN_VALUE, heap.threshold());
+
+        heap.offer(5, 0);
+        heap.offer(1, 1);
+        heap.offer(9, 2);
+        heap.offer(7, 3);
+        heap.offer(3, 4);
+
+        assertEquals(3, heap.size());
+        assertEquals(5, heap.threshold());
+        assertArrayEquals(new long[]{2, 3, 0}, heap.getSortedKeys());
+        // Reading the keys leaves the heap as it was
+        assertArrayEquals(new long[]{2, 3, 0}, heap.getSortedKeys());
+    }
+
+    @Test
+    public void breaksTiesByLowerKey() {
+        final TopKHeap heap = new TopKHeap(2);
+        heap.offer(4, 8);
+        heap.offer(4, 3);
+        heap.offer(4, 5);
+        heap.offer(4, 1);
+        heap.offer(4, 9);
+
+        assertArrayEquals(new long[]{1, 3}, heap.getSortedKeys());
+    }
+
+    @Test
+    public void mergeMatchesSingleHeap() {
+        final int[] values = {6, 2, 6, 8, 1, 6, 3, 8, 6, 5, 0, 6};
+        final TopKHeap single = new TopKHeap(5);
+        final TopKHeap even = new TopKHeap(5);
+        final TopKHeap odd = new TopKHeap(5);
+        // Workers visit keys in different orders, the merged result must not depend on it
+        for (int i = values.length - 1; i >= 0; i--) {
+            single.offer(values[i], i);
+            (i % 2 == 0 ? even : odd).offer(values[i], i);
+        }
+
+        final TopKHeap merged = TopKHeap.merge(Arrays.asList(odd, even), 5);
+        assertArrayEquals(new long[]{3, 7, 0, 2, 5}, merged.getSortedKeys());
+        assertArrayEquals(single.getSortedKeys(), merged.getSortedKeys());
+    }
+
+    @Test
+    public void emptyCapacityKeepsNothing() {
+        final TopKHeap heap = new TopKHeap(0);
+        heap.offer(1, 0);
+
+        assertEquals(0, heap.size());
+        assertEquals(Integer.MIN_VALUE, heap.threshold());
+        assertEquals(0, heap.getSortedKeys().length);
+    }
+}
@@ -0,0 +1,225 @@
+package com.fribbels.gpu;
+
+import com.aparapi.Kernel;
+import com.aparapi.Range;
+import com.fribbels.core.MixedRadixIndex;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the chained division index decode with the stride decode, the odometer, and the kernels' base digit carry.
+ * Each variant folds its digits into a checksum so the work is not optimized away. The test checks that the checksums
+ * match on a small index space, and main times them on a large one.
+ */
+public class IndexDecodeBenchmark {
+
+    private static final long START = 1_234_567_891L;
+
+    @Test
+    public void decodersMatch() {
+        final long wSize = 23, hSize = 19, aSize = 17, nSize = 29, rSize = 31, bSize = 37;
+        final MixedRadixIndex index = new MixedRadixIndex(wSize, hSize, aSize, nSize, rSize, bSize);
+        final long start = 123_456_789L;
+        final long[] sequential = sequential(start, 100_000);
+        final long[] sparse = sparse(start, 10_000);
+
+        final long chain = chain(sequential, wSize, hSize, aSize, nSize, rSize, bSize);
+        assertEquals(chain, stride(sequential, index));
+        assertEquals(chain, odometer(sequential, index));
+
+        final long sparseChain = chain(sparse, wSize, hSize, aSize, nSize, rSize, bSize);
+        assertEquals(sparseChain, stride(sparse, index));
+        assertEquals(sparseChain, odometer(sparse, index));
+
+        final DecodeKernel chainKernel = createKernel(new ChainKernel(), wSize, hSize, aSize, nSize, rSize, bSize, 4096);
+        final DecodeKernel carryKernel = createKernel(new CarryKernel(), wSize, hSize, aSize, nSize, rSize, bSize, 4096);
+        final Range range = Range.create(4096, 64);
+        final int[] digits = new int[6];
+        try {
+            assertEquals(runKernel(chainKernel, range, index, digits, start, 4), runKernel(carryKernel, range, index, digits, start, 4));
+        } finally {
+            chainKernel.dispose();
+            carryKernel.dispose();
+        }
+    }
+
+    public static void main(final String[] args) {
+        final long size = 40;
+        final int kernelBatch = 1 << 20;
+        final long wSize = size, hSize = size, aSize = size, nSize = size, rSize = size, bSize = size;
+        final MixedRadixIndex index = new MixedRadixIndex(wSize, hSize, aSize, nSize, rSize, bSize);
+
+        final long[] sequential = sequential(START, 20_000_000);
+        final long[] sparse = sparse(START, 2_000_000);
+
+        for (int round = 0; round < 3; round++) {
+            System.out.println("Round " + round);
+            time("cpu chain sequential", () -> chain(sequential, wSize, hSize, aSize, nSize, rSize, bSize));
+            time("cpu stride sequential", () -> stride(sequential, index));
+            time("cpu odometer sequential", () -> odometer(sequential, index));
+            time("cpu chain sparse", () -> chain(sparse, wSize, hSize, aSize, nSize, rSize, bSize));
+            time("cpu stride sparse", () -> stride(sparse, index));
+            time("cpu odometer sparse", () -> odometer(sparse, index));
+        }
+
+        final DecodeKernel chainKernel = createKernel(new ChainKernel(), wSize, hSize, aSize, nSize, rSize, bSize, kernelBatch);
+        final DecodeKernel carryKernel = createKernel(new CarryKernel(), wSize, hSize, aSize, nSize, rSize, bSize, kernelBatch);
+        final Range range = Range.create(kernelBatch, 64);
+        final int[] digits = new int[6];
+        for (int round = 0; round < 3; round++) {
+            System.out.println("Round " + round);
+            time("jtp chain", () -> runKernel(chainKernel, range, index, digits, START, 8));
+            time("jtp carry", () -> runKernel(carryKernel, range, index, digits, START, 8));
+        }
+        chainKernel.dispose();
+        carryKernel.dispose();
+    }
+
+    private static long[] sequential(final long start, final int count) {
+        final long[] iterations = new long[count];
+        for (int j = 0; j < count; j++) {
+            iterations[j] = start + j;
+        }
+        return iterations;
+    }
+
+    private static long[] sparse(final long start, final int count) {
+        final long[] iterations = new long[count];
+        final Random random = new Random(0);
+        long iteration = start;
+        for (int j = 0; j < count; j++) {
+            iteration += 1 + random.nextInt(1000);
+            iterations[j] = iteration;
+        }
+        return iterations;
+    }
+
+    // Aparapi deprecates EXECUTION_MODE without a replacement for forcing JTP
+    @SuppressWarnings("deprecation")
+    private static DecodeKernel createKernel(final DecodeKernel kernel,
+                                             final long wSize, final long hSize, final long aSize,
+                                             final long nSize, final long rSize, final long bSize,
+                                             final int batch) {
+        kernel.setExecutionModeWithoutFallback(Kernel.EXECUTION_MODE.JTP);
+        kernel.wSize = wSize;
+        kernel.hSize = hSize;
+        kernel.aSize = aSize;
+        kernel.nSize = nSize;
+        kernel.rSize = rSize;
+        kernel.bSize = bSize;
+        kernel.output = new int[batch];
+        return kernel;
+    }
+
+    private static long chain(final long[] iterations,
+                              final long wSize, final long hSize, final long aSize,
+                              final long nSize, final long rSize, final long bSize) {
+        long checksum = 0;
+        for (final long iteration : iterations) {
+            final int b = (int) (iteration % bSize);
+            final int r = (int) (((iteration - b) / bSize) % rSize);
+            final int n = (int) (((iteration - r * bSize - b) / (bSize * rSize)) % nSize);
+            final int a = (int) (((iteration - n * rSize * bSize - r * bSize - b) / (bSize * rSize * nSize)) % aSize);
+            final int h = (int) (((iteration - a * nSize * rSize * bSize - n * rSize * bSize - r * bSize - b) / (bSize * rSize * nSize * aSize)) % hSize);
+            final int w = (int) (((iteration - h * aSize * nSize * rSize * bSize - a * nSize * rSize * bSize - n * rSize * bSize - r * bSize - b) / (bSize * rSize * nSize * aSize * hSize)) % wSize);
+            checksum += fold(w, h, a, n, r, b);
+        }
+        return checksum;
+    }
+
+    private static long stride(final long[] iterations, final MixedRadixIndex index) {
+        final int[] digits = new int[6];
+        long checksum = 0;
+        for (final long iteration : iterations) {
+            index.decode(iteration, digits);
+            checksum += fold(digits[0], digits[1], digits[2], digits[3], digits[4], digits[5]);
+        }
+        return checksum;
+    }
+
+    private static long odometer(final long[] iterations, final MixedRadixIndex index) {
+        final MixedRadixIndex.Odometer odometer = index.odometer();
+        long checksum = 0;
+        for (final long iteration : iterations) {
+            final int[] digits = odometer.moveTo(iteration);
+            checksum += fold(digits[0], digits[1], digits[2], digits[3], digits[4], digits[5]);
+        }
+        return checksum;
+    }
+
+    private static long runKernel(final DecodeKernel kernel, final Range range, final MixedRadixIndex index,
+                                  final int[] digits, final long start, final int batches) {
+        long checksum = 0;
+        for (int batch = 0; batch < batches; batch++) {
+            final long offset = start + (long) batch * kernel.output.length;
+            index.decode(offset, digits);
+            kernel.offset = offset;
+            kernel.baseW = digits[0];
+            kernel.baseH = digits[1];
+            kernel.baseA = digits[2];
+            kernel.baseN = digits[3];
+            kernel.baseR = digits[4];
+            kernel.baseB = digits[5];
+            kernel.execute(range);
+            for (final int value : kernel.output) {
+                checksum += value;
+            }
+        }
+        return checksum;
+    }
+
+    private static int fold(final int w, final int h, final int a, final int n, final int r, final int b) {
+        return w * 3 + h * 5 + a * 7 + n * 11 + r * 13 + b * 17;
+    }
+
+    private static void time(final String name, final LongSupplier task) {
+        final long start = System.nanoTime();
+        final long checksum = task.getAsLong();
+        System.out.println(String.format("%-26s %6d ms  checksum %d", name, (System.nanoTime() - start) / 1_000_000, checksum));
+    }
+
+    public abstract static class DecodeKernel extends Kernel {
+        long wSize, hSize, aSize, nSize, rSize, bSize;
+        long offset;
+        int baseW, baseH, baseA, baseN, baseR, baseB;
+        int[] output;
+    }
+
+    public static class ChainKernel extends DecodeKernel {
+        @Override
+        public void run() {
+            final int id = getGlobalId();
+            final long i = offset + id;
+            final long b = i % bSize;
+            final long r = ( ( i - b ) / bSize ) %  rSize;
+            final long n = ( ( i - r * bSize - b ) / (bSize * rSize) ) % nSize;
+            final long a = ( ( i - n * rSize * bSize - r * bSize - b ) / (bSize * rSize * nSize) ) % aSize;
+            final long h = ( ( i - a * nSize * rSize * bSize - n * rSize * bSize - r * bSize - b) / (bSize * rSize * nSize * aSize) ) % hSize;
+            final long w = ( ( i - h * aSize * nSize * rSize * bSize - a * nSize * rSize * bSize - n * rSize * bSize - r * bSize - b) / (bSize * rSize * nSize * aSize * hSize) ) % wSize;
+            output[id] = (int) (w * 3 + h * 5 + a * 7 + n * 11 + r * 13 + b * 17);
+        }
+    }
+
+    public static class CarryKernel extends DecodeKernel {
+        @Override
+        public void run() {
+            final int id = getGlobalId();
+            final int bCarry = baseB + id;
+            final int b = bCarry % (int) bSize;
+            final int rCarry = baseR + bCarry / (int) bSize;
+            final int r = rCarry % (int) rSize;
+            final int nCarry = baseN + rCarry / (int) rSize;
+            final int n = nCarry % (int) nSize;
+            final int aCarry = baseA + nCarry / (int) nSize;
+            final int a = aCarry % (int) aSize;
+            final int hCarry = baseH + aCarry / (int) aSize;
+            final int h = hCarry % (int) hSize;
+            final int w = baseW + hCarry / (int) hSize;
+            output[id] = w * 3 + h * 5 + a * 7 + n * 11 + r * 13 + b * 17;
+        }
+    }
+}